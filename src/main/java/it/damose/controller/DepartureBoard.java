@@ -0,0 +1,148 @@
+package it.damose.controller;
+
+import it.damose.data.StaticFeed;
+import it.damose.model.Departure;
+import it.damose.model.RealtimeArrival;
+import it.damose.model.ServiceDay;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+import it.damose.realtime.RealtimeManager;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Tabellone unico delle partenze di tutte le fermate attorno a un punto
+ * (es. i tanti marciapiedi di un grande nodo come Termini).
+ *
+ * Le fermate arrivano dall'indice spaziale; ognuna fornisce i suoi passaggi già
+ * in ordine di orario: quelli in tempo reale se il RealtimeManager ne ha, altrimenti
+ * quelli programmati (ricerca binaria nello StopDepartureIndex). Il tabellone è la
+ * fusione ordinata (k-way merge con una coda di priorità) di queste sequenze: ogni
+ * riga costa un'estrazione dalla coda, senza riscorrere i trip.
+ */
+public class DepartureBoard {
+
+    private final StopController stopController;
+    private final RealtimeManager realtimeManager;
+
+    public DepartureBoard(StopController stopController, RealtimeManager realtimeManager) {
+        this.stopController = stopController;
+        this.realtimeManager = realtimeManager;
+    }
+
+    /**
+     * @param radiusMeters Distanza massima delle fermate dal punto
+     * @param limit        Righe massime del tabellone
+     * @return Le prossime partenze delle fermate vicine, in ordine di orario.
+     */
+    public List<Departure> nearby(double lat, double lon, double radiusMeters, int limit) {
+        StaticFeed f = stopController.getFeed();
+        List<Stop> stops = f.getStopGrid().withinRadius(lat, lon, radiusMeters);
+        if (stops.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDateTime now = LocalDateTime.now(zone);
+        LocalDate today = now.toLocalDate();
+        long nowEpoch = now.atZone(zone).toEpochSecond();
+        long midnightEpoch = today.atStartOfDay(zone).toEpochSecond();
+        boolean online = realtimeManager != null && ConnectionManager.getInstance().isOnline();
+        ServiceDay day = f.hasTimetable() ? f.serviceDay(today) : null;
+        ServiceDay tomorrow = f.hasTimetable() ? f.serviceDay(today.plusDays(1)) : null;
+
+        // Una sequenza per fermata, ciascuna già posizionata sul primo passaggio da adesso
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(stops.size(), Comparator.comparingLong(Cursor::time));
+        for (Stop stop : stops) {
+            List<RealtimeArrival> live = online ? realtimeManager.getArrivalsForStop(stop) : Collections.emptyList();
+            Cursor cursor;
+            if (!live.isEmpty()) {
+                cursor = new LiveCursor(stop, live, nowEpoch);
+            } else if (day != null && stop.getIndex() >= 0) {
+                // Mai più di limit passaggi per fermata: anche se uno solo contribuisse tutte le righe
+                long[] next = f.getDepartures().next(stop.getIndex(), now.toLocalTime().toSecondOfDay(),
+                        day, tomorrow, limit);
+                cursor = new ScheduledCursor(stop, f.getStopTimes(), next, midnightEpoch);
+            } else {
+                continue;
+            }
+            if (cursor.valid()) queue.add(cursor);
+        }
+
+        List<Departure> board = new ArrayList<>(limit);
+        while (board.size() < limit && !queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            board.add(cursor.current());
+            cursor.advance();
+            if (cursor.valid()) queue.add(cursor);
+        }
+        return board;
+    }
+
+    /**
+     * Posizione dentro la sequenza ordinata dei passaggi di una fermata.
+     */
+    private abstract static class Cursor {
+        final Stop stop;
+        int position;
+
+        Cursor(Stop stop) {
+            this.stop = stop;
+        }
+
+        abstract boolean valid();
+        abstract long time();
+        abstract Departure current();
+
+        void advance() {
+            position++;
+        }
+    }
+
+    private static final class LiveCursor extends Cursor {
+        private final List<RealtimeArrival> arrivals; // Già ordinati per orario (vedi RealtimeManager)
+
+        LiveCursor(Stop stop, List<RealtimeArrival> arrivals, long nowEpoch) {
+            super(stop);
+            this.arrivals = arrivals;
+            while (position < arrivals.size() && arrivals.get(position).getArrivalTime() < nowEpoch) position++;
+        }
+
+        boolean valid() { return position < arrivals.size(); }
+        long time() { return arrivals.get(position).getArrivalTime(); }
+
+        Departure current() {
+            RealtimeArrival ra = arrivals.get(position);
+            return new Departure(stop, ra.getRouteIndex(), ra.getRouteId(), ra.getArrivalTime(), ra.getDelay(), true);
+        }
+    }
+
+    private static final class ScheduledCursor extends Cursor {
+        private final StopTimeStore store;
+        private final long[] next;        // Vedi StopDepartureIndex.next: orario << 32 | riga
+        private final long midnightEpoch;
+
+        ScheduledCursor(Stop stop, StopTimeStore store, long[] next, long midnightEpoch) {
+            super(stop);
+            this.store = store;
+            this.next = next;
+            this.midnightEpoch = midnightEpoch;
+        }
+
+        boolean valid() { return position < next.length; }
+        long time() { return midnightEpoch + (next[position] >> 32); }
+
+        Departure current() {
+            Trip trip = store.trip(store.tripOf((int) next[position]));
+            return new Departure(stop, trip.getRouteIndex(), trip.getRouteId(), time(), 0, false);
+        }
+    }
+}
@@ -1,63 +1,205 @@
 package it.damose.controller;
 import it.damose.model.VehiclePosition;
-import it.damose.data.RouteLoader;
-import it.damose.data.StopsLoader;
-import it.damose.data.TripLoader;
+import it.damose.model.StopTimeStore;
+import it.damose.data.GtfsLoadPipeline;
+import it.damose.data.GtfsSource;
+import it.damose.data.ParallelStopTimesLoader;
+import it.damose.model.FeedIds;
+import it.damose.model.Isochrone;
+import it.damose.model.Journey;
 import it.damose.model.Route;
+import it.damose.model.ServiceDay;
 import it.damose.model.Stop;
 import it.damose.model.Trip;
+import it.damose.model.TripPattern;
 import it.damose.model.StopTime;
-import java.util.Set;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.*;
-import java.util.stream.Collectors;
-import it.damose.data.ShapeLoader;
-import it.damose.model.ShapePoint;
+import it.damose.model.Shape;
+import it.damose.data.StaticFeed;
+import it.damose.index.TextSearchIndex;
+import it.damose.routing.IsochroneCalculator;
+import it.damose.routing.RaptorRouter;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 
 
 public class StopController {
 
-    private final List<Stop> stops = new ArrayList<>();
-    private final List<Route> routes = new ArrayList<>();
-    private final List<Trip> trips = new ArrayList<>();
-    private final Map<String, List<ShapePoint>> shapeMap = new HashMap<>();
-    private final Map<String, Stop> stopMap = new HashMap<>();
-    private final Map<String, Route> routeMap = new HashMap<>();
-    private final Map<String, Trip> tripMap = new HashMap<>();
-
-    public StopController(String s) {
-        stopMap.putAll(StopsLoader.loadStopsFromResources());
-        routeMap.putAll(RouteLoader.loadRoutesFromResources());
-        trips.addAll(TripLoader.loadTripsFromResources());
-        shapeMap.putAll(ShapeLoader.loadShapesFromResources());
-        stops.addAll(stopMap.values());
-        routes.addAll(routeMap.values());
-        for (Trip trip : trips) {
-            tripMap.put(trip.getId(), trip);
+    // Il feed statico corrente: una fotografia immutabile sostituita per intero (vedi StaticFeed).
+    // Ogni metodo la legge una volta sola e lavora su quella, senza lock.
+    private final AtomicReference<StaticFeed> feed = new AtomicReference<>(StaticFeed.EMPTY);
+    private final AtomicInteger generations = new AtomicInteger();
+
+    private final List<Runnable> loadListeners = new CopyOnWriteArrayList<>();
+    private final VehicleSimulator simulator = new VehicleSimulator();
+    private final RaptorRouter router = new RaptorRouter();
+    private final IsochroneCalculator isochrones = new IsochroneCalculator(router);
+
+    // Minuti di partenze su cui si fa la mediana dei tempi delle isocrone
+    private static final int ISOCHRONE_WINDOW_MINUTES = 30;
+
+    // Snapshot binario del dataset, riletto agli avvii successivi al posto dei CSV
+    private static final Path SNAPSHOT_FILE = Paths.get("cache", "timetable.bin");
+    // Tempo massimo per la ricerca con errori di battitura, che parte a ogni tasto (dopo il debounce)
+    private static final long FUZZY_BUDGET_NANOS = 10_000_000L;
+
+    /**
+     * Avvia il caricamento del feed e ritorna appena le fermate sono disponibili;
+     * linee, orari e percorsi arrivano in background (vedi {@link #addLoadListener(Runnable)}).
+     *
+     * @param feedPath L'archivio .zip del feed GTFS statico, letto senza estrarlo, oppure
+     *                 la sua cartella estratta. Se non esiste (es. app avviata da un jar)
+     *                 si usano le risorse del classpath.
+     */
+    public StopController(String feedPath) {
+        int generation = generations.incrementAndGet();
+        GtfsLoadPipeline pipeline = startPipeline(feedPath);
+
+        // Le altre parti si aggiungono alla fotografia che contiene già le fermate, e solo
+        // se nel frattempo non è stato messo in uso un feed più nuovo (vedi reload)
+        CompletableFuture<Void> stopsReady = pipeline.stops().thenAccept(
+                loadedStops -> publish(generation, f -> StaticFeed.ofStops(generation, loadedStops)));
+        CompletableFuture<Void> timetableReady = stopsReady.thenCompose(v -> pipeline.departures().thenAcceptBoth(
+                pipeline.calendar(), (departures, cal) -> publish(generation, f -> withServiceDays(f.withTimetable(
+                        pipeline.getIds(), pipeline.routes().join(), departures.getStore(), departures, cal)))));
+        CompletableFuture<Void> shapesReady = stopsReady.thenCompose(v -> pipeline.shapes().thenAccept(
+                loadedShapes -> publish(generation, f -> f.withShapes(loadedShapes))));
+        CompletableFuture.allOf(stopsReady, timetableReady, shapesReady).whenComplete((v, e) -> {
+            if (e != null) {
+                System.err.println("StopController: caricamento del feed incompleto (" + e + ")");
+                return;
+            }
+            printSummary(feed.get());
+        });
+
+        // La UI può partire appena ci sono le fermate
+        try {
+            stopsReady.join();
+        } catch (CompletionException e) {
+            System.err.println("StopController: impossibile caricare le fermate (" + e.getCause() + ")");
+        }
+    }
+
+    private static GtfsLoadPipeline startPipeline(String feedPath) {
+        GtfsSource source = GtfsSource.forPath(feedPath);
+        return GtfsLoadPipeline.start(source, SNAPSHOT_FILE, ParallelStopTimesLoader.defaultParallelism());
+    }
+
+    /**
+     * Prepara i trip in servizio oggi e domani nel thread di caricamento, prima di
+     * pubblicare la fotografia: i passaggi della prima fermata aperta (che guardano
+     * anche dopo la mezzanotte) non li costruiscono sull'EDT.
+     */
+    private static StaticFeed withServiceDays(StaticFeed f) {
+        LocalDate today = LocalDate.now();
+        f.serviceDay(today);
+        f.serviceDay(today.plusDays(1));
+        return f;
+    }
+
+    private static void printSummary(StaticFeed f) {
+        System.out.println("Fermate caricate: " + f.getStops().size());
+        System.out.println("Linee caricate: " + f.getRoutes().size());
+        System.out.println("Viaggi caricati: " + f.getTrips().size());
+        System.out.println("Percorsi (shapes) indicizzati: " + f.getShapes().size());
+    }
+
+    /**
+     * Carica in background un nuovo feed (es. una versione aggiornata dello .zip) mentre
+     * l'app continua a usare quello corrente, poi lo sostituisce in un colpo solo.
+     * Chi sta leggendo finisce il suo lavoro sulla fotografia vecchia.
+     *
+     * @return Si completa quando il nuovo feed è in uso.
+     */
+    public CompletableFuture<Void> reload(String feedPath) {
+        int generation = generations.incrementAndGet();
+        return startPipeline(feedPath).dataset().thenAccept(dataset -> {
+            StaticFeed next = withServiceDays(StaticFeed.of(generation, dataset));
+            // Un caricamento partito dopo questo ha la precedenza, anche se finisce prima
+            StaticFeed previous = feed.getAndUpdate(f -> f.getGeneration() > generation ? f : next);
+            if (previous.getGeneration() > generation) {
+                return;
+            }
+            // Gli orari del giorno calcolati sul feed vecchio lo terrebbero in memoria fino al prossimo uso
+            router.clear();
+            simulator.clear();
+            System.out.println("StopController: nuovo feed in uso");
+            printSummary(next);
+            fireLoaded();
+        });
+    }
+
+    /**
+     * Libera le risorse in background (i worker delle ricerche), alla chiusura dell'app.
+     */
+    public void shutdown() {
+        router.shutdown();
+    }
+
+    private void publish(int generation, UnaryOperator<StaticFeed> update) {
+        StaticFeed updated = feed.updateAndGet(f -> f.getGeneration() <= generation ? update.apply(f) : f);
+        if (updated.getGeneration() == generation) {
+            fireLoaded();
+        }
+    }
+
+    private void fireLoaded() {
+        for (Runnable listener : loadListeners) {
+            listener.run();
         }
-        TripLoader.linkTripsToRoutes(trips, routes);
-        StopsLoader.linkStopsToRoutes(stops, routes);
+    }
+
+    /**
+     * Registra un'azione da eseguire ogni volta che una parte del feed diventa disponibile
+     * o che un nuovo feed viene messo in uso.
+     * Viene chiamata dal thread di caricamento: chi aggiorna la UI deve passare per invokeLater.
+     */
+    public void addLoadListener(Runnable listener) {
+        loadListeners.add(listener);
+    }
+
+    /**
+     * @return La fotografia corrente del feed statico (immutabile, sempre coerente).
+     */
+    public StaticFeed getFeed() {
+        return feed.get();
+    }
 
-        System.out.println("Fermate caricate: " + stops.size());
-        System.out.println("Linee caricate: " + routes.size());
-        System.out.println("Viaggi caricati: " + trips.size());
-        System.out.println("Percorsi (shapes) caricati: " + shapeMap.size());
+    /**
+     * @return I dizionari degli identificativi del feed, o null se gli orari non sono ancora caricati.
+     */
+    public FeedIds getFeedIds() {
+        return feed.get().getIds();
+    }
+
+    /**
+     * @return true quando linee, viaggi e orari sono stati caricati.
+     */
+    public boolean isTimetableLoaded() {
+        return feed.get().hasTimetable();
     }
 
     public List<Stop> getStops() {
-        return stops;
+        return feed.get().getStops();
     }
 
     public List<Route> getRoutes() {
-        return routes;
+        return feed.get().getRoutes();
     }
 
     public List<Trip> getTrips() {
-        return trips;
+        return feed.get().getTrips();
     }
 
     public List<StopTime> getNextArrivals(Stop stop, int limit) {
@@ -65,120 +207,93 @@ public class StopController {
             return Collections.emptyList();
         }
 
-        List<StopTime> allArrivals = new ArrayList<>();
-
-        // Raccogli tutti gli stopTimes per questa fermata
-        for (Trip trip : tripMap.values()) {
-            for (StopTime st : trip.getStopTimes()) {
-                if (st.getStopId().equals(stop.getId())) {
-                    allArrivals.add(st);
-                }
-            }
+        StaticFeed f = feed.get();
+        if (!f.hasTimetable()) {
+            return Collections.emptyList(); // Orari non ancora caricati
         }
-
-        // Ordina per orario di arrivo
-        allArrivals.sort(Comparator.comparing(StopTime::getArrivalTime));
-
-        // Restituisci solo i prossimi N arrivi
-        return allArrivals.stream().limit(limit).collect(Collectors.toList());
+        stop = resolve(f, stop);
+        if (stop == null) {
+            return Collections.emptyList();
+        }
+        java.time.LocalDateTime now = java.time.LocalDateTime.now();
+        LocalDate today = now.toLocalDate();
+        ServiceDay day = f.serviceDay(today);
+        ServiceDay tomorrow = f.serviceDay(today.plusDays(1)); // Per continuare oltre la mezzanotte
+
+        // Ricerca binaria sui passaggi della fermata, ordinati per orario (vedi StopDepartureIndex)
+        long[] next = f.getDepartures().next(stop.getIndex(), now.toLocalTime().toSecondOfDay(), day, tomorrow, limit);
+
+        StopTimeStore stopTimes = f.getStopTimes();
+        List<StopTime> result = new ArrayList<>(next.length);
+        for (long departure : next) {
+            result.add(stopTimes.view((int) departure));
+        }
+        return result;
     }
 
     // Metodo helper per ottenere info complete
     public String getArrivalInfo(StopTime st) {
-        Trip trip = tripMap.get(st.getTripId());
-        if (trip == null) return "N/A";
-
-        Route route = routeMap.get(trip.getRouteId());
+        StaticFeed f = feed.get();
+        Trip trip = st.getTrip();
+        Route route = f.routeAt(trip.getRouteIndex());
+        if (route == null || !route.getId().equals(trip.getRouteId())) {
+            route = f.getRouteMap().get(trip.getRouteId()); // Orario di un feed sostituito nel frattempo
+        }
         String routeName = (route != null) ? route.getName() : trip.getRouteId();
 
         return routeName + " - " + st.getArrivalTime();
     }
 
+    /**
+     * @return Le linee con ID uguale alla query o nome che la contiene, dalla più pertinente
+     * (vedi {@link it.damose.index.TextSearchIndex}). Se non ce ne sono, quelle con nomi
+     * simili a meno di errori di battitura.
+     */
     public List<Route> searchRoutes(String query) {
-        List<Route> results = new ArrayList<>();
-        String q = query.toLowerCase();
-        for (Route r : routes) {
-            if (r.getName().toLowerCase().contains(q) || r.getId().equalsIgnoreCase(q)) {
-                results.add(r);
-            }
-        }
-        return results;
+        TextSearchIndex<Route> index = feed.get().getRouteSearch();
+        List<Route> results = index.search(query);
+        return results.isEmpty() ? index.searchFuzzy(query, FUZZY_BUDGET_NANOS) : results;
     }
 
+    /**
+     * @return Le fermate con ID uguale alla query o nome che la contiene, dalla più pertinente.
+     * Se non ce ne sono, quelle con nomi simili a meno di errori di battitura.
+     */
     public List<Stop> searchStops(String query) {
-        List<Stop> results = new ArrayList<>();
-        String q = query.toLowerCase();
-        for (Stop s : stops) {
-            if (s.getName().toLowerCase().contains(q) || s.getId().equalsIgnoreCase(q)) {
-                results.add(s);
-            }
-        }
-        return results;
+        TextSearchIndex<Stop> index = feed.get().getStopSearch();
+        List<Stop> results = index.search(query);
+        return results.isEmpty() ? index.searchFuzzy(query, FUZZY_BUDGET_NANOS) : results;
     }
 
     public List<Stop> getStopsForRoute(Route route) {
-        if (route == null || route.getAllStopIds() == null) {
+        StaticFeed f = feed.get();
+        route = resolve(f, route);
+        if (route == null) {
             return Collections.emptyList();
         }
 
-        List<Stop> result = new ArrayList<>();
-        for (String stopId : route.getAllStopIds()) {
-            Stop s = stopMap.get(stopId);
+        // Fermate già calcolate al caricamento (vedi GtfsLoader.link), nell'ordine di percorrenza
+        int[] stopIndices = route.getStopIndices();
+        List<Stop> result = new ArrayList<>(stopIndices.length);
+        for (int stopIndex : stopIndices) {
+            Stop s = f.stopAt(stopIndex);
             if (s != null) result.add(s);
         }
         return result;
     }
 
     public List<Route> getRoutesForStop(Stop stop) {
+        StaticFeed f = feed.get();
+        stop = resolve(f, stop);
         if (stop == null) {
             return Collections.emptyList();
         }
 
-        System.out.println("=== DEBUG getRoutesForStop ===");
-        System.out.println("Fermata cercata: " + stop.getName() + " (ID: '" + stop.getId() + "')");
-
-        // Cerca se l'ID esiste in qualche modo negli stopTimes
-        Set<String> allStopIds = new HashSet<>();
-        int count = 0;
-        for (Trip trip : tripMap.values()) {
-            for (StopTime st : trip.getStopTimes()) {
-                allStopIds.add(st.getStopId());
-                count++;
-                if (count > 1000) break; // Limita per non crashare
-            }
-            if (count > 1000) break;
-        }
-
-        System.out.println("Primi 20 stopId negli stopTimes: ");
-        allStopIds.stream().limit(20).forEach(id -> System.out.println("  - " + id));
-
-        // Cerca match parziali
-        System.out.println("\nCerca match parziali con '" + stop.getId() + "':");
-        allStopIds.stream()
-                .filter(id -> id.contains(stop.getId()) || stop.getId().contains(id))
-                .limit(10)
-                .forEach(id -> System.out.println("  POSSIBILE MATCH: " + id));
-
-        System.out.println("========================\n");
-
-        // Logica originale
-        Set<String> routeIds = new HashSet<>();
-
-        for (Trip trip : tripMap.values()) {
-            List<StopTime> stopTimes = trip.getStopTimes();
-            if (stopTimes != null) {
-                for (StopTime st : stopTimes) {
-                    if (st.getStopId().equals(stop.getId())) {
-                        routeIds.add(trip.getRouteId());
-                        break;
-                    }
-                }
-            }
-        }
-
-        List<Route> result = new ArrayList<>();
-        for (String routeId : routeIds) {
-            Route r = routeMap.get(routeId);
+        // Linee già calcolate alla pubblicazione degli orari (vedi StaticFeed.routeIndicesOf)
+        int[] routeIndices = f.routeIndicesOf(stop);
+        List<Route> result = new ArrayList<>(routeIndices.length);
+        for (int routeIndex : routeIndices) {
+            Route r = f.routeAt(routeIndex);
             if (r != null) {
                 result.add(r);
             }
@@ -187,119 +302,112 @@ public class StopController {
         result.sort(Comparator.comparing(Route::getName));
         return result;
     }
-    public Route getRouteById(String id) {
-        return routeMap.get(id);
+
+    /**
+     * @return La fermata corrispondente nella fotografia indicata: se arriva da un feed
+     * sostituito nel frattempo, i suoi indici non valgono più e va ritrovata per ID.
+     */
+    private static Stop resolve(StaticFeed f, Stop stop) {
+        if (stop == null || f.stopAt(stop.getIndex()) == stop) {
+            return stop;
+        }
+        return f.getStopMap().get(stop.getId());
     }
-    private long timeToSeconds(String time) {
-        // Gestisce orari "impossibili" (es. 24:01:00)
-        if (time.startsWith("24")) time = time.replace("24", "00");
-        if (time.startsWith("25")) time = time.replace("25", "01");
 
-        try {
-            String[] parts = time.split(":");
-            long hours = Long.parseLong(parts[0]);
-            long minutes = Long.parseLong(parts[1]);
-            long seconds = Long.parseLong(parts[2]);
-            return (hours * 3600) + (minutes * 60) + seconds;
-        } catch (Exception e) {
-            return -1;
+    private static Route resolve(StaticFeed f, Route route) {
+        if (route == null || f.routeAt(route.getIndex()) == route) {
+            return route;
         }
+        return f.getRouteMap().get(route.getId());
     }
-    private float calculateBearing(Stop s1, Stop s2) {
-        double lat1 = Math.toRadians(s1.getLat());
-        double lon1 = Math.toRadians(s1.getLon());
-        double lat2 = Math.toRadians(s2.getLat());
-        double lon2 = Math.toRadians(s2.getLon());
 
-        double dLon = lon2 - lon1;
-        double y = Math.sin(dLon) * Math.cos(lat2);
-        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+    public Route getRouteById(String id) {
+        return feed.get().getRouteMap().get(id);
+    }
 
-        double bearing = Math.toDegrees(Math.atan2(y, x));
-        return (float) (bearing + 360) % 360; // Normalizza a 0-360
+    /**
+     * @return La linea con l'indice denso indicato (vedi {@link Route#getIndex()}), o null.
+     */
+    public Route getRouteByIndex(int index) {
+        return feed.get().routeAt(index);
     }
+    /**
+     * @return Le posizioni (simulate da orario) dei veicoli in circolazione adesso.
+     * Solo i trip in corso vengono toccati, vedi {@link VehicleSimulator}.
+     */
     public List<VehiclePosition> getSimulatedVehiclePositions() {
-        List<VehiclePosition> simulatedVehicles = new ArrayList<>();
-
-        // 1. Ottieni l'orario corrente (in secondi da mezzanotte)
-        java.time.LocalTime now = java.time.LocalTime.now();
-        long nowInSeconds = now.toSecondOfDay();
-
-        // 2. Itera su tutti i viaggi
-        for (Trip trip : trips) {
-            List<StopTime> stopTimes = trip.getStopTimes();
-            if (stopTimes.size() < 2) continue; // Viaggio non valido
-
-            // 3. Itera sulle "gambe" del viaggio (da Stop A a Stop B)
-            for (int i = 0; i < stopTimes.size() - 1; i++) {
-                StopTime st1 = stopTimes.get(i);
-                StopTime st2 = stopTimes.get(i + 1);
-
-                long time1 = timeToSeconds(st1.getArrivalTime());
-                long time2 = timeToSeconds(st2.getArrivalTime());
-
-                // 4. Controlla se il bus è "adesso" tra queste due fermate
-                if (time1 != -1 && time2 != -1 && time1 <= nowInSeconds && time2 >= nowInSeconds) {
-
-                    // Se viene trovato, si calcola la posizione.
-                    Stop s1 = stopMap.get(st1.getStopId());
-                    Stop s2 = stopMap.get(st2.getStopId());
-
-                    if (s1 == null || s2 == null) continue;
-
-                    // 5. Calcola a che percentuale del tragitto si trova
-                    double segmentDuration = time2 - time1;
-                    double timeElapsed = nowInSeconds - time1;
-                    double progress = (segmentDuration == 0) ? 0 : (timeElapsed / segmentDuration);
-
-                    // 6. Interpola le coordinate
-                    double lat = s1.getLat() + (s2.getLat() - s1.getLat()) * progress;
-                    double lon = s1.getLon() + (s2.getLon() - s1.getLon()) * progress;
-
-                    // 7. Calcola la direzione
-                    float bearing = calculateBearing(s1, s2);
+        return simulator.positionsAt(feed.get(), java.time.LocalDateTime.now());
+    }
 
-                    // 8. Crea il nostro oggetto VehiclePosition (riutilizziamo il modello!)
-                    // Usiamo l'ID del viaggio come ID del veicolo per la simulazione
-                    VehiclePosition vp = new VehiclePosition(trip.getId(), trip.getRouteId(), lat, lon, bearing);
-                    simulatedVehicles.add(vp);
+    /**
+     * @return Gli itinerari alternativi tra due fermate, dal più veloce a quello con meno
+     * cambi (vedi {@link RaptorRouter}); lista vuota se non ce ne sono in giornata.
+     */
+    public List<Journey> planJourneys(Stop from, Stop to, java.time.LocalDateTime departure) {
+        if (!isTimetableLoaded()) {
+            return Collections.emptyList();
+        }
+        return router.plan(feed.get(), from, to, departure);
+    }
 
-                    break;
-                }
-            }
+    /**
+     * @return I tempi di viaggio mediani dalla fermata verso quelle raggiungibili entro
+     * maxMinutes, partendo nella mezz'ora da departure (vedi {@link IsochroneCalculator});
+     * null se gli orari non sono caricati o non c'è servizio.
+     */
+    public Isochrone computeIsochrone(Stop from, java.time.LocalDateTime departure, int maxMinutes) {
+        if (!isTimetableLoaded()) {
+            return null;
         }
-        return simulatedVehicles;
+        return isochrones.compute(feed.get(), from, departure, ISOCHRONE_WINDOW_MINUTES, maxMinutes);
     }
     // IN StopController.java
-    public List<ShapePoint> getShapeForRoute(Route route) {
-        if (route == null || route.getTrips().isEmpty()) {
-            System.out.println("DEBUG SHAPE: No, la rotta o i suoi viaggi sono nulli."); // DEBUG
-            return Collections.emptyList();
+    /**
+     * @return Il percorso della linea (decodificato da shapes.txt alla prima richiesta),
+     * o {@link Shape#EMPTY} se la linea non ne ha uno.
+     */
+    public Shape getShapeForRoute(Route route) {
+        if (route == null || route.getPatterns().isEmpty()) {
+            return Shape.EMPTY;
         }
 
+        // Lo shape del pattern più frequente che ne ha uno
         String shapeId = null;
-        for (Trip trip : route.getTrips()) {
-            if (trip.getShapeId() != null && !trip.getShapeId().isEmpty()) {
-                shapeId = trip.getShapeId();
+        for (TripPattern pattern : route.getPatterns()) {
+            if (pattern.getShapeId() != null && !pattern.getShapeId().isEmpty()) {
+                shapeId = pattern.getShapeId();
                 break;
             }
         }
 
         if (shapeId == null) {
-            System.out.println("DEBUG SHAPE: No. La linea " + route.getName() + " non ha uno shape_id nei suoi viaggi."); // DEBUG
-            return Collections.emptyList();
-        }
-
-        List<ShapePoint> points = shapeMap.getOrDefault(shapeId, Collections.emptyList());
-        if (points.isEmpty()) {
-            System.out.println("DEBUG SHAPE: No. Trovato shape_id " + shapeId + " ma non ci sono punti in shapes.txt"); // DEBUG
-        } else {
-            System.out.println("DEBUG SHAPE: OK! Trovati " + points.size() + " punti per lo shape " + shapeId); // DEBUG
+            return Shape.EMPTY;
         }
 
-        return points;
+        return feed.get().getShapes().get(shapeId);
     }
     public Stop getStopById(String id) {
-        return stopMap.get(id); // stopMap usa già l'ID come chiave
+        return feed.get().getStopMap().get(id); // La mappa usa già l'ID come chiave
+    }
+
+    /**
+     * @return Le k fermate più vicine al punto entro maxMeters, dalla più vicina.
+     */
+    public List<Stop> getNearestStops(double lat, double lon, int k, double maxMeters) {
+        return feed.get().getStopGrid().nearest(lat, lon, k, maxMeters);
+    }
+
+    /**
+     * @return Le fermate entro radiusMeters dal punto, dalla più vicina.
+     */
+    public List<Stop> getStopsWithinRadius(double lat, double lon, double radiusMeters) {
+        return feed.get().getStopGrid().withinRadius(lat, lon, radiusMeters);
+    }
+
+    /**
+     * @return Le fermate dentro il rettangolo indicato (es. l'area visibile della mappa).
+     */
+    public List<Stop> getStopsInArea(double minLat, double minLon, double maxLat, double maxLon) {
+        return feed.get().getStopGrid().inBox(minLat, minLon, maxLat, maxLon);
     }
 }
\ No newline at end of file
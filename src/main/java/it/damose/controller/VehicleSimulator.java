@@ -0,0 +1,257 @@
+package it.damose.controller;
+
+import it.damose.data.StaticFeed;
+import it.damose.index.ActiveTripIndex;
+import it.damose.index.ShapeGeometry;
+import it.damose.model.ServiceDay;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+import it.damose.model.VehiclePosition;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Posizioni simulate (da orario) dei veicoli in circolazione, aggiornate in modo incrementale.
+ *
+ * Tiene l'insieme dei trip in corso e, per ognuno, un cursore sull'ultima fermata
+ * già passata. A ogni aggiornamento:
+ * <ul>
+ *   <li>entrano i trip partiti dall'aggiornamento precedente (puntatore sull'{@link ActiveTripIndex});</li>
+ *   <li>escono quelli arrivati al capolinea;</li>
+ *   <li>i cursori avanzano solo delle fermate passate nel frattempo.</li>
+ * </ul>
+ * Il lavoro è quindi proporzionale ai veicoli in strada, non ai trip del feed.
+ * Se cambiano feed o data, o l'orologio torna indietro, si riparte da zero
+ * con i soli trip che partono nella finestra della durata massima.
+ *
+ * Se il trip ha uno shape, il veicolo si muove lungo il percorso e non in linea retta
+ * tra le fermate: le fermate sono proiettate sullo shape una volta sola (distanza
+ * dall'inizio, condivisa dai trip dello stesso {@link it.damose.model.TripPattern}) e a ogni
+ * aggiornamento la distanza interpolata diventa un punto con una ricerca binaria
+ * (vedi {@link ShapeGeometry}).
+ */
+public class VehicleSimulator {
+
+    private StaticFeed feed;
+    private ActiveTripIndex index;
+    private int next;                   // Prima voce dell'indice non ancora partita
+    private int lastNow;
+
+    // Trip in corso: voce dell'indice e riga dell'ultimo orario <= adesso
+    private int[] activeEntries = new int[256];
+    private int[] activeRows = new int[256];
+    private ShapeGeometry[] activeShapes = new ShapeGeometry[256];   // null se il trip non ha shape
+    private double[][] activeDistances = new double[256][];         // Per riga del trip, metri lungo lo shape
+    private int activeCount;
+
+    // Percorsi decodificati per shape (indice denso) e proiezioni delle fermate per pattern, del feed corrente
+    private final Map<Integer, ShapeGeometry> geometries = new HashMap<>();
+    private final Map<Integer, double[]> projections = new HashMap<>();
+    private final double[] point = new double[3];
+
+    /**
+     * @return Le posizioni dei veicoli nell'istante indicato, o una lista vuota senza orari.
+     */
+    public synchronized List<VehiclePosition> positionsAt(StaticFeed f, LocalDateTime dateTime) {
+        ServiceDay day = f.serviceDay(dateTime.toLocalDate());
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        int now = dateTime.toLocalTime().toSecondOfDay();
+        StopTimeStore store = f.getStopTimes();
+
+        if (f != feed || index == null || index.getDay() != day || now < lastNow) {
+            restart(f, day, now);
+        } else {
+            while (next < index.size() && index.startAt(next) <= now) {
+                add(store, next++);
+            }
+        }
+        lastNow = now;
+
+        List<VehiclePosition> positions = new ArrayList<>(activeCount);
+        int k = 0;
+        while (k < activeCount) {
+            int entry = activeEntries[k];
+            if (index.endAt(entry) < now) {
+                // Capolinea raggiunto: l'ultimo trip in corso prende il suo posto
+                activeCount--;
+                activeEntries[k] = activeEntries[activeCount];
+                activeRows[k] = activeRows[activeCount];
+                activeShapes[k] = activeShapes[activeCount];
+                activeDistances[k] = activeDistances[activeCount];
+                activeShapes[activeCount] = null;
+                activeDistances[activeCount] = null;
+                continue;
+            }
+            int d = index.entryAt(entry);
+            int trip = day.tripAt(d);
+            int offset = day.offsetAt(d);
+
+            // Avanza il cursore fino al tratto che contiene adesso
+            int row = activeRows[k];
+            int nextRow = nextTimed(store, trip, row);
+            while (nextRow >= 0 && store.arrivalOf(trip, nextRow) + offset < now) {
+                row = nextRow;
+                nextRow = nextTimed(store, trip, row);
+            }
+            activeRows[k] = row;
+            ShapeGeometry shape = activeShapes[k];
+            double[] distances = activeDistances[k];
+            k++;
+
+            // Percentuale del tratto già percorsa
+            double time1 = store.arrivalOf(trip, row) + offset;
+            double segmentDuration = nextRow >= 0 ? store.arrivalOf(trip, nextRow) + offset - time1 : 0;
+            double progress = segmentDuration == 0 ? 0 : (now - time1) / segmentDuration;
+
+            double lat;
+            double lon;
+            float bearing;
+            if (shape != null) {
+                // Lungo il percorso: dalla distanza della fermata passata verso quella della prossima
+                int first = store.rowStart(trip);
+                double d1 = distances[row - first];
+                double d2 = nextRow >= 0 ? distances[nextRow - first] : d1;
+                shape.pointAt(d1 + (d2 - d1) * progress, point);
+                lat = point[0];
+                lon = point[1];
+                bearing = (float) point[2];
+            } else {
+                // Senza shape: in linea retta tra le due fermate
+                Stop s1 = f.stopAt(store.stopOf(trip, row));
+                Stop s2 = nextRow >= 0 ? f.stopAt(store.stopOf(trip, nextRow)) : s1;
+                if (s1 == null || s2 == null) continue;
+                lat = s1.getLat() + (s2.getLat() - s1.getLat()) * progress;
+                lon = s1.getLon() + (s2.getLon() - s1.getLon()) * progress;
+                bearing = calculateBearing(s1, s2);
+            }
+
+            // Usiamo l'ID del viaggio come ID del veicolo per la simulazione
+            Trip t = store.trip(trip);
+            positions.add(new VehiclePosition(t.getId(), t.getRouteIndex(), t.getRouteId(), lat, lon, bearing));
+        }
+        return positions;
+    }
+
+    /**
+     * Dimentica il feed e i trip in corso, dopo che un feed nuovo ha sostituito quello corrente:
+     * la simulazione successiva riparte da zero.
+     */
+    synchronized void clear() {
+        feed = null;
+        index = null;
+        Arrays.fill(activeShapes, 0, activeCount, null);
+        Arrays.fill(activeDistances, 0, activeCount, null);
+        activeCount = 0;
+        geometries.clear();
+        projections.clear();
+    }
+
+    /**
+     * Riparte da zero: i trip in corso sono tra quelli partiti al massimo maxDuration fa.
+     */
+    private void restart(StaticFeed f, ServiceDay day, int now) {
+        if (index == null || index.getDay() != day) {
+            index = ActiveTripIndex.build(f.getStopTimes(), day);
+        }
+        if (f != feed) {
+            geometries.clear();
+            projections.clear();
+        }
+        feed = f;
+        Arrays.fill(activeShapes, 0, activeCount, null);
+        Arrays.fill(activeDistances, 0, activeCount, null);
+        activeCount = 0;
+        StopTimeStore store = f.getStopTimes();
+        next = index.firstStartingFrom(now - index.maxDuration());
+        while (next < index.size() && index.startAt(next) <= now) {
+            if (index.endAt(next) >= now) add(store, next);
+            next++;
+        }
+    }
+
+    private void add(StopTimeStore store, int entry) {
+        if (activeCount == activeEntries.length) {
+            activeEntries = Arrays.copyOf(activeEntries, activeCount * 2);
+            activeRows = Arrays.copyOf(activeRows, activeCount * 2);
+            activeShapes = Arrays.copyOf(activeShapes, activeCount * 2);
+            activeDistances = Arrays.copyOf(activeDistances, activeCount * 2);
+        }
+        int trip = index.getDay().tripAt(index.entryAt(entry));
+        activeEntries[activeCount] = entry;
+        activeRows[activeCount] = nextTimed(store, trip, store.rowStart(trip) - 1);
+        ShapeGeometry shape = geometry(store.trip(trip));
+        activeShapes[activeCount] = shape;
+        activeDistances[activeCount] = shape != null ? stopDistances(store, trip, shape) : null;
+        activeCount++;
+    }
+
+    /**
+     * @return Il percorso del trip (decodificato alla prima richiesta), o null se non ne ha uno.
+     */
+    private ShapeGeometry geometry(Trip trip) {
+        int shape = trip.getShapeIndex();
+        if (shape < 0) {
+            return null;
+        }
+        if (!geometries.containsKey(shape)) {
+            geometries.put(shape, ShapeGeometry.of(feed.getShapes().get(trip.getShapeId())));
+        }
+        return geometries.get(shape);
+    }
+
+    /**
+     * @return La distanza lungo lo shape di ogni fermata del trip, proiettate in ordine.
+     * I trip dello stesso pattern (stesse fermate, stesso shape) condividono il risultato.
+     */
+    private double[] stopDistances(StopTimeStore store, int trip, ShapeGeometry shape) {
+        int pattern = store.patternOf(trip);
+        double[] known = projections.get(pattern);
+        if (known != null) {
+            return known;
+        }
+
+        int[] stops = store.pattern(pattern).getStops();
+        double[] distances = new double[stops.length];
+        double d = 0;
+        for (int i = 0; i < stops.length; i++) {
+            Stop s = feed.stopAt(stops[i]);
+            if (s != null) d = shape.project(s.getLat(), s.getLon(), d);
+            distances[i] = d; // Fermata sconosciuta: resta alla distanza della precedente
+        }
+        projections.put(pattern, distances);
+        return distances;
+    }
+
+    /**
+     * @return La prima riga del trip dopo row che ha un orario, o -1.
+     */
+    private static int nextTimed(StopTimeStore store, int trip, int row) {
+        for (int r = row + 1; r < store.rowEnd(trip); r++) {
+            if (store.arrivalOf(trip, r) >= 0) return r;
+        }
+        return -1;
+    }
+
+    private static float calculateBearing(Stop s1, Stop s2) {
+        double lat1 = Math.toRadians(s1.getLat());
+        double lon1 = Math.toRadians(s1.getLon());
+        double lat2 = Math.toRadians(s2.getLat());
+        double lon2 = Math.toRadians(s2.getLon());
+
+        double dLon = lon2 - lon1;
+        double y = Math.sin(dLon) * Math.cos(lat2);
+        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+
+        double bearing = Math.toDegrees(Math.atan2(y, x));
+        return (float) (bearing + 360) % 360; // Normalizza a 0-360
+    }
+}
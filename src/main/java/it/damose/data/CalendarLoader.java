@@ -0,0 +1,86 @@
+package it.damose.data;
+
+import it.damose.model.ServiceCalendar;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+public class CalendarLoader {
+
+    private static final String[] WEEK_DAYS = {
+            "monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"
+    };
+
+    /**
+     * Carica i calendari di servizio da calendar.txt e calendar_dates.txt.
+     * Entrambi i file sono facoltativi: se mancano il calendario resta vuoto
+     * e tutti i trip vengono considerati attivi ogni giorno.
+     */
+    public static ServiceCalendar loadCalendar(GtfsSource source) {
+        ServiceCalendar calendar = new ServiceCalendar();
+
+        try (GtfsCsvReader csv = source.open("calendar.txt")) {
+            if (csv != null) {
+                int colService = csv.column("service_id");
+                int colStart = csv.column("start_date");
+                int colEnd = csv.column("end_date");
+                int[] colDays = new int[WEEK_DAYS.length];
+                for (int d = 0; d < WEEK_DAYS.length; d++) {
+                    colDays[d] = csv.column(WEEK_DAYS[d]);
+                }
+                while (csv.next()) {
+                    if (csv.isEmpty(colService)) continue;
+                    int mask = 0;
+                    for (int d = 0; d < WEEK_DAYS.length; d++) {
+                        if (csv.getInt(colDays[d], 0) == 1) mask |= 1 << d;
+                    }
+                    // Una data mancante lascia l'intervallo aperto da quel lato
+                    long start = parseDate(csv.getInt(colStart, -1));
+                    long end = parseDate(csv.getInt(colEnd, -1));
+                    calendar.addWeekly(csv.getString(colService), mask, start,
+                            end != Long.MIN_VALUE ? end : Long.MAX_VALUE);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        int exceptions = 0;
+        try (GtfsCsvReader csv = source.open("calendar_dates.txt")) {
+            if (csv != null) {
+                int colService = csv.column("service_id");
+                int colDate = csv.column("date");
+                int colType = csv.column("exception_type");
+                while (csv.next()) {
+                    long day = parseDate(csv.getInt(colDate, -1));
+                    int type = csv.getInt(colType, -1);
+                    if (csv.isEmpty(colService) || day == Long.MIN_VALUE || (type != 1 && type != 2)) continue;
+                    calendar.addException(csv.getString(colService), day, type == 1);
+                    exceptions++;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("CalendarLoader: " + calendar.getServices().size() + " servizi, "
+                + exceptions + " eccezioni caricate");
+        return calendar;
+    }
+
+    /**
+     * Converte una data GTFS (AAAAMMGG) in giorni dall'epoca.
+     *
+     * @return Il giorno, o Long.MIN_VALUE se la data non è valida.
+     */
+    static long parseDate(int yyyymmdd) {
+        if (yyyymmdd <= 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDate.of(yyyymmdd / 10000, (yyyymmdd / 100) % 100, yyyymmdd % 100).toEpochDay();
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package it.damose.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lettore CSV condiviso per i file GTFS, senza espressioni regolari.
+ *
+ * Ogni riga viene tokenizzata in un'unica passata sui byte (UTF-8) del buffer:
+ * per ogni campo si ricordano solo inizio e fine, e la conversione in
+ * String/int/double avviene solo quando il chiamante la chiede.
+ * Le colonne si risolvono per nome a partire dall'intestazione, quindi
+ * l'ordine delle colonne nel file non conta più.
+ *
+ * Uso tipico:
+ * <pre>
+ *     int colId = csv.column("stop_id");
+ *     while (csv.next()) {
+ *         String id = csv.getString(colId);
+ *     }
+ * </pre>
+ */
+public class GtfsCsvReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_FIELDS = 16;
+
+    // Sorgente: uno stream o un buffer fuori heap (es. un file mappato), letti a blocchi
+    // in una finestra riutilizzabile, oppure direttamente l'array di un ByteBuffer su heap
+    private final InputStream in;
+    private final ByteBuffer source;
+    private byte[] buf;
+    private int windowStart; // posizione nella sorgente corrispondente a buf[0]
+    private int pos;         // inizio della prossima riga
+    private int limit;       // fine dei byte validi nel buffer
+    private boolean eof;
+
+    // "Fette" della riga corrente: [fieldStart, fieldEnd) nel buffer
+    private int[] fieldStart = new int[INITIAL_FIELDS];
+    private int[] fieldEnd = new int[INITIAL_FIELDS];
+    private boolean[] fieldEscaped = new boolean[INITIAL_FIELDS]; // contiene "" da ridurre a "
+    private int fieldCount;
+
+    private final Map<String, Integer> header = new HashMap<>();
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Legge un file GTFS da uno stream. L'intestazione viene letta subito.
+     */
+    public GtfsCsvReader(InputStream in) throws IOException {
+        this.in = in;
+        this.source = null;
+        this.buf = new byte[DEFAULT_BUFFER_SIZE];
+        this.eof = false;
+        readHeader();
+    }
+
+    /**
+     * Legge un file GTFS già in memoria, tra position e limit del buffer.
+     * L'intestazione viene letta subito.
+     *
+     * Un buffer su heap viene letto direttamente dal suo array; un buffer fuori heap
+     * (es. un file mappato) viene copiato a blocchi in una piccola finestra, perché
+     * l'accesso byte per byte a un buffer diretto costa molto più di una copia in blocco.
+     */
+    public GtfsCsvReader(ByteBuffer data) throws IOException {
+        this.in = null;
+        if (data.hasArray()) {
+            this.source = null;
+            useArray(data);
+        } else {
+            this.source = data.duplicate();
+            this.buf = new byte[DEFAULT_BUFFER_SIZE];
+            this.windowStart = data.position();
+            this.eof = false;
+        }
+        readHeader();
+    }
+
+    /**
+     * Legge un intervallo di righe senza intestazione (es. un blocco di un file
+     * diviso per il parsing parallelo), usando le colonne di un altro lettore.
+     */
+    public GtfsCsvReader(ByteBuffer chunk, GtfsCsvReader headerFrom) {
+        this.in = null;
+        if (chunk.hasArray()) {
+            this.source = null;
+            useArray(chunk);
+        } else {
+            this.source = chunk.duplicate();
+            this.buf = new byte[DEFAULT_BUFFER_SIZE];
+            this.windowStart = chunk.position();
+            this.eof = false;
+        }
+        this.header.putAll(headerFrom.header);
+    }
+
+    private void useArray(ByteBuffer data) {
+        this.buf = data.array();
+        this.windowStart = -data.arrayOffset();
+        this.pos = data.arrayOffset() + data.position();
+        this.limit = data.arrayOffset() + data.limit();
+        this.eof = true;
+    }
+
+    private void readHeader() throws IOException {
+        // Salta l'eventuale BOM UTF-8
+        if (fill(3) && (buf[pos] & 0xFF) == 0xEF && (buf[pos + 1] & 0xFF) == 0xBB && (buf[pos + 2] & 0xFF) == 0xBF) {
+            pos += 3;
+        }
+        if (!next()) {
+            return; // File vuoto
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            header.putIfAbsent(getString(i), i);
+        }
+    }
+
+    /**
+     * @return L'indice della colonna con questo nome, o -1 se il file non la contiene.
+     */
+    public int column(String name) {
+        Integer idx = header.get(name);
+        return idx != null ? idx : -1;
+    }
+
+    /**
+     * @return La posizione nel buffer della prossima riga da leggere
+     * (dopo il costruttore: l'inizio dei dati, subito dopo l'intestazione).
+     */
+    public int position() {
+        return windowStart + pos;
+    }
+
+    /**
+     * Avanza alla riga successiva (le righe vuote vengono saltate).
+     * @return false quando il file è finito.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int end = scanRow(pos);
+            if (end < 0) {
+                if (eof) {
+                    return false;
+                }
+                refill();
+                continue;
+            }
+            pos = end;
+            if (fieldCount == 1 && fieldStart[0] == fieldEnd[0]) {
+                continue; // Riga vuota
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Tokenizza la riga che inizia in start.
+     * @return La posizione dopo il fine riga, oppure -1 se nel buffer non c'è
+     * una riga completa (o se non ci sono più righe).
+     */
+    private int scanRow(int start) {
+        if (start >= limit) {
+            return -1;
+        }
+        int i = start;
+        fieldCount = 0;
+        while (true) {
+            ensureFieldCapacity();
+            int f = fieldCount++;
+            fieldEscaped[f] = false;
+            boolean quoted = i < limit && buf[i] == '"';
+
+            if (quoted) {
+                // Campo tra virgolette: le virgole e i fine riga al suo interno non contano
+                int s = ++i;
+                while (true) {
+                    if (i >= limit) {
+                        if (!eof) return -1;
+                        fieldStart[f] = s;
+                        fieldEnd[f] = i;
+                        return i;
+                    }
+                    byte b = buf[i];
+                    if (b == '"') {
+                        if (i + 1 < limit && buf[i + 1] == '"') {
+                            fieldEscaped[f] = true;
+                            i += 2;
+                            continue;
+                        }
+                        if (i + 1 >= limit && !eof) return -1;
+                        break;
+                    }
+                    i++;
+                }
+                fieldStart[f] = s;
+                fieldEnd[f] = i;
+                i++; // Virgoletta di chiusura
+                // Eventuali caratteri spuri prima del separatore vengono ignorati
+                while (i < limit && buf[i] != ',' && buf[i] != '\n') i++;
+                if (i >= limit && !eof) return -1;
+            } else {
+                int s = i;
+                while (i < limit) {
+                    byte b = buf[i];
+                    if (b == ',' || b == '\n') break;
+                    i++;
+                }
+                fieldStart[f] = s;
+                fieldEnd[f] = i;
+            }
+
+            boolean lastField = i >= limit || buf[i] == '\n';
+            if (lastField && !quoted && fieldEnd[f] > fieldStart[f] && buf[fieldEnd[f] - 1] == '\r') {
+                fieldEnd[f]--; // Fine riga Windows
+            }
+            if (i >= limit) {
+                if (!eof) return -1;
+                return i; // Ultima riga senza fine riga
+            }
+            if (lastField) {
+                return i + 1;
+            }
+            i++; // Virgola
+        }
+    }
+
+    private void ensureFieldCapacity() {
+        if (fieldCount == fieldStart.length) {
+            int n = fieldStart.length * 2;
+            fieldStart = Arrays.copyOf(fieldStart, n);
+            fieldEnd = Arrays.copyOf(fieldEnd, n);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, n);
+        }
+    }
+
+    /**
+     * Garantisce (se possibile) almeno n byte disponibili da pos in poi.
+     */
+    private boolean fill(int n) throws IOException {
+        while (limit - pos < n && !eof) {
+            refill();
+        }
+        return limit - pos >= n;
+    }
+
+    /**
+     * Sposta la riga incompleta all'inizio del buffer e legge altri byte dallo stream.
+     * Se una singola riga non entra nel buffer, il buffer viene raddoppiato.
+     */
+    private void refill() throws IOException {
+        int remaining = limit - pos;
+        if (pos == 0 && remaining == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        } else if (remaining > 0) {
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        }
+        windowStart += pos;
+        pos = 0;
+        limit = remaining;
+        int n;
+        if (in != null) {
+            n = in.read(buf, limit, buf.length - limit);
+        } else {
+            n = Math.min(source.remaining(), buf.length - limit);
+            source.get(buf, limit, n);
+            if (n == 0) n = -1;
+        }
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    // --- Accesso ai campi della riga corrente ---
+
+    /**
+     * @return Il numero di campi della riga corrente.
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return true se la colonna manca nella riga o il campo è vuoto.
+     */
+    public boolean isEmpty(int col) {
+        return col < 0 || col >= fieldCount || trimmedStart(col) >= trimmedEnd(col);
+    }
+
+    /**
+     * @return Il campo come String (senza virgolette né spazi esterni), "" se assente.
+     */
+    public String getString(int col) {
+        if (col < 0 || col >= fieldCount) {
+            return "";
+        }
+        int s = trimmedStart(col);
+        int e = trimmedEnd(col);
+        if (s >= e) {
+            return "";
+        }
+        byte[] bytes = copy(s, e);
+        int len = e - s;
+        if (fieldEscaped[col]) {
+            // Riduce "" a "
+            int w = 0;
+            for (int r = 0; r < len; r++) {
+                bytes[w++] = bytes[r];
+                if (bytes[r] == '"' && r + 1 < len && bytes[r + 1] == '"') r++;
+            }
+            len = w;
+        }
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Confronta il campo con una stringa senza allocare nulla
+     * (utile per riconoscere righe consecutive dello stesso trip).
+     * I caratteri non ASCII vengono codificati in UTF-8 al volo e confrontati byte per byte.
+     */
+    public boolean fieldEquals(int col, String value) {
+        if (col < 0 || col >= fieldCount) {
+            return value.isEmpty();
+        }
+        if (fieldEscaped[col]) {
+            return getString(col).equals(value);
+        }
+        int p = trimmedStart(col);
+        int e = trimmedEnd(col);
+        if (e - p < value.length()) {
+            return false; // In UTF-8 ogni carattere occupa almeno un byte
+        }
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.charAt(i);
+            if (c < 0x80) {
+                if (p == e || buf[p++] != c) {
+                    return false;
+                }
+                continue;
+            }
+            if (Character.isSurrogate((char) c)) {
+                // Un surrogato isolato non può uscire dalla decodifica di getString
+                if (!Character.isHighSurrogate((char) c) || i + 1 == value.length()
+                        || !Character.isLowSurrogate(value.charAt(i + 1))) {
+                    return false;
+                }
+                c = Character.toCodePoint((char) c, value.charAt(++i));
+            }
+            p = matchUtf8(c, p, e);
+            if (p < 0) {
+                return false;
+            }
+        }
+        return p == e;
+    }
+
+    /**
+     * @return La posizione dopo la codifica UTF-8 del code point c se i byte da p la
+     * contengono, altrimenti -1.
+     */
+    private int matchUtf8(int c, int p, int e) {
+        int extra = c < 0x800 ? 1 : c < 0x10000 ? 2 : 3;
+        if (e - p < extra + 1) {
+            return -1;
+        }
+        int lead = extra == 1 ? 0xC0 | (c >> 6) : extra == 2 ? 0xE0 | (c >> 12) : 0xF0 | (c >> 18);
+        if (buf[p++] != (byte) lead) {
+            return -1;
+        }
+        for (int shift = 6 * (extra - 1); shift >= 0; shift -= 6) {
+            if (buf[p++] != (byte) (0x80 | ((c >> shift) & 0x3F))) {
+                return -1;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return Il campo come intero, o defaultValue se vuoto o non numerico.
+     */
+    public int getInt(int col, int defaultValue) {
+        if (isEmpty(col)) {
+            return defaultValue;
+        }
+        int i = trimmedStart(col);
+        int e = trimmedEnd(col);
+        boolean negative = false;
+        byte first = buf[i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        if (i >= e) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (; i < e; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9 || value > Integer.MAX_VALUE) {
+                return defaultValue;
+            }
+            value = value * 10 + d;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return defaultValue;
+        }
+        return negative ? (int) -value : (int) value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    /**
+     * @return Il campo come double, o NaN se vuoto o non numerico.
+     */
+    public double getDouble(int col) {
+        if (isEmpty(col)) {
+            return Double.NaN;
+        }
+        int s = trimmedStart(col);
+        int e = trimmedEnd(col);
+        int i = s;
+        boolean negative = false;
+        byte first = buf[i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        // Caso comune (es. "41.901308"): mantissa intera divisa per una potenza di dieci,
+        // esatto finché la mantissa sta in 2^53.
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < e; i++) {
+            byte b = buf[i];
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || digits >= 15) {
+                return slowParseDouble(s, e);
+            }
+            mantissa = mantissa * 10 + d;
+            digits++;
+            if (fraction >= 0) fraction++;
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private double slowParseDouble(int s, int e) {
+        try {
+            return Double.parseDouble(new String(copy(s, e), 0, e - s, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Converte un orario GTFS "H:MM:SS" (anche oltre le 24:00:00) in secondi dalla mezzanotte.
+     * @return I secondi, o -1 se il campo è vuoto o non valido.
+     */
+    public int getTimeSeconds(int col) {
+        if (isEmpty(col)) {
+            return -1;
+        }
+        int e = trimmedEnd(col);
+        int total = 0;
+        int part = 0;
+        int parts = 0;
+        boolean hasDigit = false;
+        for (int i = trimmedStart(col); i < e; i++) {
+            byte b = buf[i];
+            if (b == ':') {
+                if (!hasDigit) return -1;
+                total = total * 60 + part;
+                part = 0;
+                parts++;
+                hasDigit = false;
+            } else {
+                int d = b - '0';
+                if (d < 0 || d > 9) return -1;
+                part = part * 10 + d;
+                hasDigit = true;
+            }
+        }
+        if (parts != 2 || !hasDigit) {
+            return -1;
+        }
+        return total * 60 + part;
+    }
+
+    private int trimmedStart(int col) {
+        int s = fieldStart[col];
+        int e = fieldEnd[col];
+        while (s < e && buf[s] == ' ') s++;
+        return s;
+    }
+
+    private int trimmedEnd(int col) {
+        int s = fieldStart[col];
+        int e = fieldEnd[col];
+        while (e > s && buf[e - 1] == ' ') e--;
+        return e;
+    }
+
+    /**
+     * Copia i byte [s, e) in un array riutilizzabile.
+     */
+    private byte[] copy(int s, int e) {
+        int len = e - s;
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        System.arraycopy(buf, s, scratch, 0, len);
+        return scratch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package it.damose.data;
+
+import it.damose.index.StopDepartureIndex;
+import it.damose.model.FeedIds;
+import it.damose.model.Route;
+import it.damose.model.ServiceCalendar;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Il feed GTFS statico già caricato e collegato (fermate ↔ linee ↔ viaggi),
+ * indipendentemente da dove arriva: dai file CSV o da uno snapshot binario.
+ */
+public class GtfsDataset {
+
+    private final FeedIds ids;
+    private final Map<String, Stop> stops;
+    private final Map<String, Route> routes;
+    private final StopTimeStore stopTimes;
+    private final StopDepartureIndex departures;
+    private final List<Trip> trips;
+    private final ShapeStore shapes;
+    private final ServiceCalendar calendar;
+
+    public GtfsDataset(FeedIds ids, Map<String, Stop> stops, Map<String, Route> routes, StopTimeStore stopTimes,
+                       StopDepartureIndex departures, ShapeStore shapes, ServiceCalendar calendar) {
+        this.ids = ids;
+        this.departures = departures;
+        this.calendar = calendar;
+        this.stops = stops;
+        this.routes = routes;
+        this.stopTimes = stopTimes;
+        this.shapes = shapes;
+        this.trips = new ArrayList<>(stopTimes.tripCount());
+        for (int t = 0; t < stopTimes.tripCount(); t++) {
+            trips.add(stopTimes.trip(t));
+        }
+    }
+
+    public FeedIds getIds() { return ids; }
+    public Map<String, Stop> getStops() { return stops; }
+    public Map<String, Route> getRoutes() { return routes; }
+    public List<Trip> getTrips() { return trips; }
+    public StopTimeStore getStopTimes() { return stopTimes; }
+    public StopDepartureIndex getDepartures() { return departures; }
+    public ShapeStore getShapes() { return shapes; }
+    public ServiceCalendar getCalendar() { return calendar; }
+}
@@ -0,0 +1,279 @@
+package it.damose.data;
+
+import it.damose.index.StopDepartureIndex;
+import it.damose.model.FeedIds;
+import it.damose.model.Route;
+import it.damose.model.ServiceCalendar;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Caricamento del feed come grafo di fasi concorrenti:
+ *
+ * <pre>
+ *   snapshot ──(valido)──────────────────────→ tutto pronto
+ *       └──(assente o obsoleto)
+ *            stops ────┐
+ *            trips ────┤
+ *            st_read ──┴→ stop_times ──┬─────────→ departures ──┐
+ *            routes ───────────────────┴→ link ───────────────┤
+ *            shapes, calendar ────────────────────────────────┴→ dataset
+ * </pre>
+ *
+ * La lettura di stop_times.txt (la decompressione, se il feed è uno .zip) parte
+ * subito, in parallelo con gli altri file, così non si aggiunge al loro parsing.
+ *
+ * Gli identificativi vengono numerati mentre si leggono i file, nei dizionari di
+ * {@link FeedIds}: ogni fase scrive solo nei propri (stops, routes, trips e shapes),
+ * quindi le fasi parallele non si contendono nulla.
+ *
+ * Ogni risultato è esposto come CompletableFuture non appena è pronto: chi usa i
+ * dati (StopController, e quindi la UI) può partire con le sole fermate e ricevere
+ * orari e percorsi man mano che arrivano. Alla fine viene stampato il tempo di ogni fase.
+ */
+public class GtfsLoadPipeline {
+
+    private final GtfsSource source;
+    private final Path snapshotFile; // null = nessuno snapshot
+    private final int parallelism;
+    private final ExecutorService executor;
+    private volatile FeedIds ids = new FeedIds(); // Sostituito da quello dello snapshot, se valido
+
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, long[]> timings = new LinkedHashMap<>(); // fase → {inizio, fine} in ms dall'avvio
+    private volatile String feedKey;
+    private volatile boolean fromSnapshot;
+
+    private final CompletableFuture<Map<String, Stop>> stops = new CompletableFuture<>();
+    private final CompletableFuture<Map<String, Route>> routes = new CompletableFuture<>();
+    private final CompletableFuture<StopTimeStore> stopTimes = new CompletableFuture<>();
+    private final CompletableFuture<StopDepartureIndex> departures = new CompletableFuture<>();
+    private final CompletableFuture<ShapeStore> shapes = new CompletableFuture<>();
+    private final CompletableFuture<ServiceCalendar> calendar = new CompletableFuture<>();
+    private final CompletableFuture<GtfsDataset> dataset = new CompletableFuture<>();
+
+    private GtfsLoadPipeline(GtfsSource source, Path snapshotFile, int parallelism) {
+        this.source = source;
+        this.snapshotFile = snapshotFile;
+        this.parallelism = parallelism;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "gtfs-load-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Avvia il caricamento in background e ritorna subito.
+     *
+     * @param snapshotFile Lo snapshot binario da usare (e da aggiornare), o null per leggere sempre i CSV
+     */
+    public static GtfsLoadPipeline start(GtfsSource source, Path snapshotFile, int parallelism) {
+        GtfsLoadPipeline pipeline = new GtfsLoadPipeline(source, snapshotFile, parallelism);
+        pipeline.run();
+        return pipeline;
+    }
+
+    /** Le fermate di stops.txt (ancora senza le linee, che arrivano con il collegamento). */
+    public CompletableFuture<Map<String, Stop>> stops() { return stops; }
+
+    /** Le linee, già collegate ai loro viaggi e fermate. */
+    public CompletableFuture<Map<String, Route>> routes() { return routes; }
+
+    /** Gli orari; si completa dopo {@link #routes()}, a collegamento concluso. */
+    public CompletableFuture<StopTimeStore> stopTimes() { return stopTimes; }
+
+    /** I passaggi di ogni fermata ordinati per orario (si completa dopo {@link #stopTimes()}). */
+    public CompletableFuture<StopDepartureIndex> departures() { return departures; }
+
+    /** L'indice di shapes.txt (i punti vengono decodificati su richiesta). */
+    public CompletableFuture<ShapeStore> shapes() { return shapes; }
+
+    /** I calendari di servizio (calendar.txt e calendar_dates.txt). */
+    public CompletableFuture<ServiceCalendar> calendar() { return calendar; }
+
+    /**
+     * I dizionari degli identificativi, riempiti dalle fasi man mano che procedono:
+     * vanno letti solo dopo il completamento di {@link #stopTimes()}.
+     */
+    public FeedIds getIds() { return ids; }
+
+    /** L'intero dataset, quando tutte le fasi sono concluse. */
+    public CompletableFuture<GtfsDataset> dataset() { return dataset; }
+
+    private void run() {
+        stage("snapshot", this::loadSnapshot).whenComplete((cached, e) -> {
+            if (cached != null) {
+                fromSnapshot = true;
+                ids = cached.getIds();
+                stops.complete(cached.getStops());
+                routes.complete(cached.getRoutes());
+                stopTimes.complete(cached.getStopTimes());
+                departures.complete(cached.getDepartures());
+                shapes.complete(cached.getShapes());
+                calendar.complete(cached.getCalendar());
+                dataset.complete(cached);
+            } else {
+                runCsv();
+            }
+        });
+
+        dataset.whenComplete((d, e) -> {
+            if (e != null) {
+                System.err.println("GtfsLoadPipeline: caricamento fallito (" + e + ")");
+            } else {
+                System.out.print(timingReport());
+                if (!fromSnapshot && snapshotFile != null && feedKey != null) {
+                    // Lo snapshot viene scritto dopo, senza ritardare chi aspetta il dataset
+                    executor.execute(() -> writeSnapshot(d));
+                }
+            }
+            // Tutte le fasi sono concluse e lo snapshot si scrive dal dataset: la sorgente non serve più
+            closeSource();
+            executor.shutdown(); // I compiti già accodati vengono comunque eseguiti
+        });
+    }
+
+    private void runCsv() {
+        // Il file più grande per primo, così la sua lettura si sovrappone a tutto il resto
+        CompletableFuture<ByteBuffer> stopTimesData = stage("st_read", () -> {
+            try {
+                return source.readAll("stop_times.txt");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        CompletableFuture<Map<String, Stop>> stopsStage = stage("stops", () -> StopsLoader.loadStops(source, ids.stops()));
+        CompletableFuture<Map<String, Route>> routesStage = stage("routes", () -> RouteLoader.loadRoutes(source, ids.routes()));
+        CompletableFuture<ShapeStore> shapesStage = stage("shapes", () -> ShapeLoader.loadShapes(source));
+        CompletableFuture<TripLoader.TripTable> tripsStage = stage("trips",
+                () -> TripLoader.readTrips(source, ids.trips(), ids.shapes()));
+        CompletableFuture<ServiceCalendar> calendarStage = stage("calendar", () -> CalendarLoader.loadCalendar(source));
+
+        forward(stopsStage, stops);
+        forward(shapesStage, shapes);
+        forward(calendarStage, calendar);
+
+        CompletableFuture<StopTimeStore> stopTimesStage = CompletableFuture.allOf(stopsStage, tripsStage, stopTimesData)
+                .thenCompose(v -> stage("stop_times",
+                        // Le fermate di stops.txt hanno già i loro indici: lo store aggiunge solo quelle mancanti
+                        () -> TripLoader.loadStopTimes(stopTimesData.join(), tripsStage.join(), ids.stops(),
+                                parallelism)));
+
+        CompletableFuture<StopTimeStore> linkStage = CompletableFuture.allOf(stopTimesStage, routesStage)
+                .thenCompose(v -> stage("link", () -> {
+                    GtfsLoader.link(routesStage.join(), stopTimesStage.join(), ids);
+                    return stopTimesStage.join();
+                }));
+        // Indipendente dai collegamenti: sfrutta un altro core mentre link scorre lo store
+        CompletableFuture<StopDepartureIndex> departuresStage = stopTimesStage
+                .thenCompose(store -> stage("departures", () -> StopDepartureIndex.build(store)));
+        CompletableFuture.allOf(linkStage, departuresStage).whenComplete((v, e) -> {
+            if (e != null) departures.completeExceptionally(e);
+            else departures.complete(departuresStage.join());
+        });
+
+        linkStage.whenComplete((store, e) -> {
+            if (e != null) {
+                routes.completeExceptionally(e);
+                stopTimes.completeExceptionally(e);
+            } else {
+                routes.complete(routesStage.join());
+                stopTimes.complete(store);
+            }
+        });
+
+        CompletableFuture.allOf(linkStage, departuresStage, shapesStage, calendarStage).whenComplete((v, e) -> {
+            if (e != null) {
+                dataset.completeExceptionally(e);
+            } else {
+                dataset.complete(new GtfsDataset(ids, stopsStage.join(), routesStage.join(), linkStage.join(),
+                        departuresStage.join(), shapesStage.join(), calendarStage.join()));
+            }
+        });
+    }
+
+    private GtfsDataset loadSnapshot() {
+        if (snapshotFile == null) {
+            return null;
+        }
+        try {
+            feedKey = TimetableSnapshot.feedKey(source);
+            return TimetableSnapshot.load(snapshotFile, feedKey);
+        } catch (IOException e) {
+            System.err.println("GtfsLoadPipeline: impossibile verificare lo snapshot (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    private void closeSource() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.err.println("GtfsLoadPipeline: impossibile chiudere " + source + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private void writeSnapshot(GtfsDataset d) {
+        try {
+            TimetableSnapshot.write(snapshotFile, feedKey, d);
+        } catch (IOException e) {
+            System.err.println("GtfsLoadPipeline: impossibile salvare lo snapshot (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Esegue una fase sull'executor registrandone inizio e fine.
+     */
+    private <T> CompletableFuture<T> stage(String name, Supplier<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            long begin = System.currentTimeMillis() - startTime;
+            try {
+                return work.get();
+            } finally {
+                long end = System.currentTimeMillis() - startTime;
+                synchronized (timings) {
+                    timings.put(name, new long[]{begin, end});
+                }
+            }
+        }, executor);
+    }
+
+    private static <T> void forward(CompletableFuture<T> from, CompletableFuture<T> to) {
+        from.whenComplete((value, e) -> {
+            if (e != null) to.completeExceptionally(e);
+            else to.complete(value);
+        });
+    }
+
+    /**
+     * @return I tempi di ogni fase conclusa (inizio -> fine, in ms dall'avvio).
+     */
+    public String timingReport() {
+        StringBuilder sb = new StringBuilder("GtfsLoadPipeline: tempi per fase (ms dall'avvio)\n");
+        long last = 0;
+        synchronized (timings) {
+            for (Map.Entry<String, long[]> e : timings.entrySet()) {
+                long[] t = e.getValue();
+                sb.append(String.format("  %-12s %6d -> %6d  (%d ms)%n", e.getKey(), t[0], t[1], t[1] - t[0]));
+                last = Math.max(last, t[1]);
+            }
+        }
+        sb.append(String.format("  %-12s %6d ms%s%n", "totale", last, fromSnapshot ? " (da snapshot)" : ""));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package it.damose.data;
+
+import it.damose.model.FeedIds;
+import it.damose.model.Route;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+import it.damose.model.TripPattern;
+import it.damose.util.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caricamento unico del feed GTFS statico.
+ *
+ * Ogni file viene letto una sola volta (stops.txt, routes.txt, trips.txt e shapes.txt
+ * in parallelo, poi stop_times.txt che diventa direttamente lo StopTimeStore).
+ * I collegamenti linea → viaggi, linea → pattern e linea → fermate vengono poi
+ * ricavati in un solo passaggio sui trip e sui pattern dello store (senza i controlli
+ * "contains" su liste), prima che le linee diventino visibili alla UI.
+ * Le linee ricevono l'incidenza come array di indici densi, calcolati una volta sola;
+ * il verso opposto (fermata → linee) lo ricava {@link StaticFeed} dalle linee collegate,
+ * perché le fermate sono già pubblicate e non vengono più modificate.
+ */
+public class GtfsLoader {
+
+    /**
+     * Collega viaggi, linee e fermate scorrendo una volta sola i trip e i pattern dello store.
+     *
+     * Le fermate di una linea sono l'unione dei suoi pattern, a partire da quello con
+     * più trip: l'ordine non dipende più dal primo trip del file. Ogni coppia
+     * (linea, fermata) viene registrata una sola volta grazie a un array di "timbri"
+     * indicizzato per fermata: il costo è O(viaggi + fermate dei pattern).
+     */
+    public static void link(Map<String, Route> routes, StopTimeStore store, FeedIds ids) {
+        long start = System.currentTimeMillis();
+
+        // Linea → viaggi, nell'ordine dello store
+        for (int t = 0; t < store.tripCount(); t++) {
+            Trip trip = store.trip(t);
+            Route route = routes.get(trip.getRouteId());
+            if (route != null) {
+                route.addTrip(trip);
+            }
+        }
+
+        // Linea → pattern, dal più frequente (a parità, nell'ordine dello store)
+        Map<String, List<TripPattern>> patternsByRoute = new HashMap<>();
+        for (int p = 0; p < store.patternCount(); p++) {
+            TripPattern pattern = store.pattern(p);
+            if (pattern.tripCount() > 0 && routes.containsKey(pattern.getRouteId())) {
+                patternsByRoute.computeIfAbsent(pattern.getRouteId(), id -> new ArrayList<>()).add(pattern);
+            }
+        }
+        for (Route route : routes.values()) {
+            List<TripPattern> patterns = patternsByRoute.getOrDefault(route.getId(), new ArrayList<>());
+            patterns.sort(Comparator.comparingInt(TripPattern::tripCount).reversed());
+            route.setPatterns(patterns);
+        }
+
+        // Linea → fermate: stamp[s] == k se la fermata s è già stata vista per la linea k
+        int[] stamp = new int[store.stopCount()];
+        Arrays.fill(stamp, -1);
+        IntArrayList routeStops = new IntArrayList(256);
+        int k = 0;
+        for (Route route : routes.values()) {
+            routeStops.clear();
+            for (TripPattern pattern : route.getPatterns()) {
+                for (int s : pattern.getStops()) {
+                    if (stamp[s] == k) continue;
+                    stamp[s] = k;
+                    routeStops.add(s);
+                }
+            }
+            route.setStops(routeStops.toArray(), ids.stops());
+            k++;
+        }
+
+        System.out.println("GtfsLoader: collegamenti calcolati in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
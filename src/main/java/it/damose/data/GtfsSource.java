@@ -0,0 +1,226 @@
+package it.damose.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Da dove leggere i file di un feed GTFS statico.
+ *
+ * Se è disponibile una cartella sul disco, i file vengono mappati in memoria
+ * con FileChannel e analizzati direttamente dai byte mappati (fuori dallo heap,
+ * senza copie né decodifica in UTF-16). Solo quando la cartella (o il singolo
+ * file) manca si ripiega sulle risorse del classpath.
+ *
+ * In alternativa la sorgente può essere direttamente l'archivio .zip pubblicato
+ * dall'agenzia: ogni file viene decompresso in memoria quando serve, senza
+ * estrarre nulla su disco. ZipFile legge le voci in modo indipendente, quindi
+ * le fasi del caricamento possono decomprimere file diversi in parallelo.
+ *
+ * Chi crea la sorgente la chiude quando ha finito di leggerla: i buffer già
+ * restituiti restano validi anche dopo.
+ */
+public class GtfsSource implements AutoCloseable {
+
+    private static final String RESOURCE_DIR = "data/rome_static_gtfs/";
+
+    private final Path directory; // null = solo classpath
+    private final Path zipPath;   // L'archivio .zip, o null
+    private final ZipFile zip;
+    private final Map<String, ZipEntry> zipEntries = new HashMap<>(); // Nome del file (senza cartelle) → voce
+
+    private GtfsSource(Path directory) {
+        this.directory = directory;
+        this.zipPath = null;
+        this.zip = null;
+    }
+
+    private GtfsSource(Path zipPath, ZipFile zip) {
+        this.directory = null;
+        this.zipPath = zipPath;
+        this.zip = zip;
+        // Alcuni feed mettono i file in una sottocartella dell'archivio: conta solo il nome
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+            ZipEntry entry = e.nextElement();
+            if (entry.isDirectory()) continue;
+            String name = entry.getName();
+            zipEntries.putIfAbsent(name.substring(name.lastIndexOf('/') + 1), entry);
+        }
+    }
+
+    /**
+     * @return Una sorgente che legge solo dalle risorse del classpath.
+     */
+    public static GtfsSource classpath() {
+        return new GtfsSource(null);
+    }
+
+    /**
+     * @param path La cartella del feed; se è null o non esiste si usa il classpath.
+     */
+    public static GtfsSource forDirectory(String path) {
+        if (path != null && Files.isDirectory(Paths.get(path))) {
+            return new GtfsSource(Paths.get(path));
+        }
+        if (path != null) {
+            System.out.println("GtfsSource: cartella " + path + " non trovata, uso le risorse del classpath");
+        }
+        return classpath();
+    }
+
+    /**
+     * @param path Un archivio .zip del feed o la sua cartella estratta; se è null
+     *             o non esiste si usa il classpath.
+     */
+    public static GtfsSource forPath(String path) {
+        if (path != null && Files.isRegularFile(Paths.get(path))) {
+            try {
+                return new GtfsSource(Paths.get(path), new ZipFile(path));
+            } catch (IOException e) {
+                System.err.println("GtfsSource: archivio " + path + " illeggibile (" + e.getMessage()
+                        + "), uso le risorse del classpath");
+                return classpath();
+            }
+        }
+        return forDirectory(path);
+    }
+
+    /**
+     * @return La cartella del feed, o null se si legge dal classpath o da un archivio.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Il file nella cartella del feed, o null se non c'è.
+     */
+    private Path file(String fileName) {
+        if (directory == null) {
+            return null;
+        }
+        Path p = directory.resolve(fileName);
+        return Files.isRegularFile(p) ? p : null;
+    }
+
+    /**
+     * Apre un file del feed già pronto per la lettura dell'intestazione.
+     *
+     * @return Il lettore, o null se il file non esiste né su disco né nel classpath.
+     */
+    public GtfsCsvReader open(String fileName) throws IOException {
+        if (file(fileName) != null || zipEntries.containsKey(fileName)) {
+            return new GtfsCsvReader(readAll(fileName));
+        }
+        InputStream in = GtfsSource.class.getClassLoader().getResourceAsStream(RESOURCE_DIR + fileName);
+        return in != null ? new GtfsCsvReader(in) : null;
+    }
+
+    /**
+     * Restituisce l'intero contenuto di un file: mappato in memoria se è su disco,
+     * decompresso dalla sua voce se la sorgente è un archivio, altrimenti letto dal
+     * classpath in un array. Si può chiamare da più thread per file diversi.
+     *
+     * @return Il contenuto, o null se il file non esiste.
+     */
+    public ByteBuffer readAll(String fileName) throws IOException {
+        if (zip != null) {
+            return inflate(fileName);
+        }
+        Path p = file(fileName);
+        if (p != null) {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(fileName + " è troppo grande per essere mappato (" + size + " byte)");
+                }
+                // La mappatura resta valida anche dopo la chiusura del canale
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        try (InputStream in = GtfsSource.class.getClassLoader().getResourceAsStream(RESOURCE_DIR + fileName)) {
+            return in != null ? ByteBuffer.wrap(in.readAllBytes()) : null;
+        }
+    }
+
+    /**
+     * Decomprime una voce dell'archivio direttamente in un buffer della dimensione
+     * indicata nella directory centrale dello zip (una sola allocazione, nessun file temporaneo).
+     */
+    private ByteBuffer inflate(String fileName) throws IOException {
+        ZipEntry entry = zipEntries.get(fileName);
+        if (entry == null) {
+            return null;
+        }
+        long size = entry.getSize();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(fileName + " è troppo grande per essere letto in memoria (" + size + " byte)");
+        }
+        long start = System.currentTimeMillis();
+        byte[] bytes;
+        try (InputStream in = zip.getInputStream(entry)) {
+            bytes = size >= 0 ? in.readNBytes((int) size) : in.readAllBytes();
+        }
+        System.out.println("GtfsSource: " + fileName + " decompresso da " + zipPath.getFileName() + " ("
+                + bytes.length / 1024 + " KB, " + (System.currentTimeMillis() - start) + " ms)");
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Descrive la versione di un file senza leggerlo (nome, dimensione, data di modifica),
+     * per capire se il feed è cambiato dall'ultima volta. Per un archivio si usano
+     * dimensione e CRC della voce, già presenti nella directory centrale.
+     *
+     * @return La descrizione, o null se il file non esiste.
+     */
+    public String fingerprint(String fileName) throws IOException {
+        if (zip != null) {
+            ZipEntry entry = zipEntries.get(fileName);
+            return entry == null ? null : fileName + ":" + entry.getSize() + ":" + Long.toHexString(entry.getCrc());
+        }
+        Path p = file(fileName);
+        if (p != null) {
+            return fileName + ":" + Files.size(p) + ":" + Files.getLastModifiedTime(p).toMillis();
+        }
+        URL url = GtfsSource.class.getClassLoader().getResource(RESOURCE_DIR + fileName);
+        if (url == null) {
+            return null;
+        }
+        URLConnection conn = url.openConnection();
+        try {
+            return fileName + ":" + conn.getContentLengthLong() + ":" + conn.getLastModified();
+        } finally {
+            conn.getInputStream().close(); // Evita di lasciare aperto il jar
+        }
+    }
+
+    /**
+     * Chiude l'archivio, se la sorgente è uno .zip (per cartelle e classpath non c'è nulla da chiudere).
+     */
+    @Override
+    public void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (zipPath != null) {
+            return zipPath.toString();
+        }
+        return directory != null ? directory.toString() : "classpath:" + RESOURCE_DIR;
+    }
+}
@@ -0,0 +1,234 @@
+package it.damose.data;
+
+import it.damose.model.IdDictionary;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+import it.damose.util.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parsing parallelo di stop_times.txt.
+ *
+ * Il file (già in memoria) viene diviso in blocchi di byte allineati ai fine riga;
+ * ogni blocco viene letto da un worker del ForkJoinPool in colonne di int e i
+ * risultati vengono uniti nell'ordine dei blocchi, così il risultato è identico
+ * indipendentemente da quanti thread si usano.
+ *
+ * Si assume (come in tutti i feed GTFS reali) che nessun campo di stop_times.txt
+ * contenga un fine riga tra virgolette.
+ */
+public class ParallelStopTimesLoader {
+
+    /** Proprietà di sistema per fissare il numero di thread (default: tutti i core). */
+    public static final String PARALLELISM_PROPERTY = "damose.gtfs.parallelism";
+
+    // Più blocchi che thread, per bilanciare il carico tra i worker
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * @return Il grado di parallelismo configurato con -Ddamose.gtfs.parallelism,
+     * altrimenti il numero di core disponibili.
+     */
+    public static int defaultParallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Integer.getInteger(PARALLELISM_PROPERTY, cores));
+    }
+
+    /**
+     * Legge stop_times.txt e costruisce lo store a colonne con gli orari di tutti i trip.
+     *
+     * @param data        Il contenuto completo di stop_times.txt
+     * @param trips       I trip di trips.txt; l'indice nell'array è l'indice denso del trip
+     * @param tripIds     trip_id → indice in trips (solo lettura durante il parsing)
+     * @param stopIds     stop_id → indice denso; le fermate assenti da stops.txt vengono aggiunte
+     * @param parallelism Il numero di thread da usare
+     */
+    public static StopTimeStore load(ByteBuffer data, Trip[] trips, IdDictionary tripIds, IdDictionary stopIds,
+                                     int parallelism) throws Exception {
+        long start = System.currentTimeMillis();
+
+        GtfsCsvReader header = new GtfsCsvReader(data.duplicate());
+        int colTrip = header.column("trip_id");
+        int colArrival = header.column("arrival_time");
+        int colStop = header.column("stop_id");
+        int colSequence = header.column("stop_sequence");
+        if (colTrip < 0 || colStop < 0) {
+            System.err.println("stop_times.txt: colonne trip_id/stop_id mancanti!");
+            return new StopTimeStore.Builder().build(trips, stopIds);
+        }
+
+        int[] bounds = splitOnNewlines(data, header.position(), data.limit(), parallelism * CHUNKS_PER_THREAD);
+        int chunks = bounds.length - 1;
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<ChunkResult> results;
+        try {
+            results = pool.invoke(new ChunkTask(data, header, bounds, 0, chunks, tripIds, stopIds,
+                    new int[]{colTrip, colArrival, colStop, colSequence}));
+        } finally {
+            pool.shutdown();
+        }
+
+        // Unione deterministica: blocchi nell'ordine del file, righe nell'ordine del blocco.
+        // Le fermate sconosciute (indice negativo, locale al blocco) ricevono qui l'indice globale.
+        StopTimeStore.Builder builder = new StopTimeStore.Builder();
+        for (ChunkResult r : results) {
+            int[] unknown = new int[r.unknownStops.size()];
+            for (int i = 0; i < unknown.length; i++) {
+                unknown[i] = stopIds.intern(r.unknownStops.get(i));
+            }
+            for (int i = 0; i < r.trip.size(); i++) {
+                int stop = r.stop.get(i);
+                builder.add(r.trip.get(i), stop >= 0 ? stop : unknown[-1 - stop], r.arrival.get(i), r.sequence.get(i));
+            }
+        }
+        StopTimeStore store = builder.build(trips, stopIds);
+
+        System.out.println("ParallelStopTimesLoader: " + store.rowCount() + " stop_times in " + chunks + " blocchi con "
+                + parallelism + " thread (" + (System.currentTimeMillis() - start) + " ms)");
+        System.out.printf("StopTimeStore: %.1f MB con i pattern (%.1f MB in colonne, circa %.1f MB come oggetti StopTime)%n",
+                store.memoryBytes() / 1e6, store.columnMemoryBytes() / 1e6, store.legacyMemoryBytes() / 1e6);
+        return store;
+    }
+
+    /**
+     * Divide [from, to) in circa n intervalli, spostando ogni confine subito dopo un '\n'.
+     */
+    static int[] splitOnNewlines(ByteBuffer data, int from, int to, int n) {
+        int size = to - from;
+        n = Math.max(1, Math.min(n, size / MIN_CHUNK_SIZE));
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(from);
+        for (int i = 1; i < n; i++) {
+            int b = from + (int) ((long) size * i / n);
+            b = Math.max(b, bounds.get(bounds.size() - 1));
+            while (b < to && data.get(b - 1) != '\n') b++;
+            if (b > bounds.get(bounds.size() - 1) && b < to) bounds.add(b);
+        }
+        bounds.add(to);
+
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    /**
+     * Le righe lette da un blocco, per colonne. Una fermata non presente nel dizionario
+     * ha indice -1 - k, dove k è la sua posizione in unknownStops.
+     */
+    private static class ChunkResult {
+        final IntArrayList trip = new IntArrayList(1 << 12);
+        final IntArrayList stop = new IntArrayList(1 << 12);
+        final IntArrayList arrival = new IntArrayList(1 << 12);
+        final IntArrayList sequence = new IntArrayList(1 << 12);
+        final List<String> unknownStops = new ArrayList<>();
+    }
+
+    /**
+     * Divide a metà l'intervallo di blocchi finché ne resta uno, che viene letto;
+     * le liste vengono concatenate mantenendo l'ordine dei blocchi.
+     */
+    private static class ChunkTask extends RecursiveTask<List<ChunkResult>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer data;
+        private final GtfsCsvReader header;
+        private final int[] bounds;
+        private final int from, to;
+        private final IdDictionary tripIds;
+        private final IdDictionary stopIds;
+        private final int[] columns; // trip_id, arrival_time, stop_id, stop_sequence
+
+        ChunkTask(ByteBuffer data, GtfsCsvReader header, int[] bounds, int from, int to,
+                  IdDictionary tripIds, IdDictionary stopIds, int[] columns) {
+            this.data = data;
+            this.header = header;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.tripIds = tripIds;
+            this.stopIds = stopIds;
+            this.columns = columns;
+        }
+
+        @Override
+        protected List<ChunkResult> compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(data, header, bounds, from, mid, tripIds, stopIds, columns);
+                ChunkTask right = new ChunkTask(data, header, bounds, mid, to, tripIds, stopIds, columns);
+                right.fork();
+                List<ChunkResult> result = new ArrayList<>(left.compute());
+                result.addAll(right.join());
+                return result;
+            }
+            List<ChunkResult> result = new ArrayList<>();
+            result.add(parseChunk(bounds[from], bounds[from + 1]));
+            return result;
+        }
+
+        private ChunkResult parseChunk(int start, int end) {
+            int colTrip = columns[0], colArrival = columns[1], colStop = columns[2], colSequence = columns[3];
+            ChunkResult result = new ChunkResult();
+            Map<String, Integer> unknown = new HashMap<>();
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(end).position(start);
+            GtfsCsvReader csv = new GtfsCsvReader(chunk, header);
+            // Le fermate viste a ogni posizione del trip precedente: i trip consecutivi ripetono
+            // spesso la stessa sequenza, e allora la fermata si riconosce dai byte del campo
+            // senza creare la String né cercarla nel dizionario
+            String[] cachedIds = new String[64];
+            int[] cachedStops = new int[64];
+            try {
+                String tripId = null;
+                int trip = -1;
+                int position = 0;
+                while (csv.next()) {
+                    if (tripId == null || !csv.fieldEquals(colTrip, tripId)) {
+                        tripId = csv.getString(colTrip);
+                        trip = tripIds.indexOf(tripId);
+                        position = 0;
+                    }
+                    if (trip < 0) continue; // Trip assente da trips.txt
+
+                    if (position == cachedIds.length) {
+                        cachedIds = Arrays.copyOf(cachedIds, position * 2);
+                        cachedStops = Arrays.copyOf(cachedStops, position * 2);
+                    }
+                    int stop;
+                    if (cachedIds[position] != null && csv.fieldEquals(colStop, cachedIds[position])) {
+                        stop = cachedStops[position];
+                    } else {
+                        String stopId = csv.getString(colStop);
+                        stop = stopIds.indexOf(stopId);
+                        if (stop < 0) {
+                            stop = -1 - unknown.computeIfAbsent(stopId, k -> {
+                                result.unknownStops.add(k);
+                                return result.unknownStops.size() - 1;
+                            });
+                        }
+                        cachedIds[position] = stopId;
+                        cachedStops[position] = stop;
+                    }
+                    position++;
+                    result.trip.add(trip);
+                    result.stop.add(stop);
+                    result.arrival.add(csv.getTimeSeconds(colArrival));
+                    result.sequence.add(csv.getInt(colSequence, -1));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+    }
+}
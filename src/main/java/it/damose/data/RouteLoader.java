@@ -1,5 +1,6 @@
 package it.damose.data;
 
+import it.damose.model.IdDictionary;
 import it.damose.model.Route;
 
 import java.io.*;
@@ -7,27 +8,36 @@ import java.util.*;
 
 public class RouteLoader {
 
-    public static Map<String, Route> loadRoutesFromResources() {
-        Map<String, Route> routes = new HashMap<>();
-
-        InputStream input = RouteLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/routes.txt");
-
-        if (input == null) {
-            System.err.println("routes.txt non trovato nelle risorse!");
-            return routes;
-        }
+    /**
+     * Carica le linee da routes.txt della sorgente indicata, assegnando a ogni linea
+     * l'indice denso del dizionario indicato (nell'ordine di routes.txt).
+     */
+    public static Map<String, Route> loadRoutes(GtfsSource source, IdDictionary routeIds) {
+        Map<String, Route> routes = new LinkedHashMap<>();
+
+        try (GtfsCsvReader csv = source.open("routes.txt")) {
+            if (csv == null) {
+                System.err.println("routes.txt non trovato in " + source + "!");
+                return routes;
+            }
+            int colId = csv.column("route_id");
+            int colShortName = csv.column("route_short_name");
+            int colLongName = csv.column("route_long_name");
+            int colAgency = csv.column("agency_id"); // Mostrato come "tipo" accanto al nome
+            if (colId < 0) {
+                System.err.println("routes.txt: colonna route_id mancante!");
+                return routes;
+            }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-            br.readLine(); // salta intestazione
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-                if (p.length >= 3) {
-                    String id = p[0];
-                    String name = p[2].replace("\"", "");
-                    String type = p[1].replace("\"", "");
-                    routes.put(id, new Route(id, name, type));
+            while (csv.next()) {
+                if (csv.isEmpty(colId)) continue;
+                String id = csv.getString(colId);
+                String name = csv.getString(colShortName);
+                if (name.isEmpty()) {
+                    name = csv.getString(colLongName);
                 }
+                String type = csv.getString(colAgency);
+                routes.put(id, new Route(routeIds.intern(id), id, name, type));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -36,4 +46,4 @@ public class RouteLoader {
         System.out.println("RouteLoader: " + routes.size() + " linee caricate");
         return routes;
     }
-}
\ No newline at end of file
+}
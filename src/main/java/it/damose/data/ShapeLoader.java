@@ -1,63 +1,68 @@
 package it.damose.data;
 
-import it.damose.model.ShapePoint;
+import it.damose.util.IntArrayList;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class ShapeLoader {
 
     /**
-     * Carica tutti i punti di shape da shapes.txt.
+     * Indicizza shapes.txt della sorgente indicata (se è una cartella, il file viene
+     * mappato in memoria).
      *
-     * @return Una Mappa dove la Key è lo shape_id e il Valore è la lista
-     * (ordinata) di punti GPS per quel percorso.
+     * Qui si legge solo lo shape_id di ogni riga, per ricordare dove iniziano e
+     * finiscono le righe di ciascuno shape; nessun punto viene convertito.
+     *
+     * @return Lo store dei percorsi: i punti di ogni shape_id vengono letti solo quando servono.
      */
-    public static Map<String, List<ShapePoint>> loadShapesFromResources() {
-        // Usiamo una HashMap temporanea per raggruppare i punti
-        Map<String, List<ShapePoint>> shapes = new HashMap<>();
-
-        InputStream input = ShapeLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/shapes.txt");
-
-        if (input == null) {
-            System.err.println("shapes.txt non trovato nelle risorse!");
-            return shapes;
-        }
+    public static ShapeStore loadShapes(GtfsSource source) {
+        Map<String, IntArrayList> ranges = new HashMap<>();
+        ByteBuffer data = null;
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-            br.readLine(); // Salta l'intestazione (header)
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-                if (p.length >= 4) {
-                    String shapeId = p[0].replace("\"", "");
-                    double lat = Double.parseDouble(p[1]);
-                    double lon = Double.parseDouble(p[2]);
-                    int sequence = Integer.parseInt(p[3]);
-
-                    ShapePoint sp = new ShapePoint(shapeId, lat, lon, sequence);
+        try {
+            data = source.readAll("shapes.txt");
+            if (data == null) {
+                System.err.println("shapes.txt non trovato in " + source + "!");
+                return ShapeStore.EMPTY;
+            }
+            GtfsCsvReader csv = new GtfsCsvReader(data.duplicate());
+            int colShape = csv.column("shape_id");
+            if (colShape < 0 || csv.column("shape_pt_lat") < 0 || csv.column("shape_pt_lon") < 0
+                    || csv.column("shape_pt_sequence") < 0) {
+                System.err.println("shapes.txt: colonne obbligatorie mancanti!");
+                return ShapeStore.EMPTY;
+            }
 
-                    // Aggiunge il punto alla lista giusta, creando la lista se non esiste
-                    shapes.computeIfAbsent(shapeId, k -> new ArrayList<>()).add(sp);
+            // I punti di uno stesso shape sono di solito consecutivi: un intervallo per ogni blocco di righe
+            String shapeId = null;
+            IntArrayList current = null;
+            int rowStart = csv.position();
+            while (csv.next()) {
+                if (!csv.isEmpty(colShape)) {
+                    if (shapeId == null || !csv.fieldEquals(colShape, shapeId)) {
+                        shapeId = csv.getString(colShape);
+                        current = ranges.computeIfAbsent(shapeId, k -> new IntArrayList(2));
+                        current.add(rowStart);
+                        current.add(csv.position());
+                    } else {
+                        current.set(current.size() - 1, csv.position());
+                    }
+                } else {
+                    shapeId = null; // Riga senza shape_id: chiude l'intervallo corrente
                 }
+                rowStart = csv.position();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        // Ora, ordina tutti i punti di ogni shape in base alla loro sequenza
-        // Questo è fondamentale per disegnare la linea nell'ordine corretto
-        for (List<ShapePoint> points : shapes.values()) {
-            Collections.sort(points);
+        Map<String, int[]> index = new HashMap<>(ranges.size() * 2);
+        for (Map.Entry<String, IntArrayList> e : ranges.entrySet()) {
+            index.put(e.getKey(), e.getValue().toArray());
         }
-
-        System.out.println("ShapeLoader: " + shapes.size() + " percorsi (shapes) caricati");
-        return shapes;
+        System.out.println("ShapeLoader: " + index.size() + " percorsi (shapes) indicizzati");
+        return new ShapeStore(data, index);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package it.damose.data;
+
+import it.damose.model.Shape;
+import it.damose.util.IntArrayList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Accesso su richiesta ai percorsi di shapes.txt.
+ *
+ * All'avvio il file (mappato in memoria) viene solo indicizzato: per ogni shape_id
+ * si ricordano gli intervalli di byte delle sue righe. I punti di uno shape
+ * vengono letti solo la prima volta che servono, convertiti nella forma compatta
+ * di {@link Shape} e tenuti in una cache LRU limitata, così in memoria ci sono
+ * solo i percorsi usati di recente (di solito quello della linea selezionata).
+ *
+ * Dallo snapshot invece arrivano i punti già in forma compatta, tutti di seguito in
+ * un unico array: per ogni shape_id si ricordano posizione, lunghezza e
+ * numero di punti, e leggerne uno è una sola copia di pochi byte, senza shapes.txt.
+ */
+public class ShapeStore {
+
+    /** Quanti shape decodificati tenere in cache al massimo. */
+    private static final int MAX_CACHED_SHAPES = 256;
+
+    public static final ShapeStore EMPTY = new ShapeStore(null, Collections.emptyMap());
+
+    private final ByteBuffer data;              // Il contenuto di shapes.txt (null se assente), o i punti codificati
+    private final boolean encoded;              // true se data contiene i punti codificati (dallo snapshot)
+    // shape_id → coppie {inizio, fine} di byte in shapes.txt, o {posizione, lunghezza, punti} se encoded
+    private final Map<String, int[]> ranges;
+    private final GtfsCsvReader header;
+    private final int colLat, colLon, colSeq;
+
+    private final Map<String, Shape> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Shape> eldest) {
+            return size() > MAX_CACHED_SHAPES;
+        }
+    };
+
+    /**
+     * @param data   Il contenuto completo di shapes.txt, intestazione compresa
+     * @param ranges Per ogni shape_id gli intervalli [inizio, fine) delle sue righe in data
+     */
+    public ShapeStore(ByteBuffer data, Map<String, int[]> ranges) {
+        this(data, ranges, false);
+    }
+
+    private ShapeStore(ByteBuffer data, Map<String, int[]> ranges, boolean encoded) {
+        this.data = data;
+        this.encoded = encoded;
+        this.ranges = ranges;
+        GtfsCsvReader h = null;
+        if (data != null && !encoded) {
+            try {
+                h = new GtfsCsvReader(data.duplicate());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        this.header = h;
+        this.colLat = h != null ? h.column("shape_pt_lat") : -1;
+        this.colLon = h != null ? h.column("shape_pt_lon") : -1;
+        this.colSeq = h != null ? h.column("shape_pt_sequence") : -1;
+    }
+
+    /**
+     * @param points I punti codificati ({@link Shape#encodedPoints()}) di tutti gli shape
+     * @param index  Per ogni shape_id {posizione, lunghezza} dei suoi byte in points e il numero di punti
+     */
+    static ShapeStore ofEncoded(ByteBuffer points, Map<String, int[]> index) {
+        return new ShapeStore(points, index, true);
+    }
+
+    /**
+     * @return Il numero di shape nel file.
+     */
+    public int size() {
+        return ranges.size();
+    }
+
+    public boolean contains(String shapeId) {
+        return ranges.containsKey(shapeId);
+    }
+
+    public Set<String> getShapeIds() {
+        return ranges.keySet();
+    }
+
+    /**
+     * Legge lo shape senza passare dalla cache (per lo snapshot, che li scorre tutti una volta).
+     *
+     * @return Lo shape, o {@link Shape#EMPTY} se non esiste.
+     */
+    Shape read(String shapeId) {
+        int[] r = ranges.get(shapeId);
+        if (r == null) {
+            return Shape.EMPTY;
+        }
+        if (encoded) {
+            byte[] points = new byte[r[1]];
+            data.duplicate().position(r[0]).get(points);
+            return Shape.ofEncoded(shapeId, points, r[2]);
+        }
+        return header != null ? decode(shapeId, r) : Shape.EMPTY;
+    }
+
+    /**
+     * Restituisce i punti dello shape, decodificandoli alla prima richiesta.
+     *
+     * @return Lo shape, o {@link Shape#EMPTY} se non esiste.
+     */
+    public synchronized Shape get(String shapeId) {
+        Shape shape = cache.get(shapeId);
+        if (shape == null) {
+            shape = read(shapeId);
+            if (shape == Shape.EMPTY) {
+                return shape;
+            }
+            cache.put(shapeId, shape);
+        }
+        return shape;
+    }
+
+    private Shape decode(String shapeId, int[] r) {
+        IntArrayList sequence = new IntArrayList(256);
+        int[] lat = new int[256];
+        int[] lon = new int[256];
+        int n = 0;
+        boolean sorted = true;
+
+        for (int i = 0; i < r.length; i += 2) {
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(r[i + 1]).position(r[i]);
+            GtfsCsvReader csv = new GtfsCsvReader(chunk, header);
+            try {
+                while (csv.next()) {
+                    double la = csv.getDouble(colLat);
+                    double lo = csv.getDouble(colLon);
+                    if (Double.isNaN(la) || Double.isNaN(lo)) continue;
+                    if (n == lat.length) {
+                        lat = Arrays.copyOf(lat, n * 2);
+                        lon = Arrays.copyOf(lon, n * 2);
+                    }
+                    int seq = csv.getInt(colSeq, 0);
+                    if (n > 0 && seq < sequence.get(n - 1)) sorted = false;
+                    sequence.add(seq);
+                    lat[n] = Shape.toFixed(la);
+                    lon[n] = Shape.toFixed(lo);
+                    n++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (!sorted) {
+            // Raro: righe fuori ordine. Ordina gli indici per shape_pt_sequence
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Integer.compare(sequence.get(a), sequence.get(b)));
+            int[] sortedLat = new int[n];
+            int[] sortedLon = new int[n];
+            for (int i = 0; i < n; i++) {
+                sortedLat[i] = lat[order[i]];
+                sortedLon[i] = lon[order[i]];
+            }
+            return Shape.encode(shapeId, sortedLat, sortedLon, n);
+        }
+        return Shape.encode(shapeId, lat, lon, n);
+    }
+}
@@ -0,0 +1,287 @@
+package it.damose.data;
+
+import it.damose.index.StopDepartureIndex;
+import it.damose.index.StopGridIndex;
+import it.damose.index.TextSearchIndex;
+import it.damose.index.TransferIndex;
+import it.damose.model.FeedIds;
+import it.damose.model.Route;
+import it.damose.model.ServiceCalendar;
+import it.damose.model.ServiceDay;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Fotografia immutabile del feed statico così come la vedono la UI e il tempo reale.
+ *
+ * Non viene mai modificata: quando arriva una parte nuova (gli orari, i percorsi) o un
+ * feed completamente nuovo se ne crea un'altra e la si sostituisce per intero con un
+ * solo riferimento atomico. Chi legge prende la fotografia corrente una volta e la usa
+ * fino in fondo, senza lock e senza poter vedere un dataset costruito a metà.
+ *
+ * Durante il primo caricamento le parti arrivano una alla volta (prima le fermate, poi
+ * linee e orari, poi i percorsi): una parte è o assente o completa.
+ */
+public final class StaticFeed {
+
+    public static final StaticFeed EMPTY = new StaticFeed(0, Collections.emptyMap());
+
+    private final int generation; // Quale caricamento ha prodotto la fotografia
+
+    private final List<Stop> stops;
+    private final Map<String, Stop> stopMap;
+    private final List<Route> routes;
+    private final Map<String, Route> routeMap;
+    private final List<Trip> trips;
+    private final Map<String, Trip> tripMap;
+    private final Route[] routeByIndex;  // Per indice denso (FeedIds.routes)
+    private final Stop[] stopByIndex;    // Per indice denso (FeedIds.stops), null se non in stops.txt
+    // Fermata → linee (indici densi): le linee della fermata s in stopRoutes[stopRouteStart[s]..stopRouteStart[s+1])
+    private final int[] stopRouteStart;
+    private final int[] stopRoutes;
+    private final FeedIds ids;           // null finché gli orari non sono caricati
+    private final StopTimeStore stopTimes;
+    private final StopDepartureIndex departures;
+    private final ServiceCalendar calendar;
+    private final ShapeStore shapes;
+    private final TextSearchIndex<Stop> stopSearch;
+    private final TextSearchIndex<Route> routeSearch;
+    private final StopGridIndex stopGrid;
+
+    // Dati derivati, ricalcolabili in ogni momento dallo store: non fanno parte dello stato.
+    // Ne servono due (oggi e domani) per i passaggi dopo la mezzanotte.
+    private volatile ServiceDay serviceDay;
+    private volatile ServiceDay otherServiceDay;
+    private volatile TransferIndex transfers;
+
+    private StaticFeed(int generation, Map<String, Stop> stopMap) {
+        this(generation, stopMap, Collections.emptyMap(), Collections.emptyList(), Collections.emptyMap(),
+                new Route[0], new Stop[0], new int[1], new int[0], null, null, null, null, ShapeStore.EMPTY,
+                null, null, null);
+    }
+
+    private StaticFeed(int generation, Map<String, Stop> stopMap, Map<String, Route> routeMap, List<Trip> trips,
+                       Map<String, Trip> tripMap, Route[] routeByIndex, Stop[] stopByIndex, int[] stopRouteStart,
+                       int[] stopRoutes, FeedIds ids, StopTimeStore stopTimes, StopDepartureIndex departures, ServiceCalendar calendar,
+                       ShapeStore shapes, TextSearchIndex<Stop> stopSearch, TextSearchIndex<Route> routeSearch,
+                       StopGridIndex stopGrid) {
+        this.generation = generation;
+        this.stopMap = Collections.unmodifiableMap(stopMap);
+        this.stops = Collections.unmodifiableList(new ArrayList<>(stopMap.values()));
+        this.routeMap = Collections.unmodifiableMap(routeMap);
+        this.routes = Collections.unmodifiableList(new ArrayList<>(routeMap.values()));
+        this.trips = trips;
+        this.tripMap = tripMap;
+        this.routeByIndex = routeByIndex;
+        this.stopByIndex = stopByIndex;
+        this.stopRouteStart = stopRouteStart;
+        this.stopRoutes = stopRoutes;
+        this.ids = ids;
+        this.stopTimes = stopTimes;
+        this.departures = departures;
+        this.calendar = calendar;
+        this.shapes = shapes;
+        this.stopSearch = stopSearch != null ? stopSearch
+                : buildSearch("fermate", this.stops, Stop::getId, Stop::getName);
+        this.routeSearch = routeSearch != null ? routeSearch
+                : buildSearch("linee", this.routes, Route::getId, Route::getName);
+        this.stopGrid = stopGrid != null ? stopGrid : StopGridIndex.build(this.stops);
+    }
+
+    private static <T> TextSearchIndex<T> buildSearch(String what, List<T> items, Function<T, String> id,
+                                                      Function<T, String> name) {
+        long start = System.currentTimeMillis();
+        TextSearchIndex<T> index = TextSearchIndex.build(items, id, name);
+        if (!items.isEmpty()) {
+            System.out.println("StaticFeed: indice di ricerca per " + items.size() + " " + what
+                    + " (" + (System.currentTimeMillis() - start) + " ms)");
+        }
+        return index;
+    }
+
+    /**
+     * @return Una fotografia con le sole fermate (le altre parti arrivano dopo).
+     */
+    public static StaticFeed ofStops(int generation, Map<String, Stop> stops) {
+        return new StaticFeed(generation, stops);
+    }
+
+    /**
+     * @return La fotografia completa di un dataset già caricato.
+     */
+    public static StaticFeed of(int generation, GtfsDataset dataset) {
+        return ofStops(generation, dataset.getStops())
+                .withTimetable(dataset.getIds(), dataset.getRoutes(), dataset.getStopTimes(), dataset.getDepartures(),
+                        dataset.getCalendar())
+                .withShapes(dataset.getShapes());
+    }
+
+    /**
+     * @return Una copia di questa fotografia con linee, viaggi e orari.
+     */
+    public StaticFeed withTimetable(FeedIds ids, Map<String, Route> routes, StopTimeStore store,
+                                    StopDepartureIndex departures, ServiceCalendar calendar) {
+        Route[] routesByIndex = new Route[ids.routes().size()];
+        for (Route r : routes.values()) {
+            if (r.getIndex() >= 0) routesByIndex[r.getIndex()] = r;
+        }
+        Stop[] stopsByIndex = new Stop[store.stopCount()];
+        for (Stop s : stops) {
+            if (s.getIndex() >= 0 && s.getIndex() < stopsByIndex.length) stopsByIndex[s.getIndex()] = s;
+        }
+
+        // Fermata → linee dalle fermate delle linee (già collegate): counting sort per fermata
+        int[] routeStart = new int[store.stopCount() + 1];
+        for (Route r : routesByIndex) {
+            if (r == null) continue;
+            for (int s : r.getStopIndices()) {
+                routeStart[s + 1]++;
+            }
+        }
+        for (int s = 0; s < store.stopCount(); s++) {
+            routeStart[s + 1] += routeStart[s];
+        }
+        int[] routesOfStop = new int[routeStart[store.stopCount()]];
+        int[] next = Arrays.copyOf(routeStart, store.stopCount());
+        for (Route r : routesByIndex) {
+            if (r == null) continue;
+            for (int s : r.getStopIndices()) {
+                routesOfStop[next[s]++] = r.getIndex();
+            }
+        }
+
+        List<Trip> tripList = new ArrayList<>(store.tripCount());
+        Map<String, Trip> byId = new HashMap<>(store.tripCount() * 2);
+        for (int t = 0; t < store.tripCount(); t++) {
+            Trip trip = store.trip(t);
+            tripList.add(trip);
+            byId.put(trip.getId(), trip);
+        }
+        return new StaticFeed(generation, stopMap, routes, Collections.unmodifiableList(tripList),
+                Collections.unmodifiableMap(byId), routesByIndex, stopsByIndex, routeStart, routesOfStop, ids, store, departures, calendar,
+                shapes, stopSearch, null, stopGrid);
+    }
+
+    /**
+     * @return Una copia di questa fotografia con l'indice dei percorsi.
+     */
+    public StaticFeed withShapes(ShapeStore shapes) {
+        StaticFeed copy = new StaticFeed(generation, stopMap, routeMap, trips, tripMap, routeByIndex, stopByIndex,
+                stopRouteStart, stopRoutes, ids, stopTimes, departures, calendar, shapes, stopSearch, routeSearch, stopGrid);
+        copy.serviceDay = serviceDay;
+        copy.otherServiceDay = otherServiceDay;
+        return copy;
+    }
+
+    public int getGeneration() { return generation; }
+    public List<Stop> getStops() { return stops; }
+    public Map<String, Stop> getStopMap() { return stopMap; }
+    public List<Route> getRoutes() { return routes; }
+    public Map<String, Route> getRouteMap() { return routeMap; }
+    public List<Trip> getTrips() { return trips; }
+    public Map<String, Trip> getTripMap() { return tripMap; }
+    public FeedIds getIds() { return ids; }
+    public StopTimeStore getStopTimes() { return stopTimes; }
+    public StopDepartureIndex getDepartures() { return departures; }
+    public ServiceCalendar getCalendar() { return calendar; }
+    public ShapeStore getShapes() { return shapes; }
+    public TextSearchIndex<Stop> getStopSearch() { return stopSearch; }
+    public TextSearchIndex<Route> getRouteSearch() { return routeSearch; }
+    public StopGridIndex getStopGrid() { return stopGrid; }
+
+    /**
+     * @return true quando linee, viaggi e orari sono presenti.
+     */
+    public boolean hasTimetable() {
+        return stopTimes != null;
+    }
+
+    /**
+     * @return La linea con l'indice denso indicato, o null.
+     */
+    public Route routeAt(int index) {
+        return index >= 0 && index < routeByIndex.length ? routeByIndex[index] : null;
+    }
+
+    /**
+     * @return La fermata con l'indice denso indicato, o null se non è in stops.txt.
+     */
+    public Stop stopAt(int index) {
+        return index >= 0 && index < stopByIndex.length ? stopByIndex[index] : null;
+    }
+
+    /**
+     * @return Gli indici delle linee che servono la fermata (vuoto finché gli orari non
+     * sono caricati, o se la fermata non è di questa fotografia).
+     */
+    public int[] routeIndicesOf(Stop stop) {
+        int s = stop.getIndex();
+        if (s < 0 || s >= stopRouteStart.length - 1) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(stopRoutes, stopRouteStart[s], stopRouteStart[s + 1]);
+    }
+
+    /**
+     * @return I trip in servizio nella data indicata, o null se gli orari non ci sono.
+     * Vengono tenute le ultime due date richieste (di solito oggi e domani).
+     */
+    public ServiceDay serviceDay(LocalDate date) {
+        if (stopTimes == null) {
+            return null;
+        }
+        ServiceDay day = cachedServiceDay(date);
+        if (day == null) {
+            synchronized (this) {
+                day = cachedServiceDay(date);
+                if (day == null) {
+                    long start = System.currentTimeMillis();
+                    day = ServiceDay.build(stopTimes, calendar, date);
+                    otherServiceDay = serviceDay;
+                    serviceDay = day;
+                    System.out.println("StaticFeed: " + day.size() + " trip in servizio il " + date
+                            + " su " + stopTimes.tripCount() + " (" + (System.currentTimeMillis() - start) + " ms)");
+                }
+            }
+        }
+        return day;
+    }
+
+    /**
+     * @return I percorsi a piedi tra fermate vicine (calcolati alla prima richiesta),
+     * o null se gli orari non ci sono.
+     */
+    public TransferIndex getTransfers() {
+        if (stopTimes == null) {
+            return null;
+        }
+        TransferIndex t = transfers;
+        if (t == null) {
+            synchronized (this) {
+                t = transfers;
+                if (t == null) {
+                    t = TransferIndex.build(Arrays.copyOf(stopByIndex, stopTimes.stopCount()), stopGrid);
+                    transfers = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    private ServiceDay cachedServiceDay(LocalDate date) {
+        ServiceDay day = serviceDay;
+        if (day != null && day.getDate().equals(date)) return day;
+        day = otherServiceDay;
+        return day != null && day.getDate().equals(date) ? day : null;
+    }
+}
@@ -1,35 +1,43 @@
 package it.damose.data;
 
+import it.damose.model.IdDictionary;
 import it.damose.model.Stop;
-import it.damose.model.Route;
 
 import java.io.*;
 import java.util.*;
 
 public class StopsLoader {
 
-    public static Map<String, Stop> loadStopsFromResources() {
-        Map<String, Stop> stops = new HashMap<>();
-
-        InputStream input = StopsLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/stops.txt");
-
-        if (input == null) {
-            System.err.println("stops.txt non trovato nelle risorse!");
-            return stops;
-        }
+    /**
+     * Carica le fermate da stops.txt della sorgente indicata, assegnando a ogni fermata
+     * l'indice denso del dizionario indicato (nell'ordine di stops.txt).
+     */
+    public static Map<String, Stop> loadStops(GtfsSource source, IdDictionary stopIds) {
+        Map<String, Stop> stops = new LinkedHashMap<>();
+
+        try (GtfsCsvReader csv = source.open("stops.txt")) {
+            if (csv == null) {
+                System.err.println("stops.txt non trovato in " + source + "!");
+                return stops;
+            }
+            int colId = csv.column("stop_id");
+            int colName = csv.column("stop_name");
+            int colLat = csv.column("stop_lat");
+            int colLon = csv.column("stop_lon");
+            if (colId < 0 || colLat < 0 || colLon < 0) {
+                System.err.println("stops.txt: colonne stop_id/stop_lat/stop_lon mancanti!");
+                return stops;
+            }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-            br.readLine(); // salta intestazione
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-                if (p.length >= 6) {
-                    String id = p[0];
-                    String name = p[2].replace("\"", "");
-                    double lat = Double.parseDouble(p[4]);
-                    double lon = Double.parseDouble(p[5]);
-                    stops.put(id, new Stop(id, name, lat, lon));
+            while (csv.next()) {
+                double lat = csv.getDouble(colLat);
+                double lon = csv.getDouble(colLon);
+                if (csv.isEmpty(colId) || Double.isNaN(lat) || Double.isNaN(lon)) {
+                    continue; // Riga incompleta
                 }
+                String id = csv.getString(colId);
+                String name = csv.getString(colName);
+                stops.put(id, new Stop(stopIds.intern(id), id, name, lat, lon));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -38,22 +46,4 @@ public class StopsLoader {
         System.out.println("StopsLoader: " + stops.size() + " fermate caricate");
         return stops;
     }
-
-
-    public static void linkStopsToRoutes(List<Stop> stops, List<Route> routes) {
-        Map<String, Stop> stopMap = new HashMap<>();
-        for (Stop s : stops) {
-            stopMap.put(s.getId(), s);
-        }
-
-        for (Route r : routes) {
-            for (String stopId : r.getAllStopIds()) {
-                Stop s = stopMap.get(stopId);
-                if (s != null) {
-                    s.addRoute(r.getId());
-                }
-            }
-        }
-    }
-
 }
@@ -0,0 +1,400 @@
+package it.damose.data;
+
+import it.damose.index.StopDepartureIndex;
+import it.damose.model.FeedIds;
+import it.damose.model.Route;
+import it.damose.model.ServiceCalendar;
+import it.damose.model.Shape;
+import it.damose.model.Stop;
+import it.damose.model.StopTimeStore;
+import it.damose.model.Trip;
+import it.damose.model.TripPattern;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot binario e versionato dell'intero dataset già collegato
+ * (fermate, linee, viaggi con i loro orari, percorsi).
+ *
+ * Al primo avvio il dataset viene letto dai CSV e salvato qui; agli avvii
+ * successivi lo snapshot viene mappato in memoria e riletto senza alcun parsing
+ * di testo. Lo snapshot porta con sé una chiave calcolata dai file sorgente
+ * (nome, dimensione, data di modifica): se il feed cambia, la chiave non
+ * corrisponde più e lo snapshot viene ricostruito.
+ *
+ * Formato: MAGIC, VERSION, chiave, tabella delle stringhe, poi le sezioni
+ * (dizionario delle fermate, fermate, linee, viaggi, stop_times come pattern,
+ * profili di orari e triple pattern/profilo/partenza per trip, passaggi per fermata,
+ * percorsi già in forma compatta, calendari) dove ogni testo è un indice nella tabella.
+ * Gli stop_times sono blocchi di int letti in blocco, senza ricostruire un oggetto per riga. Gli indici densi
+ * di {@link FeedIds} si ricostruiscono dall'ordine delle sezioni.
+ */
+public class TimetableSnapshot {
+
+    private static final int MAGIC = 0x444D5354; // "DMST"
+    private static final int VERSION = 9;
+
+    /** I file del feed da cui dipende lo snapshot. */
+    private static final String[] SOURCE_FILES = {
+            "stops.txt", "routes.txt", "trips.txt", "stop_times.txt", "shapes.txt",
+            "calendar.txt", "calendar_dates.txt"
+    };
+
+    /**
+     * Calcola la chiave del feed (SHA-256 delle descrizioni dei file sorgente).
+     */
+    public static String feedKey(GtfsSource source) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(("v" + VERSION).getBytes(StandardCharsets.UTF_8));
+            for (String file : SOURCE_FILES) {
+                String fp = source.fingerprint(file);
+                md.update((fp != null ? fp : file + ":-").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Carica lo snapshot, se esiste ed è stato creato dallo stesso feed.
+     *
+     * @return Il dataset, o null se lo snapshot manca, è di un'altra versione o di un altro feed.
+     */
+    public static GtfsDataset load(Path file, String key) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            int headerLength = checkHeader(ch, key);
+            if (headerLength < 0) {
+                System.out.println("TimetableSnapshot: snapshot obsoleto, verrà ricostruito");
+                return null;
+            }
+            ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            in.position(headerLength);
+
+            String[] strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+
+            // Dizionario delle fermate (indice denso → stop_id), comprese quelle citate solo negli orari
+            FeedIds ids = new FeedIds();
+            int stopIdCount = in.getInt();
+            for (int i = 0; i < stopIdCount; i++) {
+                ids.stops().intern(strings[in.getInt()]);
+            }
+
+            // Fermate
+            Map<String, Stop> stops = new LinkedHashMap<>();
+            int stopCount = in.getInt();
+            for (int i = 0; i < stopCount; i++) {
+                String id = strings[in.getInt()];
+                Stop s = new Stop(ids.stopIndex(id), id, strings[in.getInt()], in.getDouble(), in.getDouble());
+                stops.put(s.getId(), s);
+            }
+
+            // Linee, nell'ordine dei loro indici
+            Map<String, Route> routes = new LinkedHashMap<>();
+            int routeCount = in.getInt();
+            for (int i = 0; i < routeCount; i++) {
+                String id = strings[in.getInt()];
+                Route r = new Route(ids.routes().intern(id), id, strings[in.getInt()], strings[in.getInt()]);
+                routes.put(r.getId(), r);
+            }
+
+            // Viaggi: trip_id e shape_id ritrovano gli indici nell'ordine di trips.txt
+            int tripCount = in.getInt();
+            Trip[] tripArray = new Trip[tripCount];
+            for (int i = 0; i < tripCount; i++) {
+                String tripId = strings[in.getInt()];
+                String routeId = strings[in.getInt()];
+                String serviceId = strings[in.getInt()];
+                String shapeId = strings[in.getInt()];
+                ids.trips().intern(tripId);
+                int shapeIndex = shapeId.isEmpty() ? -1 : ids.shapes().intern(shapeId);
+                tripArray[i] = new Trip(tripId, routeId, serviceId, shapeId, shapeIndex);
+            }
+
+            // Stop_times: pattern, profili di orari e, per trip, righe/pattern/profilo/partenza
+            int[] tripStart = readInts(in, tripCount + 1);
+            int[][] patternStops = new int[in.getInt()][];
+            int[][] patternSequences = new int[patternStops.length][];
+            for (int p = 0; p < patternStops.length; p++) {
+                int length = in.getInt();
+                patternStops[p] = readInts(in, length);
+                patternSequences[p] = readInts(in, length);
+            }
+            int[][] profiles = new int[in.getInt()][];
+            for (int p = 0; p < profiles.length; p++) {
+                profiles[p] = readInts(in, in.getInt());
+            }
+            int[] tripPattern = readInts(in, tripCount);
+            int[] tripProfile = readInts(in, tripCount);
+            int[] tripBase = readInts(in, tripCount);
+            StopTimeStore store = new StopTimeStore(tripArray, ids.stops(), tripStart,
+                    patternStops, patternSequences, profiles, tripPattern, tripProfile, tripBase);
+
+            // Passaggi per fermata: salvati perché ricostruirli richiede un ordinamento
+            int[] departureStart = readInts(in, ids.stops().size() + 1);
+            StopDepartureIndex departures = new StopDepartureIndex(store, departureStart,
+                    readInts(in, departureStart[departureStart.length - 1]));
+
+            // I collegamenti non sono salvati: ricalcolarli dalle colonne costa un solo passaggio lineare
+            GtfsLoader.link(routes, store, ids);
+
+            // Percorsi: shape_id → {posizione, lunghezza, punti} nel blocco dei punti codificati,
+            // copiato sullo heap (shapes.txt non viene più letto). Nulla resta legato alla
+            // mappatura, così lo snapshot si può sostituire mentre il feed è in uso.
+            Map<String, int[]> shapeIndex = new HashMap<>();
+            int shapeCount = in.getInt();
+            for (int i = 0; i < shapeCount; i++) {
+                String shapeId = strings[in.getInt()];
+                shapeIndex.put(shapeId, readInts(in, 3));
+            }
+            int shapeBytes = in.getInt();
+            byte[] shapePoints = new byte[shapeBytes];
+            in.get(shapePoints);
+            ShapeStore shapes = shapeCount > 0
+                    ? ShapeStore.ofEncoded(ByteBuffer.wrap(shapePoints), shapeIndex)
+                    : ShapeStore.EMPTY;
+
+            // Calendari di servizio
+            ServiceCalendar calendar = new ServiceCalendar();
+            int serviceCount = in.getInt();
+            for (int i = 0; i < serviceCount; i++) {
+                String serviceId = strings[in.getInt()];
+                calendar.addWeekly(serviceId, in.getInt(), in.getLong(), in.getLong());
+                int added = in.getInt();
+                for (int j = 0; j < added; j++) calendar.addException(serviceId, in.getLong(), true);
+                int removed = in.getInt();
+                for (int j = 0; j < removed; j++) calendar.addException(serviceId, in.getLong(), false);
+            }
+
+            System.out.println("TimetableSnapshot: dataset caricato da " + file + " ("
+                    + (System.currentTimeMillis() - start) + " ms)");
+            return new GtfsDataset(ids, stops, routes, store, departures, shapes, calendar);
+        } catch (Exception e) {
+            System.err.println("TimetableSnapshot: snapshot illeggibile (" + e + "), verrà ricostruito");
+            return null;
+        }
+    }
+
+    /**
+     * Legge e verifica l'intestazione (MAGIC, VERSION, chiave) con una lettura normale,
+     * prima di mappare il file: uno snapshot obsoleto non resta mappato fino al GC
+     * (su Windows impedirebbe di sostituirlo con quello nuovo).
+     *
+     * @return La lunghezza dell'intestazione, o -1 se lo snapshot non è di questa versione o di questo feed.
+     */
+    private static int checkHeader(FileChannel ch, String key) throws IOException {
+        byte[] expected = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(12 + expected.length);
+        while (header.hasRemaining()) {
+            if (ch.read(header) < 0) break;
+        }
+        header.flip();
+        if (header.remaining() < header.capacity() || header.getInt() != MAGIC || header.getInt() != VERSION
+                || header.getInt() != expected.length) {
+            return -1;
+        }
+        byte[] actual = new byte[expected.length];
+        header.get(actual);
+        return Arrays.equals(expected, actual) ? header.capacity() : -1;
+    }
+
+    /**
+     * Scrive lo snapshot in un file temporaneo e poi lo sostituisce in modo atomico,
+     * così un'interruzione a metà non lascia mai uno snapshot corrotto.
+     * Le scritture sono in serie: un ricaricamento può finire mentre il caricamento
+     * precedente sta ancora salvando lo stesso file. La lettura non aspetta: vede
+     * sempre il file vecchio o quello nuovo, mai uno a metà.
+     */
+    public static synchronized void write(Path file, String key, GtfsDataset dataset) throws IOException {
+        long start = System.currentTimeMillis();
+        StringTable table = new StringTable();
+
+        // Prima passata: raccoglie tutte le stringhe nella tabella
+        for (Stop s : dataset.getStops().values()) {
+            table.add(s.getId());
+            table.add(s.getName());
+        }
+        for (Route r : dataset.getRoutes().values()) {
+            table.add(r.getId());
+            table.add(r.getName());
+            table.add(r.getType());
+        }
+        StopTimeStore store = dataset.getStopTimes();
+        for (int i = 0; i < store.stopCount(); i++) table.add(store.stopId(i));
+        for (Trip t : dataset.getTrips()) {
+            table.add(t.getId());
+            table.add(t.getRouteId());
+            table.add(t.getServiceId());
+            table.add(t.getShapeId());
+        }
+        for (String shapeId : dataset.getShapes().getShapeIds()) table.add(shapeId);
+        for (ServiceCalendar.Service s : dataset.getCalendar().getServices()) table.add(s.getId());
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "timetable", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, key);
+
+                out.writeInt(table.strings.size());
+                for (String s : table.strings) writeString(out, s);
+
+                out.writeInt(store.stopCount());
+                for (int i = 0; i < store.stopCount(); i++) out.writeInt(table.ref(store.stopId(i)));
+
+                out.writeInt(dataset.getStops().size());
+                for (Stop s : dataset.getStops().values()) {
+                    out.writeInt(table.ref(s.getId()));
+                    out.writeInt(table.ref(s.getName()));
+                    out.writeDouble(s.getLat());
+                    out.writeDouble(s.getLon());
+                }
+
+                out.writeInt(dataset.getRoutes().size());
+                for (Route r : dataset.getRoutes().values()) {
+                    out.writeInt(table.ref(r.getId()));
+                    out.writeInt(table.ref(r.getName()));
+                    out.writeInt(table.ref(r.getType()));
+                }
+
+                out.writeInt(store.tripCount());
+                for (int t = 0; t < store.tripCount(); t++) {
+                    Trip trip = store.trip(t);
+                    out.writeInt(table.ref(trip.getId()));
+                    out.writeInt(table.ref(trip.getRouteId()));
+                    out.writeInt(table.ref(trip.getServiceId()));
+                    out.writeInt(table.ref(trip.getShapeId()));
+                }
+
+                int rows = store.rowCount();
+                for (int t = 0; t <= store.tripCount(); t++) out.writeInt(t < store.tripCount() ? store.rowStart(t) : rows);
+                out.writeInt(store.patternCount());
+                for (int p = 0; p < store.patternCount(); p++) {
+                    TripPattern pattern = store.pattern(p);
+                    out.writeInt(pattern.stopCount());
+                    for (int v : pattern.getStops()) out.writeInt(v);
+                    for (int v : pattern.getSequences()) out.writeInt(v);
+                }
+                out.writeInt(store.profileCount());
+                for (int p = 0; p < store.profileCount(); p++) {
+                    out.writeInt(store.profile(p).length);
+                    for (int v : store.profile(p)) out.writeInt(v);
+                }
+                for (int t = 0; t < store.tripCount(); t++) out.writeInt(store.patternOf(t));
+                for (int t = 0; t < store.tripCount(); t++) out.writeInt(store.profileOf(t));
+                for (int t = 0; t < store.tripCount(); t++) out.writeInt(store.baseOf(t));
+
+                for (int v : dataset.getDepartures().getStopStart()) out.writeInt(v);
+                for (int v : dataset.getDepartures().getRows()) out.writeInt(v);
+
+                // I punti di ogni shape vengono letti qui una volta sola: l'indice precede il blocco dei punti
+                ShapeStore shapes = dataset.getShapes();
+                List<Shape> shapeList = new ArrayList<>(shapes.size());
+                int shapeBytes = 0;
+                out.writeInt(shapes.size());
+                for (String shapeId : shapes.getShapeIds()) {
+                    Shape shape = shapes.read(shapeId);
+                    shapeList.add(shape);
+                    out.writeInt(table.ref(shapeId));
+                    out.writeInt(shapeBytes);
+                    out.writeInt(shape.encodedPoints().length);
+                    out.writeInt(shape.size());
+                    shapeBytes += shape.encodedPoints().length;
+                }
+                out.writeInt(shapeBytes);
+                for (Shape shape : shapeList) out.write(shape.encodedPoints());
+
+                out.writeInt(dataset.getCalendar().getServices().size());
+                for (ServiceCalendar.Service s : dataset.getCalendar().getServices()) {
+                    out.writeInt(table.ref(s.getId()));
+                    out.writeInt(s.getDayMask());
+                    out.writeLong(s.getStartDay());
+                    out.writeLong(s.getEndDay());
+                    out.writeInt(s.getAddedDays().size());
+                    for (long day : s.getAddedDays()) out.writeLong(day);
+                    out.writeInt(s.getRemovedDays().size());
+                    for (long day : s.getRemovedDays()) out.writeLong(day);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Dopo lo spostamento non esiste più: resta solo se scrittura o sostituzione sono fallite
+            Files.deleteIfExists(tmp);
+        }
+        System.out.println("TimetableSnapshot: snapshot salvato in " + file + " ("
+                + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Legge n int consecutivi con una sola copia in blocco.
+     */
+    private static int[] readInts(ByteBuffer in, int n) {
+        int[] values = new int[n];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * n);
+        return values;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Tabella delle stringhe distinte: ogni testo viene scritto (e riletto) una volta sola. */
+    private static class StringTable {
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> refs = new HashMap<>();
+
+        StringTable() {
+            add(""); // Usata anche per i campi null
+        }
+
+        void add(String s) {
+            if (s != null && !refs.containsKey(s)) {
+                refs.put(s, strings.size());
+                strings.add(s);
+            }
+        }
+
+        int ref(String s) {
+            return refs.get(s == null ? "" : s);
+        }
+    }
+}
@@ -1,93 +1,105 @@
 package it.damose.data;
 
-import it.damose.model.Route;
+import it.damose.model.IdDictionary;
+import it.damose.model.StopTimeStore;
 import it.damose.model.Trip;
-import it.damose.model.StopTime;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class TripLoader {
 
-    public static List<Trip> loadTripsFromResources() {
-        // Prima carica i trip base da trips.txt
-        Map<String, Trip> tripMap = new HashMap<>();
+    /**
+     * I trip di trips.txt con il dizionario trip_id → indice denso (l'indice nell'array).
+     */
+    public static class TripTable {
+        private final Trip[] trips;
+        private final IdDictionary tripIds;
 
-        InputStream tripInput = TripLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/trips.txt");
-        if (tripInput == null) {
-            System.err.println("trips.txt non trovato!");
-            return new ArrayList<>();
+        TripTable(Trip[] trips, IdDictionary tripIds) {
+            this.trips = trips;
+            this.tripIds = tripIds;
         }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(tripInput))) {
-            String line = br.readLine(); // salta intestazione
-            while ((line = br.readLine()) != null) {
-                String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+        public Trip[] getTrips() { return trips; }
+        public IdDictionary getTripIds() { return tripIds; }
+    }
 
-                // Controlla che ci siano abbastanza colonne (shape_id è all'indice 6)
-                if (p.length >= 7) {
-                    String routeId = p[0].replace("\"", "").trim();
-                    String tripId = p[2].replace("\"", "").trim();
-                    String shapeId = p[6].replace("\"", "").trim(); // Leggi shape_id
+    /**
+     * Legge solo trips.txt (i trip base, senza orari), riempiendo i dizionari dei trip_id e
+     * degli shape_id indicati. route_id e service_id si ripetono su migliaia di
+     * righe: ogni valore distinto viene tenuto in memoria una volta sola.
+     */
+    public static TripTable readTrips(GtfsSource source, IdDictionary tripIds, IdDictionary shapeIds) {
+        List<Trip> trips = new ArrayList<>();
+        Map<String, String> shared = new HashMap<>();
 
-                    // Chiama il nuovo costruttore di Trip (con 3 argomenti)
-                    Trip trip = new Trip(tripId, routeId, shapeId);
-                    tripMap.put(tripId, trip);
-                }
+        try (GtfsCsvReader csv = source.open("trips.txt")) {
+            if (csv == null) {
+                System.err.println("trips.txt non trovato!");
+                return new TripTable(new Trip[0], tripIds);
+            }
+            int colRoute = csv.column("route_id");
+            int colTrip = csv.column("trip_id");
+            int colService = csv.column("service_id");
+            int colShape = csv.column("shape_id"); // Facoltativa: -1 se assente
+            if (colRoute < 0 || colTrip < 0) {
+                System.err.println("trips.txt: colonne route_id/trip_id mancanti!");
+                return new TripTable(new Trip[0], tripIds);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        System.out.println("TripLoader: " + tripMap.size() + " trip base caricati");
-
-        // Ora carica gli stop_times e associali ai trip
-        InputStream stopTimesInput = TripLoader.class.getClassLoader().getResourceAsStream("data/rome_static_gtfs/stop_times.txt");
-        if (stopTimesInput == null) {
-            System.err.println("stop_times.txt non trovato!");
-            return new ArrayList<>(tripMap.values());
-        }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(stopTimesInput))) {
-            String line = br.readLine(); // salta intestazione
-            while ((line = br.readLine()) != null) {
-                String[] p = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-                if (p.length >= 4) {
-                    String tripId = p[0].replace("\"", "").trim();
-                    String arrivalTime = p[1].replace("\"", "").trim();
-                    String stopId = p[3].replace("\"", "").trim();
+            while (csv.next()) {
+                if (csv.isEmpty(colTrip)) continue;
+                String tripId = csv.getString(colTrip);
+                if (tripIds.indexOf(tripId) >= 0) continue; // trip_id duplicato
+                tripIds.intern(tripId);
 
-                    // Trova il viaggio corrispondente
-                    Trip trip = tripMap.get(tripId);
-                    if (trip != null) {
-                        // Aggiungi l'orario della fermata al viaggio
-                        StopTime st = new StopTime(tripId, stopId, arrivalTime);
-                        trip.addStopTime(st);
-                    }
-                }
+                String routeId = shared.computeIfAbsent(csv.getString(colRoute), k -> k);
+                String serviceId = shared.computeIfAbsent(csv.getString(colService), k -> k);
+                int shapeIndex = csv.isEmpty(colShape) ? -1 : shapeIds.intern(csv.getString(colShape));
+                String shapeId = shapeIndex >= 0 ? shapeIds.idOf(shapeIndex) : "";
+                trips.add(new Trip(tripId, routeId, serviceId, shapeId, shapeIndex));
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        System.out.println("TripLoader: stop_times caricati per i trip");
-        return new ArrayList<>(tripMap.values());
+        System.out.println("TripLoader: " + trips.size() + " trip base caricati");
+        return new TripTable(trips.toArray(new Trip[0]), tripIds);
     }
 
     /**
-     * Collega i viaggi (Trips) alle rispettive linee (Routes).
+     * Carica gli stop_times dei trip già letti da trips.txt, dal contenuto di
+     * stop_times.txt già letto (o decompresso) da chi chiama.
+     *
+     * @param data    Il contenuto completo di stop_times.txt, o null se il file manca
+     * @param trips   I trip restituiti da {@link #readTrips(GtfsSource, IdDictionary, IdDictionary)}
+     * @param stopIds Il dizionario delle fermate (di solito già riempito da stops.txt)
+     * @return Lo store con gli orari; contiene tutti i trip di trips.txt, anche quelli senza orari
      */
-    public static void linkTripsToRoutes(List<Trip> trips, List<Route> routes) {
-        Map<String, Route> routeMap = new HashMap<>();
-        for (Route r : routes) {
-            routeMap.put(r.getId(), r);
-        }
+    public static StopTimeStore loadStopTimes(ByteBuffer data, TripTable trips, IdDictionary stopIds,
+                                              int parallelism) {
+        Trip[] tripArray = trips.getTrips();
 
-        for (Trip t : trips) {
-            Route r = routeMap.get(t.getRouteId());
-            if (r != null) {
-                r.addTrip(t);
+        // Gli stop_times vengono caricati in colonne, indicizzati per trip.
+        // stop_times.txt è di gran lunga il file più grande: lo dividiamo in blocchi
+        // da analizzare in parallelo, direttamente dai byte mappati quando è su disco.
+        StopTimeStore store = null;
+        try {
+            if (data == null) {
+                System.err.println("stop_times.txt non trovato!");
+            } else {
+                store = ParallelStopTimesLoader.load(data, tripArray, trips.getTripIds(), stopIds, parallelism);
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (store == null) {
+            store = new StopTimeStore.Builder().build(tripArray, stopIds);
         }
+
+        System.out.println("TripLoader: stop_times caricati per i trip");
+        return store;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package it.damose.index;
+
+import it.damose.model.ServiceDay;
+import it.damose.model.StopTimeStore;
+
+import java.util.Arrays;
+
+/**
+ * Intervalli di servizio [primo orario, ultimo orario] dei trip di una {@link ServiceDay},
+ * ordinati per inizio e raggruppati per minuto.
+ *
+ * Serve a chi segue i veicoli nel tempo (la simulazione sulla mappa): invece di
+ * scorrere tutti i trip del giorno a ogni aggiornamento basta far avanzare un puntatore
+ * sui trip che partono tra l'aggiornamento precedente e adesso. Il raggruppamento
+ * per minuto porta direttamente al primo trip che parte da un certo orario, per
+ * ripartire da un istante qualsiasi (avvio, cambio di feed, orologio spostato).
+ *
+ * Gli orari sono in secondi dalla mezzanotte della data, già corretti con lo
+ * scostamento della ServiceDay (negativi per i trip di ieri partiti prima della mezzanotte).
+ */
+public class ActiveTripIndex {
+
+    private static final int DAY_BIAS = 2 * ServiceDay.SECONDS_PER_DAY; // Rende positivi gli orari per l'ordinamento
+
+    private final ServiceDay day;
+    private final int[] entries;     // Posizioni nella ServiceDay, per inizio crescente
+    private final int[] starts;      // Primo orario di ogni voce
+    private final int[] ends;        // Ultimo orario di ogni voce
+    private final int firstMinute;   // Minuto del primo inizio
+    private final int[] minuteStart; // minuteStart[m] = prima voce che parte dal minuto firstMinute + m in poi
+    private final int maxDuration;   // Durata del trip più lungo, in secondi
+
+    private ActiveTripIndex(ServiceDay day, int[] entries, int[] starts, int[] ends, int firstMinute,
+                            int[] minuteStart, int maxDuration) {
+        this.day = day;
+        this.entries = entries;
+        this.starts = starts;
+        this.ends = ends;
+        this.firstMinute = firstMinute;
+        this.minuteStart = minuteStart;
+        this.maxDuration = maxDuration;
+    }
+
+    /**
+     * Costruisce l'indice. I trip con meno di due orari non circolano e vengono esclusi.
+     */
+    public static ActiveTripIndex build(StopTimeStore store, ServiceDay day) {
+        long start = System.currentTimeMillis();
+
+        // Inizio (spostato in positivo) nei 32 bit alti e posizione nella ServiceDay in quelli bassi
+        long[] keys = new long[day.size()];
+        int[] endByEntry = new int[day.size()];
+        int n = 0;
+        for (int d = 0; d < day.size(); d++) {
+            int trip = day.tripAt(d);
+            int first = -1;
+            int last = -1;
+            for (int row = store.rowStart(trip); row < store.rowEnd(trip); row++) {
+                int arrival = store.arrivalOf(trip, row);
+                if (arrival < 0) continue; // Orario assente
+                if (first < 0) first = arrival;
+                last = arrival;
+            }
+            if (first < 0 || last <= first) continue;
+            keys[n++] = ((long) (first + day.offsetAt(d) + DAY_BIAS) << 32) | d;
+            endByEntry[d] = last + day.offsetAt(d);
+        }
+        keys = Arrays.copyOf(keys, n);
+        Arrays.sort(keys);
+
+        int[] entries = new int[n];
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int maxDuration = 0;
+        for (int i = 0; i < n; i++) {
+            entries[i] = (int) keys[i];
+            starts[i] = (int) (keys[i] >>> 32) - DAY_BIAS;
+            ends[i] = endByEntry[entries[i]];
+            maxDuration = Math.max(maxDuration, ends[i] - starts[i]);
+        }
+
+        int firstMinute = n > 0 ? Math.floorDiv(starts[0], 60) : 0;
+        int minutes = n > 0 ? Math.floorDiv(starts[n - 1], 60) - firstMinute + 1 : 0;
+        int[] minuteStart = new int[minutes + 1];
+        int i = 0;
+        for (int m = 0; m <= minutes; m++) {
+            while (i < n && Math.floorDiv(starts[i], 60) - firstMinute < m) i++;
+            minuteStart[m] = i;
+        }
+
+        System.out.println("ActiveTripIndex: " + n + " trip in " + minutes + " minuti, il più lungo "
+                + maxDuration / 60 + " min (" + (System.currentTimeMillis() - start) + " ms)");
+        return new ActiveTripIndex(day, entries, starts, ends, firstMinute, minuteStart, maxDuration);
+    }
+
+    public ServiceDay getDay() { return day; }
+    public int size() { return entries.length; }
+
+    /** @return La posizione nella ServiceDay della voce i. */
+    public int entryAt(int i) { return entries[i]; }
+
+    /** @return Il primo orario della voce i. */
+    public int startAt(int i) { return starts[i]; }
+
+    /** @return L'ultimo orario della voce i. */
+    public int endAt(int i) { return ends[i]; }
+
+    /** @return La durata del trip più lungo, in secondi. */
+    public int maxDuration() { return maxDuration; }
+
+    /**
+     * @return La prima voce che parte all'orario indicato o dopo (size() se nessuna).
+     */
+    public int firstStartingFrom(int seconds) {
+        int m = Math.floorDiv(seconds, 60) - firstMinute;
+        if (m < 0) return 0;
+        if (m >= minuteStart.length - 1) return entries.length;
+        int i = minuteStart[m];
+        while (i < entries.length && starts[i] < seconds) i++;
+        return i;
+    }
+}
@@ -0,0 +1,120 @@
+package it.damose.index;
+
+import java.util.Arrays;
+
+/**
+ * BK-tree sulle parole di un vocabolario, per trovare quelle a distanza di modifica
+ * (Levenshtein) limitata da una parola data senza confrontarle tutte.
+ *
+ * Ogni nodo tiene i figli etichettati con la loro distanza dal nodo; per la
+ * disuguaglianza triangolare, cercando entro k da una parola a distanza d dal nodo
+ * basta scendere nei figli con etichetta tra d-k e d+k.
+ *
+ * I nodi sono gli indici delle parole nel vocabolario e l'albero è tutto in array:
+ * primo figlio, fratello successivo ed etichetta per ogni nodo.
+ */
+public final class BkTree {
+
+    /** Ricevitore dei risultati di {@link #search}. */
+    public interface Match {
+        void accept(int word, int distance);
+    }
+
+    private static final int CHECK_EVERY = 64; // Nodi visitati tra un controllo del tempo e l'altro
+
+    private final String[] words;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] edge;       // Distanza del nodo dal padre
+
+    private BkTree(String[] words, int[] firstChild, int[] nextSibling, int[] edge) {
+        this.words = words;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.edge = edge;
+    }
+
+    /**
+     * Costruisce l'albero con le parole nell'ordine dato (la prima è la radice).
+     */
+    public static BkTree build(String[] words) {
+        int n = words.length;
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        int[] edge = new int[n];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+
+        for (int w = 1; w < n; w++) {
+            int node = 0;
+            while (true) {
+                int d = distance(words[w], words[node]);
+                if (d == 0) break; // Parola ripetuta: già presente
+                int child = firstChild[node];
+                while (child >= 0 && edge[child] != d) child = nextSibling[child];
+                if (child < 0) {
+                    edge[w] = d;
+                    nextSibling[w] = firstChild[node];
+                    firstChild[node] = w;
+                    break;
+                }
+                node = child;
+            }
+        }
+        return new BkTree(words, firstChild, nextSibling, edge);
+    }
+
+    /**
+     * Passa a match tutte le parole entro maxDistance da query.
+     *
+     * @param deadline Istante (System.nanoTime) oltre il quale la ricerca si ferma
+     * @return false se la ricerca è stata interrotta dalla scadenza (risultati parziali).
+     */
+    public boolean search(String query, int maxDistance, long deadline, Match match) {
+        if (words.length == 0) {
+            return true;
+        }
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        int visited = 0;
+        while (top > 0) {
+            if (++visited % CHECK_EVERY == 0 && System.nanoTime() > deadline) {
+                return false;
+            }
+            int node = stack[--top];
+            int d = distance(query, words[node]);
+            if (d <= maxDistance) match.accept(node, d);
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (Math.abs(edge[child] - d) <= maxDistance) {
+                    if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = child;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return La distanza di Levenshtein tra a e b (inserimenti, cancellazioni, sostituzioni).
+     */
+    public static int distance(String a, String b) {
+        if (a.equals(b)) return 0;
+        int m = b.length();
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= m; j++) {
+                int cost = c == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m];
+    }
+}
@@ -0,0 +1,131 @@
+package it.damose.index;
+
+import it.damose.model.Shape;
+
+import java.util.Arrays;
+
+/**
+ * Un percorso decodificato con la distanza progressiva (in metri) di ogni punto
+ * dall'inizio, per muoversi lungo lo shape invece che in linea retta.
+ *
+ * Le distanze cumulative sono crescenti, quindi "il punto a d metri dall'inizio"
+ * è una ricerca binaria più un'interpolazione sul segmento trovato. Le fermate
+ * vengono proiettate una volta sola sul percorso ({@link #project}), così la
+ * posizione di un veicolo tra due fermate diventa una distanza da convertire in
+ * coordinate.
+ *
+ * Le distanze sono calcolate su un piano locale (equirettangolare), più che
+ * sufficiente alla scala di un percorso urbano.
+ */
+public final class ShapeGeometry {
+
+    private static final double METERS_PER_DEG = 111_320.0;
+
+    private final double[] lats;
+    private final double[] lons;
+    private final double[] distances; // distances[i] = metri dal primo punto al punto i
+    private final double metersPerDegLon;
+
+    private ShapeGeometry(double[] lats, double[] lons, double[] distances, double metersPerDegLon) {
+        this.lats = lats;
+        this.lons = lons;
+        this.distances = distances;
+        this.metersPerDegLon = metersPerDegLon;
+    }
+
+    /**
+     * Decodifica i punti dello shape e ne calcola le distanze progressive.
+     *
+     * @return La geometria, o null se lo shape ha meno di due punti.
+     */
+    public static ShapeGeometry of(Shape shape) {
+        int n = shape.size();
+        if (n < 2) {
+            return null;
+        }
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        Shape.PointIterator it = shape.points();
+        int i = 0;
+        while (it.next()) {
+            lats[i] = it.lat();
+            lons[i] = it.lon();
+            i++;
+        }
+        double metersPerDegLon = METERS_PER_DEG * Math.cos(Math.toRadians(lats[0]));
+        double[] distances = new double[n];
+        for (int k = 1; k < n; k++) {
+            double dx = (lons[k] - lons[k - 1]) * metersPerDegLon;
+            double dy = (lats[k] - lats[k - 1]) * METERS_PER_DEG;
+            distances[k] = distances[k - 1] + Math.sqrt(dx * dx + dy * dy);
+        }
+        return new ShapeGeometry(lats, lons, distances, metersPerDegLon);
+    }
+
+    /**
+     * @return La lunghezza del percorso, in metri.
+     */
+    public double length() {
+        return distances[distances.length - 1];
+    }
+
+    /**
+     * Proietta un punto (es. una fermata) sul percorso.
+     *
+     * Si cercano solo i segmenti da fromDistance in avanti: le fermate di un trip
+     * vanno proiettate in ordine, e così un percorso ad anello (o che ripassa per
+     * la stessa strada) non riporta indietro una fermata sul primo passaggio.
+     * A parità di distanza vince il segmento più vicino a fromDistance.
+     *
+     * @return La distanza dall'inizio del percorso del punto più vicino.
+     */
+    public double project(double lat, double lon, double fromDistance) {
+        int first = segmentAt(fromDistance);
+        double px = lon * metersPerDegLon;
+        double py = lat * METERS_PER_DEG;
+        double best = Double.MAX_VALUE;
+        double bestDistance = fromDistance;
+        for (int i = first; i < lats.length - 1; i++) {
+            double ax = lons[i] * metersPerDegLon;
+            double ay = lats[i] * METERS_PER_DEG;
+            double bx = lons[i + 1] * metersPerDegLon - ax;
+            double by = lats[i + 1] * METERS_PER_DEG - ay;
+            double len2 = bx * bx + by * by;
+            double t = len2 == 0 ? 0 : ((px - ax) * bx + (py - ay) * by) / len2;
+            t = Math.max(0, Math.min(1, t));
+            double dx = ax + t * bx - px;
+            double dy = ay + t * by - py;
+            double d2 = dx * dx + dy * dy;
+            if (d2 < best) {
+                best = d2;
+                bestDistance = distances[i] + t * (distances[i + 1] - distances[i]);
+            }
+        }
+        return Math.max(bestDistance, fromDistance);
+    }
+
+    /**
+     * Scrive in out il punto a distance metri dall'inizio del percorso: {lat, lon, direzione in gradi}.
+     */
+    public void pointAt(double distance, double[] out) {
+        int i = segmentAt(distance);
+        double segment = distances[i + 1] - distances[i];
+        double t = segment == 0 ? 0 : (distance - distances[i]) / segment;
+        t = Math.max(0, Math.min(1, t));
+        out[0] = lats[i] + (lats[i + 1] - lats[i]) * t;
+        out[1] = lons[i] + (lons[i + 1] - lons[i]) * t;
+
+        double dx = (lons[i + 1] - lons[i]) * metersPerDegLon;
+        double dy = (lats[i + 1] - lats[i]) * METERS_PER_DEG;
+        out[2] = (Math.toDegrees(Math.atan2(dx, dy)) + 360) % 360; // 0 = nord, in senso orario
+    }
+
+    /**
+     * @return Il segmento [i, i+1] che contiene la distanza (il primo o l'ultimo se fuori dal percorso).
+     */
+    private int segmentAt(double distance) {
+        int i = Arrays.binarySearch(distances, distance);
+        if (i < 0) i = -i - 2; // Punto che precede la distanza
+        return Math.max(0, Math.min(i, distances.length - 2));
+    }
+}
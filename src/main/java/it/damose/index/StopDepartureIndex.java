@@ -0,0 +1,161 @@
+package it.damose.index;
+
+import it.damose.model.ServiceDay;
+import it.damose.model.StopTimeStore;
+
+import java.util.Arrays;
+
+/**
+ * Per ogni fermata, i suoi passaggi (righe di stop_times) ordinati per orario di arrivo.
+ *
+ * Le righe sono raggruppate per fermata in un unico array, come una matrice sparsa
+ * in formato CSR: i passaggi della fermata s sono rows[stopStart[s]..stopStart[s+1]).
+ * I "prossimi N passaggi da adesso" diventano così una ricerca binaria sull'orario
+ * più una breve scansione, invece di un giro su tutti i trip del giorno.
+ *
+ * Gli orari restano quelli GTFS (anche oltre le 24:00:00): a quale giorno appartenga
+ * un passaggio lo decide la {@link ServiceDay} usata nella ricerca.
+ */
+public class StopDepartureIndex {
+
+    private final StopTimeStore store;
+    private final int[] stopStart; // stopStart[s]..stopStart[s+1] = passaggi della fermata s
+    private final int[] rows;      // Righe dello store, per fermata e poi per orario
+
+    public StopDepartureIndex(StopTimeStore store, int[] stopStart, int[] rows) {
+        this.store = store;
+        this.stopStart = stopStart;
+        this.rows = rows;
+    }
+
+    /**
+     * Costruisce l'indice: counting sort delle righe per fermata, poi ordinamento
+     * per orario dentro ogni fermata. Le righe senza orario vengono escluse.
+     */
+    public static StopDepartureIndex build(StopTimeStore store) {
+        long start = System.currentTimeMillis();
+        int stops = store.stopCount();
+        int[] stopStart = new int[stops + 1];
+        for (int t = 0; t < store.tripCount(); t++) {
+            for (int r = store.rowStart(t); r < store.rowEnd(t); r++) {
+                if (store.arrivalOf(t, r) >= 0) stopStart[store.stopOf(t, r) + 1]++;
+            }
+        }
+        for (int s = 0; s < stops; s++) {
+            stopStart[s + 1] += stopStart[s];
+        }
+
+        // Orario nei 32 bit alti e riga in quelli bassi: ordinare i long ordina per orario
+        int[] next = Arrays.copyOf(stopStart, stops);
+        long[] keys = new long[stopStart[stops]];
+        for (int t = 0; t < store.tripCount(); t++) {
+            for (int r = store.rowStart(t); r < store.rowEnd(t); r++) {
+                int arrival = store.arrivalOf(t, r);
+                if (arrival >= 0) keys[next[store.stopOf(t, r)]++] = ((long) arrival << 32) | r;
+            }
+        }
+        int[] rows = new int[keys.length];
+        for (int s = 0; s < stops; s++) {
+            Arrays.sort(keys, stopStart[s], stopStart[s + 1]);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            rows[i] = (int) keys[i];
+        }
+
+        System.out.println("StopDepartureIndex: " + rows.length + " passaggi indicizzati per " + stops
+                + " fermate (" + (System.currentTimeMillis() - start) + " ms)");
+        return new StopDepartureIndex(store, stopStart, rows);
+    }
+
+    public StopTimeStore getStore() { return store; }
+
+    /** Per lo snapshot: l'inizio dei passaggi di ogni fermata. */
+    public int[] getStopStart() { return stopStart; }
+
+    /** Per lo snapshot: le righe ordinate. */
+    public int[] getRows() { return rows; }
+
+    /**
+     * @return La posizione in rows del primo passaggio della fermata con orario >= seconds.
+     */
+    private int lowerBound(int stop, int seconds) {
+        int lo = stopStart[stop];
+        int hi = stopStart[stop + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.arrivalOf(rows[mid]) < seconds) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * I prossimi passaggi alla fermata a partire da un istante, in ordine di orario.
+     *
+     * Unisce tre sequenze già ordinate, ciascuna partendo dalla sua ricerca binaria:
+     * <ul>
+     *   <li>i trip di oggi, dall'orario "now";</li>
+     *   <li>i trip di ieri ancora in giro dopo mezzanotte, da "now + 24h" nei loro orari GTFS;</li>
+     *   <li>i trip di domani (se tomorrow non è null), per andare oltre la mezzanotte di oggi.</li>
+     * </ul>
+     *
+     * @param now      Secondi dalla mezzanotte di today.getDate()
+     * @param today    I trip in servizio oggi
+     * @param tomorrow I trip in servizio domani, o null per fermarsi a fine giornata
+     * @return Al massimo limit valori: l'orario riferito alla mezzanotte di oggi nei 32 bit
+     * alti (oltre 86400 per i passaggi di domani) e la riga dello store in quelli bassi.
+     */
+    public long[] next(int stop, int now, ServiceDay today, ServiceDay tomorrow, int limit) {
+        if (stop < 0 || stop >= stopStart.length - 1 || limit <= 0) {
+            return new long[0];
+        }
+        int end = stopStart[stop + 1];
+        int day = ServiceDay.SECONDS_PER_DAY;
+
+        // Cursori sulle tre sequenze, già portati sul primo passaggio valido
+        int a = skipTo(lowerBound(stop, now), end, today, 0);
+        int b = skipTo(lowerBound(stop, now + day), end, today, -day);
+        int c = tomorrow != null ? skipTo(stopStart[stop], end, tomorrow, 0) : end;
+
+        long[] out = new long[limit];
+        int n = 0;
+        while (n < limit) {
+            long ta = a < end ? store.arrivalOf(rows[a]) : Long.MAX_VALUE;
+            long tb = b < end ? store.arrivalOf(rows[b]) - day : Long.MAX_VALUE;
+            long tc = c < end ? store.arrivalOf(rows[c]) + day : Long.MAX_VALUE;
+            if (ta == Long.MAX_VALUE && tb == Long.MAX_VALUE && tc == Long.MAX_VALUE) break;
+
+            if (ta <= tb && ta <= tc) {
+                out[n++] = (ta << 32) | rows[a];
+                a = skipTo(a + 1, end, today, 0);
+            } else if (tb <= tc) {
+                out[n++] = (tb << 32) | rows[b];
+                b = skipTo(b + 1, end, today, -day);
+            } else {
+                out[n++] = (tc << 32) | rows[c];
+                c = skipTo(c + 1, end, tomorrow, 0);
+            }
+        }
+        return n == limit ? out : Arrays.copyOf(out, n);
+    }
+
+    /**
+     * @return La prima posizione da i in poi il cui trip è in servizio (oggi se offset = 0,
+     * come coda di ieri se offset = -86400), o end.
+     */
+    private int skipTo(int i, int end, ServiceDay day, int offset) {
+        while (i < end) {
+            int trip = store.tripOf(rows[i]);
+            if (offset == 0 ? day.runsToday(trip) : day.runsFromYesterday(trip)) break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return I byte occupati dall'indice.
+     */
+    public long memoryBytes() {
+        return 4L * (stopStart.length + rows.length);
+    }
+}
@@ -0,0 +1,255 @@
+package it.damose.index;
+
+import it.damose.model.Stop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Griglia regolare sulle fermate, per le domande "vicino a un punto" e "dentro un
+ * rettangolo" senza scorrere tutte le fermate.
+ *
+ * Le coordinate vengono proiettate in metri su un piano (equirettangolare, alla
+ * latitudine media del feed) e divise in celle quadrate di {@link #CELL_METERS}.
+ * Solo le celle occupate esistono: ogni fermata ha la chiave della sua cella
+ * (riga e colonna in un long) e le fermate sono ordinate per
+ * chiave, quindi le celle di una riga sono contigue e si trovano con una ricerca
+ * binaria. La memoria resta proporzionale alle fermate anche per feed che coprono
+ * più città, dove una matrice piena di celle sarebbe quasi tutta vuota.
+ */
+public class StopGridIndex {
+
+    public static final double CELL_METERS = 250;
+    private static final double METERS_PER_DEG_LAT = 111_320.0;
+
+    private final Stop[] stops;       // Ordinate per cella
+    private final long[] cellKeys;    // Chiave della cella di ogni fermata, crescente
+    private final double[] xs;        // Coordinate proiettate, in metri
+    private final double[] ys;
+    private final double metersPerDegLon;
+    private final int minRow, maxRow, minCol, maxCol;
+
+    private StopGridIndex(Stop[] stops, long[] cellKeys, double[] xs, double[] ys, double metersPerDegLon,
+                          int minRow, int maxRow, int minCol, int maxCol) {
+        this.stops = stops;
+        this.cellKeys = cellKeys;
+        this.xs = xs;
+        this.ys = ys;
+        this.metersPerDegLon = metersPerDegLon;
+        this.minRow = minRow;
+        this.maxRow = maxRow;
+        this.minCol = minCol;
+        this.maxCol = maxCol;
+    }
+
+    /**
+     * Costruisce la griglia. Le fermate senza coordinate valide vengono escluse.
+     */
+    public static StopGridIndex build(List<Stop> all) {
+        List<Stop> valid = new ArrayList<>(all.size());
+        double latSum = 0;
+        for (Stop s : all) {
+            if (Double.isFinite(s.getLat()) && Double.isFinite(s.getLon())
+                    && Math.abs(s.getLat()) <= 90 && Math.abs(s.getLon()) <= 180) {
+                valid.add(s);
+                latSum += s.getLat();
+            }
+        }
+        int n = valid.size();
+        double meanLat = n > 0 ? latSum / n : 0;
+        double metersPerDegLon = METERS_PER_DEG_LAT * Math.max(0.01, Math.cos(Math.toRadians(meanLat)));
+
+        int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+        int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+        for (Stop s : valid) {
+            int row = cell(s.getLat() * METERS_PER_DEG_LAT);
+            int col = cell(s.getLon() * metersPerDegLon);
+            minRow = Math.min(minRow, row);
+            maxRow = Math.max(maxRow, row);
+            minCol = Math.min(minCol, col);
+            maxCol = Math.max(maxCol, col);
+        }
+
+        // Riga e colonna relative (17 e 18 bit bastano per tutto il globo) sopra la posizione
+        // in valid (24 bit): un solo ordinamento di long mette le fermate in ordine di cella
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            Stop s = valid.get(i);
+            long row = cell(s.getLat() * METERS_PER_DEG_LAT) - minRow;
+            long col = cell(s.getLon() * metersPerDegLon) - minCol;
+            order[i] = (row << 42) | (col << 24) | i;
+        }
+        Arrays.sort(order);
+
+        Stop[] stops = new Stop[n];
+        long[] cellKeys = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int k = 0; k < n; k++) {
+            Stop s = valid.get((int) (order[k] & 0xFFFFFF));
+            stops[k] = s;
+            xs[k] = s.getLon() * metersPerDegLon;
+            ys[k] = s.getLat() * METERS_PER_DEG_LAT;
+            cellKeys[k] = key(cell(ys[k]), cell(xs[k]), minCol);
+        }
+        return new StopGridIndex(stops, cellKeys, xs, ys, metersPerDegLon, minRow, maxRow, minCol, maxCol);
+    }
+
+    private static int cell(double meters) {
+        return (int) Math.floor(meters / CELL_METERS);
+    }
+
+    /**
+     * @return La chiave della cella: riga nei 32 bit alti, colonna (da minCol in poi,
+     * quindi mai negativa) in quelli bassi. Le chiavi crescono come (riga, colonna).
+     */
+    private static long key(int row, int col, int minCol) {
+        return ((long) row << 32) | (col - minCol);
+    }
+
+    private long key(int row, int col) {
+        return key(row, col, minCol);
+    }
+
+    public int size() {
+        return stops.length;
+    }
+
+    /**
+     * @return Le k fermate più vicine al punto entro maxMeters, dalla più vicina.
+     */
+    public List<Stop> nearest(double lat, double lon, int k, double maxMeters) {
+        if (k <= 0 || stops.length == 0) {
+            return Collections.emptyList();
+        }
+        double x = lon * metersPerDegLon;
+        double y = lat * METERS_PER_DEG_LAT;
+        int row = cell(y);
+        int col = cell(x);
+
+        // Anelli di celle sempre più larghi attorno alla cella del punto: dopo l'anello r
+        // sono viste tutte le fermate entro r * CELL_METERS, quindi ci si ferma appena
+        // ce ne sono k entro quel raggio (o il raggio supera maxMeters, o la griglia)
+        Candidates found = new Candidates();
+        int maxRing = Math.max(Math.max(Math.abs(row - minRow), Math.abs(row - maxRow)),
+                Math.max(Math.abs(col - minCol), Math.abs(col - maxCol)));
+        maxRing = (int) Math.min(maxRing, Math.ceil(maxMeters / CELL_METERS));
+        for (int r = 0; r <= maxRing; r++) {
+            if (r == 0) {
+                collectRow(row, col, col, x, y, maxMeters, found);
+            } else {
+                collectRow(row - r, col - r, col + r, x, y, maxMeters, found);
+                collectRow(row + r, col - r, col + r, x, y, maxMeters, found);
+                for (int rr = row - r + 1; rr <= row + r - 1; rr++) {
+                    collectRow(rr, col - r, col - r, x, y, maxMeters, found);
+                    collectRow(rr, col + r, col + r, x, y, maxMeters, found);
+                }
+            }
+            if (found.countWithin(r * CELL_METERS) >= k) break;
+        }
+        return found.sorted(k);
+    }
+
+    /**
+     * @return Le fermate entro radiusMeters dal punto, dalla più vicina.
+     */
+    public List<Stop> withinRadius(double lat, double lon, double radiusMeters) {
+        double x = lon * metersPerDegLon;
+        double y = lat * METERS_PER_DEG_LAT;
+        Candidates found = new Candidates();
+        for (int r = cell(y - radiusMeters); r <= cell(y + radiusMeters); r++) {
+            collectRow(r, cell(x - radiusMeters), cell(x + radiusMeters), x, y, radiusMeters, found);
+        }
+        return found.sorted(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return Le fermate dentro il rettangolo (es. l'area visibile della mappa), senza ordine particolare.
+     */
+    public List<Stop> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        double x0 = minLon * metersPerDegLon;
+        double x1 = maxLon * metersPerDegLon;
+        double y0 = minLat * METERS_PER_DEG_LAT;
+        double y1 = maxLat * METERS_PER_DEG_LAT;
+        int c0 = Math.max(cell(x0), minCol);
+        int c1 = Math.min(cell(x1), maxCol);
+        List<Stop> result = new ArrayList<>();
+        for (int r = Math.max(cell(y0), minRow); r <= Math.min(cell(y1), maxRow); r++) {
+            int end = lowerBound(key(r, c1) + 1);
+            for (int i = lowerBound(key(r, c0)); i < end; i++) {
+                if (xs[i] >= x0 && xs[i] <= x1 && ys[i] >= y0 && ys[i] <= y1) result.add(stops[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Aggiunge a found le fermate entro maxMeters nelle celle [c0, c1] della riga.
+     */
+    private void collectRow(int row, int c0, int c1, double x, double y, double maxMeters, Candidates found) {
+        if (row < minRow || row > maxRow || c1 < minCol || c0 > maxCol) {
+            return;
+        }
+        int end = lowerBound(key(row, Math.min(c1, maxCol)) + 1);
+        for (int i = lowerBound(key(row, Math.max(c0, minCol))); i < end; i++) {
+            double d = Math.hypot(xs[i] - x, ys[i] - y);
+            if (d <= maxMeters) found.add(i, d);
+        }
+    }
+
+    /**
+     * @return La posizione della prima fermata con chiave di cella >= key.
+     */
+    private int lowerBound(long key) {
+        int lo = 0;
+        int hi = cellKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cellKeys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Fermate trovate con la loro distanza, da ordinare alla fine.
+     */
+    private final class Candidates {
+        private int[] index = new int[16];
+        private double[] distance = new double[16];
+        private int size;
+
+        void add(int i, double d) {
+            if (size == index.length) {
+                index = Arrays.copyOf(index, size * 2);
+                distance = Arrays.copyOf(distance, size * 2);
+            }
+            index[size] = i;
+            distance[size++] = d;
+        }
+
+        int countWithin(double meters) {
+            int count = 0;
+            for (int j = 0; j < size; j++) {
+                if (distance[j] <= meters) count++;
+            }
+            return count;
+        }
+
+        List<Stop> sorted(int limit) {
+            // Distanza in centimetri nei 40 bit alti e posizione nei 24 bassi
+            long[] keys = new long[size];
+            for (int j = 0; j < size; j++) {
+                keys[j] = ((long) Math.min(distance[j] * 100, (1L << 39)) << 24) | j;
+            }
+            Arrays.sort(keys);
+            List<Stop> result = new ArrayList<>(Math.min(limit, size));
+            for (int j = 0; j < size && j < limit; j++) {
+                result.add(stops[index[(int) (keys[j] & 0xFFFFFF)]]);
+            }
+            return result;
+        }
+    }
+}
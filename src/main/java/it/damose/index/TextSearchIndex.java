@@ -0,0 +1,367 @@
+package it.damose.index;
+
+import it.damose.util.IntArrayList;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Indice di ricerca per nome e ID (fermate, linee), costruito una volta al caricamento.
+ *
+ * Nomi e query vengono normalizzati allo stesso modo: minuscole, accenti rimossi,
+ * punteggiatura ridotta a spazi ("Sant'Agnese/Annibaliano" → "sant agnese annibaliano").
+ * Per trovare i candidati senza scorrere tutti gli elementi ci sono:
+ * <ul>
+ *   <li>gli ID normalizzati, per la corrispondenza esatta;</li>
+ *   <li>le parole dei nomi in ordine alfabetico, per i prefissi (ricerca binaria);</li>
+ *   <li>i trigrammi (sequenze di 3 caratteri) dei nomi, per le sottostringhe: basta
+ *       verificare gli elementi della lista più corta tra i trigrammi della query.</li>
+ * </ul>
+ * Le liste di trigrammi sono array piatti ordinati (nessuna mappa di oggetti), così
+ * costruzione e memoria restano lineari anche con centinaia di migliaia di elementi.
+ * I risultati sono ordinati per pertinenza: ID esatto, nome che inizia con la query,
+ * parole che iniziano con le parole della query, nome che contiene la query; a parità,
+ * prima i nomi più corti.
+ *
+ * Per gli errori di battitura c'è {@link #searchFuzzy}: un {@link BkTree} sulle parole
+ * del vocabolario trova quelle a distanza di modifica 1–2 da ogni parola della query.
+ */
+public class TextSearchIndex<T> {
+
+    private static final int RANK_ID = 0;
+    private static final int RANK_NAME_PREFIX = 1;
+    private static final int RANK_TOKEN_PREFIX = 2;
+    private static final int RANK_SUBSTRING = 3;
+
+    private static final int MAX_CODE = (1 << 10) - 1; // 10 bit per carattere in un trigramma
+
+    private final List<T> items;
+    private final String[] names;               // Nomi normalizzati, per indice di elemento
+    private final Map<String, int[]> byId;      // ID normalizzato → elementi
+    private final String[] tokens;              // Parole distinte dei nomi, in ordine alfabetico
+    private final int[][] tokenPostings;        // Per ogni parola, gli elementi che la contengono
+    private final char[] charCodes;             // Carattere → codice compatto (0 = mai visto)
+    private final int[] trigrams;               // Trigrammi distinti (codificati), in ordine crescente
+    private final int[] trigramStart;           // trigramStart[t]..trigramStart[t+1] = elementi del trigramma t
+    private final int[] trigramItems;
+    private final BkTree vocabulary;            // Sulle stesse parole di tokens
+
+    private TextSearchIndex(List<T> items, String[] names, Map<String, int[]> byId, String[] tokens,
+                            int[][] tokenPostings, char[] charCodes, int[] trigrams, int[] trigramStart,
+                            int[] trigramItems) {
+        this.items = items;
+        this.names = names;
+        this.byId = byId;
+        this.tokens = tokens;
+        this.tokenPostings = tokenPostings;
+        this.charCodes = charCodes;
+        this.trigrams = trigrams;
+        this.trigramStart = trigramStart;
+        this.trigramItems = trigramItems;
+        this.vocabulary = BkTree.build(tokens);
+    }
+
+    /**
+     * @param items Gli elementi da indicizzare
+     * @param id    L'identificativo di un elemento (es. stop_id)
+     * @param name  Il nome mostrato all'utente
+     */
+    public static <T> TextSearchIndex<T> build(List<T> items, Function<T, String> id, Function<T, String> name) {
+        int n = items.size();
+        String[] names = new String[n];
+        Map<String, IntArrayList> ids = new HashMap<>(n * 2);
+        Map<String, IntArrayList> tokenLists = new HashMap<>();
+        char[] charCodes = new char[Character.MAX_VALUE + 1];
+        int nextCode = 1;
+        int trigramCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            T item = items.get(i);
+            String s = normalize(name.apply(item));
+            names[i] = s;
+            ids.computeIfAbsent(normalize(id.apply(item)), k -> new IntArrayList(1)).add(i);
+            for (String token : s.split(" ")) {
+                if (token.isEmpty()) continue;
+                IntArrayList list = tokenLists.computeIfAbsent(token, k -> new IntArrayList(4));
+                if (list.isEmpty() || list.get(list.size() - 1) != i) list.add(i);
+            }
+            for (int j = 0; j < s.length(); j++) {
+                char c = s.charAt(j);
+                if (charCodes[c] == 0) charCodes[c] = (char) Math.min(nextCode++, MAX_CODE);
+            }
+            trigramCount += Math.max(0, s.length() - 2);
+        }
+
+        Map<String, int[]> byId = new HashMap<>(ids.size() * 2);
+        ids.forEach((k, v) -> byId.put(k, v.toArray()));
+        String[] tokens = tokenLists.keySet().toArray(new String[0]);
+        Arrays.sort(tokens);
+        int[][] tokenPostings = new int[tokens.length][];
+        for (int t = 0; t < tokens.length; t++) {
+            tokenPostings[t] = tokenLists.get(tokens[t]).toArray();
+        }
+
+        // Trigramma nei 32 bit alti ed elemento in quelli bassi: un solo ordinamento di long
+        // raggruppa gli elementi per trigramma, già in ordine crescente
+        long[] pairs = new long[trigramCount];
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            String s = names[i];
+            for (int j = 0; j + 3 <= s.length(); j++) {
+                pairs[p++] = ((long) trigram(charCodes, s, j) << 32) | i;
+            }
+        }
+        Arrays.sort(pairs);
+
+        IntArrayList distinct = new IntArrayList(1024);
+        IntArrayList starts = new IntArrayList(1024);
+        IntArrayList postings = new IntArrayList(pairs.length);
+        for (int k = 0; k < pairs.length; k++) {
+            if (k > 0 && pairs[k] == pairs[k - 1]) continue; // Stesso trigramma due volte nello stesso nome
+            int key = (int) (pairs[k] >>> 32);
+            if (distinct.isEmpty() || distinct.get(distinct.size() - 1) != key) {
+                distinct.add(key);
+                starts.add(postings.size());
+            }
+            postings.add((int) pairs[k]);
+        }
+        starts.add(postings.size());
+
+        return new TextSearchIndex<>(Collections.unmodifiableList(new ArrayList<>(items)), names, byId, tokens,
+                tokenPostings, charCodes, distinct.toArray(), starts.toArray(), postings.toArray());
+    }
+
+    /**
+     * Riduce un testo alla forma confrontabile: minuscolo, senza accenti, con le sole
+     * lettere e cifre separate da uno spazio singolo.
+     */
+    public static String normalize(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean space = true; // Evita spazi iniziali e doppi
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue; // Accenti separati dalla lettera
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == ' ') sb.setLength(len - 1);
+        return sb.toString();
+    }
+
+    /**
+     * Codifica tre caratteri in 30 bit usando i codici compatti. Oltre MAX_CODE caratteri
+     * distinti i codici si sovrappongono: le liste diventano più larghe ma restano
+     * corrette, perché ogni candidato viene comunque verificato sul nome.
+     */
+    private static int trigram(char[] charCodes, String s, int i) {
+        return (charCodes[s.charAt(i)] << 20) | (charCodes[s.charAt(i + 1)] << 10) | charCodes[s.charAt(i + 2)];
+    }
+
+    /**
+     * @return La posizione del trigramma in trigrams, o -1 se nessun nome lo contiene.
+     */
+    private int findTrigram(String s, int i) {
+        for (int j = i; j < i + 3; j++) {
+            if (charCodes[s.charAt(j)] == 0) return -1; // Carattere che non compare in nessun nome
+        }
+        return Arrays.binarySearch(trigrams, trigram(charCodes, s, i));
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Cerca gli elementi il cui ID corrisponde alla query o il cui nome la contiene.
+     *
+     * Con meno di 3 caratteri (dopo la normalizzazione) le sottostringhe in mezzo alle
+     * parole non vengono cercate: restano ID esatto e inizi di parola.
+     *
+     * @return Gli elementi trovati, dal più pertinente.
+     */
+    public List<T> search(String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String[] queryTokens = q.split(" ");
+
+        // Candidati: ID esatto, elementi con una parola che inizia con la prima parola della query,
+        // e (query di almeno 3 caratteri) la lista di trigrammi più corta, da verificare
+        IntArrayList candidates = new IntArrayList(64);
+        int[] exact = byId.get(q);
+        if (exact != null) {
+            for (int i : exact) candidates.add(i);
+        }
+        int from = lowerBound(queryTokens[0]);
+        for (int t = from; t < tokens.length && tokens[t].startsWith(queryTokens[0]); t++) {
+            for (int i : tokenPostings[t]) candidates.add(i);
+        }
+        if (q.length() >= 3) {
+            int shortest = -1;
+            for (int j = 0; j + 3 <= q.length(); j++) {
+                int t = findTrigram(q, j);
+                if (t < 0) {
+                    shortest = -1; // Un trigramma che non compare in nessun nome
+                    break;
+                }
+                if (shortest < 0 || postingCount(t) < postingCount(shortest)) shortest = t;
+            }
+            if (shortest >= 0) {
+                for (int k = trigramStart[shortest]; k < trigramStart[shortest + 1]; k++) {
+                    candidates.add(trigramItems[k]);
+                }
+            }
+        }
+
+        // Pertinenza di ogni candidato distinto, codificata con la lunghezza del nome per l'ordinamento
+        int[] sorted = candidates.toArray();
+        Arrays.sort(sorted);
+        long[] ranked = new long[sorted.length];
+        int n = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            int i = sorted[k];
+            if (k > 0 && sorted[k - 1] == i) continue;
+            int rank = rank(i, q, queryTokens, exact);
+            if (rank < 0) continue;
+            ranked[n++] = ((long) rank << 56) | ((long) Math.min(names[i].length(), 0xFFFF) << 32) | i;
+        }
+        Arrays.sort(ranked, 0, n);
+
+        List<T> result = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            result.add(items.get((int) ranked[k]));
+        }
+        return result;
+    }
+
+    /**
+     * Ricerca tollerante agli errori di battitura ("termni", "piazza venzia").
+     *
+     * Ogni parola della query deve corrispondere a una parola del nome con al più
+     * {@link #maxDistance} modifiche, oppure esserne l'inizio. I risultati sono ordinati
+     * per numero totale di modifiche e poi per lunghezza del nome.
+     *
+     * @param budgetNanos Tempo massimo per la ricerca: allo scadere si restituisce
+     *                    quanto trovato fino a quel momento.
+     */
+    public List<T> searchFuzzy(String query, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<Integer, Integer> scores = null; // Elemento → modifiche totali per le parole viste finora
+        for (String qt : q.split(" ")) {
+            Map<Integer, Integer> best = new HashMap<>(); // Elemento → modifiche minime per questa parola
+            for (int t = lowerBound(qt); t < tokens.length && tokens[t].startsWith(qt); t++) {
+                for (int i : tokenPostings[t]) best.put(i, 0);
+            }
+            int max = maxDistance(qt.length());
+            if (max > 0) {
+                // Se il tempo finisce valgono le parole trovate fin lì
+                vocabulary.search(qt, max, deadline, (word, distance) -> {
+                    for (int i : tokenPostings[word]) best.merge(i, distance, Math::min);
+                });
+            }
+
+            if (scores == null) {
+                scores = best;
+            } else {
+                Map<Integer, Integer> both = new HashMap<>();
+                for (Map.Entry<Integer, Integer> e : scores.entrySet()) {
+                    Integer d = best.get(e.getKey());
+                    if (d != null) both.put(e.getKey(), e.getValue() + d);
+                }
+                scores = both;
+            }
+            if (scores.isEmpty()) break;
+        }
+
+        long[] ranked = new long[scores.size()];
+        int n = 0;
+        for (Map.Entry<Integer, Integer> e : scores.entrySet()) {
+            int i = e.getKey();
+            ranked[n++] = ((long) Math.min(e.getValue(), 0xFF) << 56) | ((long) Math.min(names[i].length(), 0xFFFF) << 32) | i;
+        }
+        Arrays.sort(ranked);
+
+        List<T> result = new ArrayList<>(n);
+        for (long r : ranked) {
+            result.add(items.get((int) r));
+        }
+        return result;
+    }
+
+    /**
+     * @return Le modifiche ammesse per una parola lunga len: nessuna fino a 3 lettere
+     * (troppe parole vicine), una fino a 7, poi due.
+     */
+    static int maxDistance(int len) {
+        return len < 4 ? 0 : len < 8 ? 1 : 2;
+    }
+
+    private int postingCount(int t) {
+        return trigramStart[t + 1] - trigramStart[t];
+    }
+
+    /**
+     * @return La pertinenza dell'elemento i per la query (più bassa = migliore), -1 se non corrisponde.
+     */
+    private int rank(int i, String q, String[] queryTokens, int[] exact) {
+        if (exact != null && Arrays.binarySearch(exact, i) >= 0) return RANK_ID;
+        String name = names[i];
+        if (name.startsWith(q)) return RANK_NAME_PREFIX;
+        if (allTokensMatch(name, queryTokens)) return RANK_TOKEN_PREFIX;
+        if (q.length() >= 3 && name.contains(q)) return RANK_SUBSTRING;
+        return -1;
+    }
+
+    /**
+     * @return true se ogni parola della query è l'inizio di una parola del nome.
+     */
+    private static boolean allTokensMatch(String name, String[] queryTokens) {
+        for (String qt : queryTokens) {
+            boolean found = false;
+            for (int pos = name.indexOf(qt); pos >= 0; pos = name.indexOf(qt, pos + 1)) {
+                if (pos == 0 || name.charAt(pos - 1) == ' ') {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return La posizione della prima parola >= prefix in ordine alfabetico.
+     */
+    private int lowerBound(String prefix) {
+        int lo = 0;
+        int hi = tokens.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens[mid].compareTo(prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
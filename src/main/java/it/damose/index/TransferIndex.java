@@ -0,0 +1,103 @@
+package it.damose.index;
+
+import it.damose.model.Stop;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Percorsi a piedi tra fermate vicine, per cambiare mezzo senza restare alla stessa palina.
+ *
+ * Per ogni fermata (indice denso dello StopTimeStore) ci sono le fermate entro
+ * {@link #MAX_WALK_METERS} con il tempo per raggiungerle, in forma compressa (CSR):
+ * i vicini della fermata s sono target[start[s]..start[s+1]). I vicini si trovano
+ * con la griglia spaziale; la distanza è in linea d'aria, allungata di un fattore
+ * per le deviazioni delle strade.
+ */
+public final class TransferIndex {
+
+    public static final double MAX_WALK_METERS = 400;
+    public static final double WALK_METERS_PER_SECOND = 1.2; // Circa 4,3 km/h
+    private static final double DETOUR = 1.3;
+    private static final double METERS_PER_DEG = 111_320.0;
+
+    private final int[] start;
+    private final int[] target;
+    private final int[] seconds;
+
+    private TransferIndex(int[] start, int[] target, int[] seconds) {
+        this.start = start;
+        this.target = target;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Costruisce i percorsi a piedi di tutte le fermate degli orari.
+     *
+     * @param stopByIndex Le fermate per indice denso (null se non sono in stops.txt)
+     * @param grid        La griglia spaziale sulle fermate
+     */
+    public static TransferIndex build(Stop[] stopByIndex, StopGridIndex grid) {
+        long begin = System.currentTimeMillis();
+        int stops = stopByIndex.length;
+        int[] start = new int[stops + 1];
+        int[] target = new int[stops * 8];
+        int[] seconds = new int[stops * 8];
+        int n = 0;
+        for (int s = 0; s < stops; s++) {
+            start[s] = n;
+            Stop from = stopByIndex[s];
+            if (from == null) continue;
+            List<Stop> near = grid.withinRadius(from.getLat(), from.getLon(), MAX_WALK_METERS);
+            for (Stop to : near) {
+                if (to.getIndex() < 0 || to.getIndex() == s) continue;
+                if (n == target.length) {
+                    target = Arrays.copyOf(target, n * 2);
+                    seconds = Arrays.copyOf(seconds, n * 2);
+                }
+                target[n] = to.getIndex();
+                seconds[n] = walkSeconds(from, to);
+                n++;
+            }
+        }
+        start[stops] = n;
+        System.out.println("TransferIndex: " + n + " percorsi a piedi tra " + stops + " fermate ("
+                + (System.currentTimeMillis() - begin) + " ms)");
+        return new TransferIndex(start, Arrays.copyOf(target, n), Arrays.copyOf(seconds, n));
+    }
+
+    /**
+     * @return I secondi a piedi tra due fermate (distanza in linea d'aria per il fattore di deviazione).
+     */
+    public static int walkSeconds(Stop from, Stop to) {
+        double dx = (to.getLon() - from.getLon()) * METERS_PER_DEG * Math.cos(Math.toRadians(from.getLat()));
+        double dy = (to.getLat() - from.getLat()) * METERS_PER_DEG;
+        return walkSeconds(Math.hypot(dx, dy));
+    }
+
+    /**
+     * @return I secondi a piedi per una distanza in linea d'aria, con il fattore di deviazione.
+     */
+    public static int walkSeconds(double meters) {
+        return (int) Math.ceil(meters * DETOUR / WALK_METERS_PER_SECOND);
+    }
+
+    /**
+     * @return La distanza in linea d'aria che si copre a piedi nei secondi indicati (inverso di walkSeconds).
+     */
+    public static double walkableMeters(int seconds) {
+        return seconds * WALK_METERS_PER_SECOND / DETOUR;
+    }
+
+    /** @return Il primo percorso della fermata. */
+    public int start(int stop) { return start[stop]; }
+
+    /** @return La fine (esclusa) dei percorsi della fermata. */
+    public int end(int stop) { return start[stop + 1]; }
+
+    /** @return La fermata di arrivo del percorso i. */
+    public int target(int i) { return target[i]; }
+
+    /** @return La durata del percorso i, in secondi. */
+    public int seconds(int i) { return seconds[i]; }
+}
@@ -0,0 +1,147 @@
+package it.damose.map;
+
+import it.damose.index.TransferIndex;
+import it.damose.model.Isochrone;
+import it.damose.model.Stop;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * L'immagine delle isocrone, calcolata una volta sola e poi solo scalata dalla mappa.
+ *
+ * I pixel sono quelli del mondo Web Mercator a RASTER_ZOOM (circa 28 m a Roma): la
+ * proiezione è lineare in quelle coordinate, quindi basta disegnare l'immagine tra
+ * gli angoli nord-ovest e sud-est a qualsiasi zoom. Ogni fermata raggiunta colora i
+ * pixel entro il cammino massimo con il suo tempo più quello a piedi, con lo stesso
+ * modello dei trasbordi ({@link TransferIndex#walkSeconds(double)}); ogni pixel tiene
+ * il tempo minimo e prende il colore della fascia in cui cade.
+ */
+public final class IsochroneOverlay {
+
+    /** Le fasce disegnate, in minuti di viaggio. */
+    public static final int[] BANDS_MINUTES = {15, 30, 45};
+    public static final Color[] BAND_COLORS = {
+            new Color(0, 170, 0, 110),
+            new Color(240, 200, 0, 100),
+            new Color(230, 90, 0, 90)
+    };
+
+    private static final int RASTER_ZOOM = 12;
+
+    private final Isochrone isochrone;
+    private final BufferedImage image;
+    private final double north, west, south, east;
+
+    private IsochroneOverlay(Isochrone isochrone, BufferedImage image,
+                             double north, double west, double south, double east) {
+        this.isochrone = isochrone;
+        this.image = image;
+        this.north = north;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+    }
+
+    /**
+     * @return L'immagine delle isocrone, o null se non si raggiunge nessuna fermata.
+     */
+    public static IsochroneOverlay render(Isochrone isochrone) {
+        if (isochrone == null || isochrone.size() == 0) {
+            return null;
+        }
+        int limit = Math.min(isochrone.getMaxSeconds(), BANDS_MINUTES[BANDS_MINUTES.length - 1] * 60);
+        double worldSize = TilesManager.getTileSize() * Math.pow(2, RASTER_ZOOM);
+        double metersPerPixel = 156543.03392 * Math.cos(Math.toRadians(isochrone.getOrigin().getLat()))
+                / Math.pow(2, RASTER_ZOOM);
+        int radius = (int) Math.ceil(TransferIndex.MAX_WALK_METERS / metersPerPixel);
+
+        // Estensione dell'immagine: le fermate raggiunte più il raggio a piedi
+        int n = isochrone.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            Stop stop = isochrone.stopAt(i);
+            x[i] = worldX(stop.getLon(), worldSize);
+            y[i] = worldY(stop.getLat(), worldSize);
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        int left = (int) Math.floor(minX) - radius;
+        int top = (int) Math.floor(minY) - radius;
+        int width = (int) Math.ceil(maxX) + radius - left + 1;
+        int height = (int) Math.ceil(maxY) + radius - top + 1;
+
+        // Tempo minimo per pixel: fermata + tratto a piedi
+        int[] seconds = new int[width * height];
+        Arrays.fill(seconds, Integer.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            int t = isochrone.secondsAt(i);
+            if (t > limit) continue;
+            double px = x[i] - left;
+            double py = y[i] - top;
+            int reach = Math.min(radius, (int) (TransferIndex.walkableMeters(limit - t) / metersPerPixel));
+            int cx = (int) px;
+            int cy = (int) py;
+            for (int row = Math.max(0, cy - reach); row <= Math.min(height - 1, cy + reach); row++) {
+                double dy = row + 0.5 - py;
+                for (int col = Math.max(0, cx - reach); col <= Math.min(width - 1, cx + reach); col++) {
+                    double dx = col + 0.5 - px;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance > reach) continue;
+                    int total = t + TransferIndex.walkSeconds(distance * metersPerPixel);
+                    int k = row * width + col;
+                    if (total < seconds[k]) seconds[k] = total;
+                }
+            }
+        }
+
+        int[] argb = new int[BANDS_MINUTES.length];
+        for (int b = 0; b < argb.length; b++) {
+            argb[b] = BAND_COLORS[b].getRGB();
+        }
+        int[] pixels = new int[width * height];
+        for (int k = 0; k < pixels.length; k++) {
+            int t = seconds[k];
+            if (t > limit) continue;
+            int b = 0;
+            while (t > BANDS_MINUTES[b] * 60) b++;
+            pixels[k] = argb[b];
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+
+        return new IsochroneOverlay(isochrone, image,
+                latitude(top, worldSize), longitude(left, worldSize),
+                latitude(top + height, worldSize), longitude(left + width, worldSize));
+    }
+
+    private static double worldX(double lon, double worldSize) {
+        return (lon + 180) / 360 * worldSize;
+    }
+
+    private static double worldY(double lat, double worldSize) {
+        double latRad = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * worldSize;
+    }
+
+    private static double longitude(double worldX, double worldSize) {
+        return worldX / worldSize * 360 - 180;
+    }
+
+    private static double latitude(double worldY, double worldSize) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * worldY / worldSize))));
+    }
+
+    public Isochrone getIsochrone() { return isochrone; }
+    public BufferedImage getImage() { return image; }
+    public double getNorth() { return north; }
+    public double getWest() { return west; }
+    public double getSouth() { return south; }
+    public double getEast() { return east; }
+}
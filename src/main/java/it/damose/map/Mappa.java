@@ -4,7 +4,7 @@ import it.damose.controller.ConnectionManager;
 import it.damose.controller.StopController;
 import it.damose.model.Route;
 import it.damose.model.Stop;
-import it.damose.model.ShapePoint; // Import per i percorsi fluidi
+import it.damose.model.Shape; // Import per i percorsi fluidi
 import it.damose.model.VehiclePosition;
 import it.damose.realtime.RealtimeManager;
 import javax.swing.*;
@@ -13,9 +13,15 @@ import java.awt.event.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D; // Import per disegnare le linee
 import java.awt.image.BufferedImage;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class Mappa extends JPanel {
     // Coordinate di Roma
@@ -38,16 +44,37 @@ public class Mappa extends JPanel {
     private Timer refreshTimer;
 
     // Controller
-    private RealtimeManager realtimeManager;
-    private StopController stopController;
-
-    // Cache per bus statici (offline)
-    private List<VehiclePosition> simulatedVehicleCache = new ArrayList<>();
-    private long lastStaticCacheTime = 0;
+    private volatile RealtimeManager realtimeManager;
+    private volatile StopController stopController;
+
+    // Cache per bus statici (offline), aggiornata da un solo thread in background:
+    // la simulazione è incrementale (vedi VehicleSimulator), quindi può girare spesso
+    private static final int SIMULATION_INTERVAL_MS = 2000;
+    private volatile List<VehiclePosition> simulatedVehicleCache = new ArrayList<>();
+    private final ScheduledExecutorService simulationExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mappa-simulazione");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Isocrone: calcolate (orari e immagine) in un thread a parte, poi solo disegnate
+    private volatile IsochroneOverlay isochroneOverlay;
+    private volatile Stop isochroneLoading;
+    private final ExecutorService isochroneExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mappa-isocrone");
+        t.setDaemon(true);
+        return t;
+    });
 
     // Filtro per la linea selezionata
     private Route currentlyFilteredRoute = null;
     private Stop selectedStop = null;
+
+    // Fermate disegnate solo da vicino: a zoom più bassi sarebbero migliaia di punti sovrapposti
+    private static final int STOPS_MIN_ZOOM = 15;
+    private static final int CLICK_TOLERANCE_PX = 10;
+    private Consumer<Stop> stopClickListener;
+
     public Mappa() {
         tilesManager = new TilesManager();
 
@@ -65,6 +92,11 @@ public class Mappa extends JPanel {
             public void mouseReleased(MouseEvent e) {
                 dragStart = null;
             }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                selectStopAt(e.getPoint());
+            }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
@@ -101,6 +133,30 @@ public class Mappa extends JPanel {
         // Timer per refresh periodico
         refreshTimer = new Timer(500, e -> repaint());
         refreshTimer.start();
+
+        simulationExecutor.scheduleWithFixedDelay(this::refreshSimulatedVehicles, 0, SIMULATION_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ricalcola i bus simulati (nel thread della simulazione), solo se servono: offline o senza dati live.
+     */
+    private void refreshSimulatedVehicles() {
+        try {
+            StopController controller = stopController;
+            if (controller == null || isLive()) {
+                return;
+            }
+            simulatedVehicleCache = controller.getSimulatedVehiclePositions();
+        } catch (Exception e) {
+            e.printStackTrace(); // Un errore non deve fermare gli aggiornamenti successivi
+        }
+    }
+
+    private boolean isLive() {
+        return realtimeManager != null &&
+                ConnectionManager.getInstance().isOnline() &&
+                realtimeManager.getVehiclePositions().size() > 0;
     }
 
     // --- Metodi Pubblici di Configurazione ---
@@ -113,6 +169,77 @@ public class Mappa extends JPanel {
         this.stopController = controller;
     }
 
+    /**
+     * Chiamato quando nuovi dati statici (orari, percorsi) diventano disponibili:
+     * forza il ricalcolo dei bus simulati e il ridisegno.
+     */
+    public void onDataLoaded() {
+        // Se è stato messo in uso un feed nuovo, la linea e la fermata evidenziate sono i suoi oggetti
+        if (stopController != null && currentlyFilteredRoute != null) {
+            Route current = stopController.getRouteById(currentlyFilteredRoute.getId());
+            if (current != null) currentlyFilteredRoute = current;
+        }
+        if (stopController != null && selectedStop != null) {
+            Stop current = stopController.getStopById(selectedStop.getId());
+            if (current != null) selectedStop = current;
+        }
+        simulationExecutor.execute(this::refreshSimulatedVehicles);
+        repaint();
+    }
+
+    /**
+     * @param listener Chiamato con la fermata cliccata sulla mappa.
+     */
+    public void setStopClickListener(Consumer<Stop> listener) {
+        this.stopClickListener = listener;
+    }
+
+    /**
+     * Calcola in background le isocrone (15/30/45 minuti) dalla fermata, partendo adesso,
+     * e le mostra sulla mappa al posto di quelle precedenti.
+     */
+    public void showIsochrone(Stop stop) {
+        StopController controller = stopController;
+        if (controller == null || stop == null) {
+            return;
+        }
+        isochroneLoading = stop;
+        repaint();
+        isochroneExecutor.execute(() -> {
+            try {
+                int maxMinutes = IsochroneOverlay.BANDS_MINUTES[IsochroneOverlay.BANDS_MINUTES.length - 1];
+                IsochroneOverlay overlay = IsochroneOverlay.render(
+                        controller.computeIsochrone(stop, LocalDateTime.now(), maxMinutes));
+                if (isochroneLoading == stop) {
+                    isochroneOverlay = overlay;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (isochroneLoading == stop) {
+                    isochroneLoading = null;
+                }
+                SwingUtilities.invokeLater(this::repaint);
+            }
+        });
+    }
+
+    public void clearIsochrone() {
+        isochroneLoading = null;
+        isochroneOverlay = null;
+        repaint();
+    }
+
+    /**
+     * @return La fermata di partenza delle isocrone mostrate (o in calcolo), o null.
+     */
+    public Stop getIsochroneOrigin() {
+        Stop loading = isochroneLoading;
+        if (loading != null) return loading;
+        IsochroneOverlay overlay = isochroneOverlay;
+        return overlay != null ? overlay.getIsochrone().getOrigin() : null;
+    }
+
     public void setFilteredRoute(Route route) {
         this.currentlyFilteredRoute = route;
         repaint(); // Forza ridisegno
@@ -125,6 +252,8 @@ public class Mappa extends JPanel {
         if (tilesManager != null) {
             tilesManager.shutdown();
         }
+        simulationExecutor.shutdownNow();
+        isochroneExecutor.shutdownNow();
     }
 
     public void centerOn(double lat, double lon) {
@@ -191,15 +320,14 @@ public class Mappa extends JPanel {
             }
         }
 
+        drawIsochrone(g2d);
+
         //2. DISEGNO PERCORSO (con fallback) ---
         drawRoutePath(g2d);
+        drawStops(g2d);
 
         // 3. DISEGNO VEICOLI (Logica Online/Offline) ---
-        boolean isCurrentlyLive = (realtimeManager != null &&
-                ConnectionManager.getInstance().isOnline() &&
-                realtimeManager.getVehiclePositions().size() > 0);
-
-        if (isCurrentlyLive) {
+        if (isLive()) {
             drawVehicles(g2d); // Disegna bus live (blu)
         } else {
             drawStaticVehicles(g2d); // Disegna bus simulati (grigi)
@@ -217,6 +345,41 @@ public class Mappa extends JPanel {
     }
 
     // --- Metodi di Disegno Specifici ---
+
+    /**
+     * Disegna l'immagine delle isocrone già pronta, scalata tra i suoi angoli, con la legenda.
+     */
+    private void drawIsochrone(Graphics2D g2d) {
+        IsochroneOverlay overlay = isochroneOverlay;
+        if (overlay != null) {
+            Point nw = latLonToScreenPixel(overlay.getNorth(), overlay.getWest());
+            Point se = latLonToScreenPixel(overlay.getSouth(), overlay.getEast());
+            g2d.drawImage(overlay.getImage(), nw.x, nw.y, se.x - nw.x, se.y - nw.y, null);
+        }
+        if (overlay == null && isochroneLoading == null) {
+            return;
+        }
+        int x = 10;
+        int y = 80;
+        g2d.setColor(new Color(0, 0, 0, 150));
+        g2d.fillRect(x, y, 150, 20 + 15 * IsochroneOverlay.BANDS_MINUTES.length);
+        g2d.setFont(new Font("Arial", Font.PLAIN, 12));
+        if (isochroneLoading != null) {
+            g2d.setColor(Color.WHITE);
+            g2d.drawString("Calcolo isocrone...", x + 10, y + 15);
+            return;
+        }
+        g2d.setColor(Color.WHITE);
+        g2d.drawString("Isocrone", x + 10, y + 15);
+        for (int b = 0; b < IsochroneOverlay.BANDS_MINUTES.length; b++) {
+            int rowY = y + 20 + 15 * b;
+            Color c = IsochroneOverlay.BAND_COLORS[b];
+            g2d.setColor(new Color(c.getRed(), c.getGreen(), c.getBlue()));
+            g2d.fillRect(x + 10, rowY + 2, 10, 10);
+            g2d.setColor(Color.WHITE);
+            g2d.drawString("entro " + IsochroneOverlay.BANDS_MINUTES[b] + " min", x + 28, rowY + 12);
+        }
+    }
     private void drawVehicles(Graphics2D g2d) {
         if (realtimeManager == null || stopController == null) {
             return;
@@ -234,7 +397,7 @@ public class Mappa extends JPanel {
 
             // Filtra i bus non appartenenti alla linea selezionata
             if (currentlyFilteredRoute != null &&
-                    !vehicle.getRouteId().equals(currentlyFilteredRoute.getId())) {
+                    vehicle.getRouteIndex() != currentlyFilteredRoute.getIndex()) {
                 continue;
             }
 
@@ -243,7 +406,7 @@ public class Mappa extends JPanel {
             int y = p.y;
             float bearing = vehicle.getBearing();
 
-            Route route = stopController.getRouteById(vehicle.getRouteId());
+            Route route = stopController.getRouteByIndex(vehicle.getRouteIndex());
             String routeName = (route != null) ? route.getName() : vehicle.getRouteId();
 
             g2d.translate(x, y);
@@ -271,60 +434,87 @@ public class Mappa extends JPanel {
     private void drawStaticVehicles(Graphics2D g2d) {
         if (stopController == null) return;
 
-        long now = System.currentTimeMillis();
-
-        // Aggiorna la cache dei bus statici se è più vecchia di 10 sec
-        if (now - lastStaticCacheTime > 10000) {
-            lastStaticCacheTime = now;
-            new Thread(() -> {
-                // Esegui la simulazione (LENTA) in background
-                simulatedVehicleCache = stopController.getSimulatedVehiclePositions();
-            }).start();
-        }
-
         AffineTransform oldTransform = g2d.getTransform();
         g2d.setFont(new Font("Arial", Font.BOLD, 10));
 
-        synchronized (simulatedVehicleCache) {
-            for (VehiclePosition vehicle : simulatedVehicleCache) {
+        for (VehiclePosition vehicle : simulatedVehicleCache) {
 
-                // Filtra i bus non appartenenti alla linea selezionata
-                if (currentlyFilteredRoute != null &&
-                        !vehicle.getRouteId().equals(currentlyFilteredRoute.getId())) {
-                    continue;
-                }
+            // Filtra i bus non appartenenti alla linea selezionata
+            if (currentlyFilteredRoute != null &&
+                    vehicle.getRouteIndex() != currentlyFilteredRoute.getIndex()) {
+                continue;
+            }
 
-                Point p = latLonToScreenPixel(vehicle.getLatitude(), vehicle.getLongitude());
-                int x = p.x;
-                int y = p.y;
-                float bearing = vehicle.getBearing();
+            Point p = latLonToScreenPixel(vehicle.getLatitude(), vehicle.getLongitude());
+            int x = p.x;
+            int y = p.y;
+            float bearing = vehicle.getBearing();
 
-                Route route = stopController.getRouteById(vehicle.getRouteId());
-                String routeName = (route != null) ? route.getName() : vehicle.getRouteId();
+            Route route = stopController.getRouteByIndex(vehicle.getRouteIndex());
+            String routeName = (route != null) ? route.getName() : vehicle.getRouteId();
 
-                g2d.translate(x, y);
-                if (bearing != -1f) {
-                    g2d.rotate(Math.toRadians(bearing));
-                }
+            g2d.translate(x, y);
+            if (bearing != -1f) {
+                g2d.rotate(Math.toRadians(bearing));
+            }
 
-                Polygon triangle = new Polygon();
-                triangle.addPoint(0, -7);
-                triangle.addPoint(-5, 5);
-                triangle.addPoint(5, 5);
+            Polygon triangle = new Polygon();
+            triangle.addPoint(0, -7);
+            triangle.addPoint(-5, 5);
+            triangle.addPoint(5, 5);
 
-                g2d.setColor(Color.DARK_GRAY); // Grigi per statico
-                g2d.fill(triangle);
-                g2d.setColor(Color.BLACK);
-                g2d.draw(triangle);
+            g2d.setColor(Color.DARK_GRAY); // Grigi per statico
+            g2d.fill(triangle);
+            g2d.setColor(Color.BLACK);
+            g2d.draw(triangle);
 
-                g2d.setTransform(oldTransform);
-                g2d.setColor(Color.BLACK);
-                g2d.drawString(routeName, x + 8, y + 4);
-            }
+            g2d.setTransform(oldTransform);
+            g2d.setColor(Color.BLACK);
+            g2d.drawString(routeName, x + 8, y + 4);
         }
         g2d.setTransform(oldTransform);
     }
 
+    /**
+     * Disegna le fermate nell'area visibile, chieste all'indice spaziale del controller.
+     */
+    private void drawStops(Graphics2D g2d) {
+        if (stopController == null || zoom < STOPS_MIN_ZOOM) {
+            return;
+        }
+        double[] topLeft = screenPixelToLatLon(0, 0);
+        double[] bottomRight = screenPixelToLatLon(getWidth(), getHeight());
+        List<Stop> visible = stopController.getStopsInArea(bottomRight[0], topLeft[1], topLeft[0], bottomRight[1]);
+
+        int size = 6;
+        for (Stop stop : visible) {
+            Point p = latLonToScreenPixel(stop.getLat(), stop.getLon());
+            g2d.setColor(Color.WHITE);
+            g2d.fillOval(p.x - size / 2, p.y - size / 2, size, size);
+            g2d.setColor(new Color(0, 100, 0));
+            g2d.drawOval(p.x - size / 2, p.y - size / 2, size, size);
+        }
+    }
+
+    /**
+     * Seleziona la fermata più vicina al punto cliccato, se entro pochi pixel.
+     */
+    private void selectStopAt(Point click) {
+        if (stopController == null) {
+            return;
+        }
+        double[] latLon = screenPixelToLatLon(click.x, click.y);
+        double metersPerPixel = 156543.03392 * Math.cos(Math.toRadians(latLon[0])) / Math.pow(2, zoom);
+        List<Stop> nearest = stopController.getNearestStops(latLon[0], latLon[1], 1, CLICK_TOLERANCE_PX * metersPerPixel);
+        if (nearest.isEmpty()) {
+            return;
+        }
+        setSelectedStop(nearest.get(0));
+        if (stopClickListener != null) {
+            stopClickListener.accept(nearest.get(0));
+        }
+    }
+
     /**
      * Disegna la linea del percorso (con fallback).
      * Prova prima a usare il percorso fluido (da shapes.txt).
@@ -340,17 +530,20 @@ public class Mappa extends JPanel {
         g2d.setColor(new Color(255, 0, 0, 150)); // Rosso semi-trasparente
 
         // --- OPZIONE A: Prova il percorso corretto ---
-        List<ShapePoint> shapePoints = stopController.getShapeForRoute(currentlyFilteredRoute);
+        Shape shape = stopController.getShapeForRoute(currentlyFilteredRoute);
 
-        if (shapePoints.size() >= 2) {
+        if (shape.size() >= 2) {
             // SUCCESSO: Dati trovati, disegna il percorso fluido
             Path2D.Double path = new Path2D.Double();
 
-            Point startPoint = latLonToScreenPixel(shapePoints.get(0).getLat(), shapePoints.get(0).getLon());
+            // I punti sono compressi: si decodificano in sequenza mentre si costruisce il tracciato
+            Shape.PointIterator it = shape.points();
+            it.next();
+            Point startPoint = latLonToScreenPixel(it.lat(), it.lon());
             path.moveTo(startPoint.x, startPoint.y);
 
-            for (int i = 1; i < shapePoints.size(); i++) {
-                Point nextPoint = latLonToScreenPixel(shapePoints.get(i).getLat(), shapePoints.get(i).getLon());
+            while (it.next()) {
+                Point nextPoint = latLonToScreenPixel(it.lat(), it.lon());
                 path.lineTo(nextPoint.x, nextPoint.y);
             }
             g2d.draw(path);
@@ -405,6 +598,23 @@ public class Mappa extends JPanel {
 
         return new Point(finalX, finalY);
     }
+    /**
+     * Converte un punto (x, y) sullo schermo nella coordinata geografica {lat, lon}
+     * (proiezione Web Mercator delle tile).
+     */
+    private double[] screenPixelToLatLon(int x, int y) {
+        double worldSize = TilesManager.getTileSize() * Math.pow(2, zoom);
+        double centerX = (centerLon + 180) / 360 * worldSize;
+        double latRad = Math.toRadians(centerLat);
+        double centerY = (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * worldSize;
+
+        double worldX = centerX + (x - getWidth() / 2.0);
+        double worldY = centerY + (y - getHeight() / 2.0);
+        double lon = worldX / worldSize * 360 - 180;
+        double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * worldY / worldSize))));
+        return new double[]{lat, lon};
+    }
+
     public void setSelectedStop(Stop stop) {
         this.selectedStop = stop;
         repaint(); // Forza un ridisegno per mostrare l'evidenziazione
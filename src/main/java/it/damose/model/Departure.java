@@ -0,0 +1,60 @@
+package it.damose.model;
+
+/**
+ * POJO (Modello) che rappresenta una riga del tabellone delle partenze:
+ * un passaggio a una fermata, previsto in tempo reale o da orario.
+ */
+public class Departure {
+
+    private final Stop stop;
+    private final int routeIndex; // Indice denso della linea (FeedIds.routes), -1 se sconosciuta
+    private final String routeId;
+    private final long time;      // Timestamp UNIX (in secondi)
+    private final int delay;      // Ritardo in secondi, 0 per gli orari programmati
+    private final boolean realtime;
+
+    public Departure(Stop stop, int routeIndex, String routeId, long time, int delay, boolean realtime) {
+        this.stop = stop;
+        this.routeIndex = routeIndex;
+        this.routeId = routeId;
+        this.time = time;
+        this.delay = delay;
+        this.realtime = realtime;
+    }
+
+    public Stop getStop() {
+        return stop;
+    }
+
+    /**
+     * @return L'indice della linea nel feed statico, -1 se sconosciuta.
+     */
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    /**
+     * @return L'orario del passaggio, in timestamp UNIX (secondi).
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return Il ritardo in secondi (positivo = ritardo, negativo = anticipo).
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return true se la previsione arriva dal feed in tempo reale, false se è l'orario programmato.
+     */
+    public boolean isRealtime() {
+        return realtime;
+    }
+}
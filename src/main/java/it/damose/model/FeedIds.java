@@ -0,0 +1,55 @@
+package it.damose.model;
+
+/**
+ * I dizionari degli identificativi dell'intero feed: ogni stop_id, route_id,
+ * trip_id e shape_id riceve una volta sola, al caricamento, un intero denso.
+ *
+ * Modelli, orari e dati in tempo reale si riferiscono tra loro con questi indici
+ * (confronti e accessi ad array al posto di hash e equals su String); le String
+ * servono solo ai bordi, per mostrare un id o cercarlo per nome.
+ *
+ * Ogni dizionario ha un solo scrittore durante il caricamento:
+ * <ul>
+ *   <li>stops: stops.txt, più le fermate citate solo in stop_times.txt</li>
+ *   <li>routes: routes.txt</li>
+ *   <li>trips e shapes: trips.txt (gli shape_id usati dai viaggi)</li>
+ * </ul>
+ * A caricamento concluso i dizionari sono solo letti e possono essere condivisi tra thread.
+ */
+public class FeedIds {
+
+    private final IdDictionary stops;
+    private final IdDictionary routes;
+    private final IdDictionary trips;
+    private final IdDictionary shapes;
+
+    public FeedIds() {
+        this(new IdDictionary(), new IdDictionary(), new IdDictionary(), new IdDictionary());
+    }
+
+    public FeedIds(IdDictionary stops, IdDictionary routes, IdDictionary trips, IdDictionary shapes) {
+        this.stops = stops;
+        this.routes = routes;
+        this.trips = trips;
+        this.shapes = shapes;
+    }
+
+    public IdDictionary stops() { return stops; }
+    public IdDictionary routes() { return routes; }
+    public IdDictionary trips() { return trips; }
+    public IdDictionary shapes() { return shapes; }
+
+    /**
+     * @return L'indice della linea, o -1 se il route_id è assente o sconosciuto.
+     */
+    public int routeIndex(String routeId) {
+        return routeId == null ? -1 : routes.indexOf(routeId);
+    }
+
+    /**
+     * @return L'indice della fermata, o -1 se lo stop_id è assente o sconosciuto.
+     */
+    public int stopIndex(String stopId) {
+        return stopId == null ? -1 : stops.indexOf(stopId);
+    }
+}
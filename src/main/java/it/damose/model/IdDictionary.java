@@ -0,0 +1,51 @@
+package it.damose.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Associa ogni identificativo GTFS (stop_id, trip_id, ...) a un intero denso 0..size-1,
+ * così le strutture più grandi possono usare array di int al posto delle String.
+ *
+ * Non è thread-safe in scrittura: va riempito durante il caricamento e poi
+ * può essere letto da più thread contemporaneamente.
+ */
+public class IdDictionary {
+
+    private final Map<String, Integer> indexById = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+
+    /**
+     * @return L'indice dell'id, aggiungendolo se non è ancora presente.
+     */
+    public int intern(String id) {
+        Integer idx = indexById.get(id);
+        if (idx == null) {
+            idx = ids.size();
+            indexById.put(id, idx);
+            ids.add(id);
+        }
+        return idx;
+    }
+
+    /**
+     * @return L'indice dell'id, o -1 se non è presente.
+     */
+    public int indexOf(String id) {
+        Integer idx = indexById.get(id);
+        return idx != null ? idx : -1;
+    }
+
+    /**
+     * @return L'id (la String originale) corrispondente all'indice.
+     */
+    public String idOf(int index) {
+        return ids.get(index);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
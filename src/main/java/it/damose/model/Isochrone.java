@@ -0,0 +1,50 @@
+package it.damose.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * POJO (Modello) con i tempi di viaggio da una fermata a tutte quelle raggiungibili
+ * entro un limite: per ogni fermata la mediana dei tempi sulle partenze di una finestra
+ * di minuti, così il risultato non dipende dall'aver appena perso (o preso) una corsa.
+ *
+ * Le fermate raggiunte e i loro tempi sono array paralleli; le fermate non raggiunte
+ * entro il limite non compaiono. Il tempo è quello per arrivare alla fermata, a bordo
+ * o con i tratti a piedi tra fermate vicine (anche dalla partenza, e se conviene come
+ * ultimo tratto): non comprende il cammino dalla fermata verso la zona intorno.
+ */
+public class Isochrone {
+
+    private final Stop origin;
+    private final LocalDateTime departure;
+    private final int windowMinutes;
+    private final int maxSeconds;
+    private final Stop[] stops;
+    private final int[] seconds;
+
+    public Isochrone(Stop origin, LocalDateTime departure, int windowMinutes, int maxSeconds,
+                     Stop[] stops, int[] seconds) {
+        this.origin = origin;
+        this.departure = departure;
+        this.windowMinutes = windowMinutes;
+        this.maxSeconds = maxSeconds;
+        this.stops = stops;
+        this.seconds = seconds;
+    }
+
+    public Stop getOrigin() { return origin; }
+    public LocalDateTime getDeparture() { return departure; }
+
+    /** @return Quanti minuti di partenze (da getDeparture() in poi) entrano nella mediana. */
+    public int getWindowMinutes() { return windowMinutes; }
+
+    /** @return Il tempo di viaggio massimo considerato, in secondi. */
+    public int getMaxSeconds() { return maxSeconds; }
+
+    /** @return Quante fermate si raggiungono entro getMaxSeconds(). */
+    public int size() { return stops.length; }
+
+    public Stop stopAt(int i) { return stops[i]; }
+
+    /** @return Il tempo di viaggio mediano verso la fermata i, in secondi. */
+    public int secondsAt(int i) { return seconds[i]; }
+}
@@ -0,0 +1,85 @@
+package it.damose.model;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * POJO (Modello) che rappresenta un itinerario tra due fermate: una sequenza di
+ * tratte a bordo e a piedi. Gli orari sono in secondi dalla mezzanotte della data
+ * (anche oltre le 24:00:00, come negli orari GTFS).
+ */
+public class Journey {
+
+    /**
+     * Una tratta dell'itinerario: a bordo di un trip oppure a piedi tra due fermate vicine.
+     */
+    public static class Leg {
+        private final Stop from;
+        private final Stop to;
+        private final int departure;
+        private final int arrival;
+        private final Trip trip;      // null per le tratte a piedi
+
+        public Leg(Stop from, Stop to, int departure, int arrival, Trip trip) {
+            this.from = from;
+            this.to = to;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.trip = trip;
+        }
+
+        public Stop getFrom() { return from; }
+        public Stop getTo() { return to; }
+        public int getDeparture() { return departure; }
+        public int getArrival() { return arrival; }
+
+        /**
+         * @return Il trip della tratta, o null se è a piedi.
+         */
+        public Trip getTrip() { return trip; }
+
+        public boolean isWalk() { return trip == null; }
+    }
+
+    private final LocalDate date;
+    private final List<Leg> legs;
+
+    public Journey(LocalDate date, List<Leg> legs) {
+        this.date = date;
+        this.legs = Collections.unmodifiableList(legs);
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public List<Leg> getLegs() {
+        return legs;
+    }
+
+    /**
+     * @return L'orario di partenza dalla prima fermata.
+     */
+    public int getDeparture() {
+        return legs.isEmpty() ? -1 : legs.get(0).getDeparture();
+    }
+
+    /**
+     * @return L'orario di arrivo all'ultima fermata.
+     */
+    public int getArrival() {
+        return legs.isEmpty() ? -1 : legs.get(legs.size() - 1).getArrival();
+    }
+
+    /**
+     * @return I cambi di mezzo (tratte a bordo meno una; 0 se a piedi o con un solo mezzo).
+     */
+    public int getTransfers() {
+        int rides = 0;
+        for (Leg leg : legs) {
+            if (!leg.isWalk()) rides++;
+        }
+        return Math.max(0, rides - 1);
+    }
+}
@@ -6,16 +6,25 @@ package it.damose.model;
  */
 public class RealtimeArrival {
 
+    private final int routeIndex; // Indice denso della linea (FeedIds.routes), -1 se non è nel feed statico
     private final String routeId;
     private final long arrivalTime; // Timestamp UNIX (in secondi)
     private final int delay; // Ritardo in secondi
 
-    public RealtimeArrival(String routeId, long arrivalTime, int delay) {
+    public RealtimeArrival(int routeIndex, String routeId, long arrivalTime, int delay) {
+        this.routeIndex = routeIndex;
         this.routeId = routeId;
         this.arrivalTime = arrivalTime;
         this.delay = delay;
     }
 
+    /**
+     * @return L'indice della linea nel feed statico, -1 se sconosciuta.
+     */
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
     public String getRouteId() {
         return routeId;
     }
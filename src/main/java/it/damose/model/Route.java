@@ -1,24 +1,37 @@
 package it.damose.model;
 
-import javax.swing.*;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 public class Route {
+    private final int index; // Indice denso nel dizionario delle linee (FeedIds.routes), -1 se assente
     private final String id;
     private final String name;
     private final String type;
-    private final List<String> stopIds = new ArrayList<>();
+    // Fermate servite (indici densi): quelle del pattern principale in ordine, poi le altre.
+    // Come pattern e viaggi, le assegna GtfsLoader.link prima che la linea sia pubblicata.
+    private int[] stopIndices = new int[0];
+    private IdDictionary stopIds;
     private final List<Trip> trips = new ArrayList<>();
+    private List<TripPattern> patterns = Collections.emptyList();
 
     public Route(String id, String name, String type) {
+        this(-1, id, name, type);
+    }
+
+    public Route(int index, String id, String name, String type) {
+        this.index = index;
         this.id = id;
         this.name = name;
         this.type = type;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
     public String getId() {
         return id;
     }
@@ -31,28 +44,65 @@ public class Route {
         return type;
     }
 
-    public void addStopId(String stopId) {
-        if (!stopIds.contains(stopId)) {
-            stopIds.add(stopId);
-        }
+    /**
+     * Assegna le fermate servite dalla linea.
+     *
+     * @param stopIndices Gli indici delle fermate, senza ripetizioni
+     * @param stopIds     Il dizionario da cui vengono gli indici, per risalire agli stop_id
+     */
+    public void setStops(int[] stopIndices, IdDictionary stopIds) {
+        this.stopIds = stopIds;
+        this.stopIndices = stopIndices;
     }
 
+    /**
+     * @return Gli indici delle fermate servite, nell'ordine di percorrenza. L'array è
+     * condiviso: va solo letto.
+     */
+    public int[] getStopIndices() {
+        return stopIndices;
+    }
 
+    /**
+     * @return Gli stop_id delle fermate servite, come vista di sola lettura (nessuna copia).
+     */
     public List<String> getAllStopIds() {
-        Set<String> stopIds = new HashSet<>();
-        for (Trip trip : trips) {
-            for (StopTime st : trip.getStopTimes()) {
-                stopIds.add(st.getStopId());
-            }
+        final int[] indices = stopIndices;
+        final IdDictionary ids = stopIds;
+        if (ids == null) {
+            return Collections.emptyList();
         }
-        return new ArrayList<>(stopIds);
+        return new AbstractList<String>() {
+            @Override
+            public String get(int i) {
+                return ids.idOf(indices[i]);
+            }
+
+            @Override
+            public int size() {
+                return indices.length;
+            }
+        };
+    }
+
+    /**
+     * Assegna i pattern della linea (da GtfsLoader.link), dal più frequente.
+     */
+    public void setPatterns(List<TripPattern> patterns) {
+        this.patterns = Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * @return Le sequenze di fermate percorse dalla linea, dalla più frequente
+     * (la prima è il percorso "principale", usato per shape ed elenco delle fermate).
+     */
+    public List<TripPattern> getPatterns() {
+        return patterns;
     }
 
     public void addTrip(Trip trip) {
         trips.add(trip);
-        for (String stopId : trip.getStopIds()) {
-            addStopId(stopId);
-        }
+        trip.setRouteIndex(index);
     }
     public List<Trip> getTrips() {
         return trips;
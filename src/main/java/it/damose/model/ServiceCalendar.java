@@ -0,0 +1,107 @@
+package it.damose.model;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * I calendari di servizio del feed (calendar.txt e calendar_dates.txt).
+ *
+ * Ogni service_id ha una regola settimanale valida tra due date e un elenco di
+ * eccezioni per singole date (servizio aggiunto o soppresso). Le date sono tenute
+ * come giorni dall'epoca (LocalDate.toEpochDay) per non creare oggetti.
+ */
+public class ServiceCalendar {
+
+    /** Un service_id con la sua regola settimanale e le eccezioni. */
+    public static class Service {
+        private final String id;
+        private int dayMask;           // bit 0 = lunedì ... bit 6 = domenica
+        private long startDay = Long.MAX_VALUE;
+        private long endDay = Long.MIN_VALUE;
+        private final Set<Long> added = new HashSet<>();
+        private final Set<Long> removed = new HashSet<>();
+
+        Service(String id) {
+            this.id = id;
+        }
+
+        public String getId() { return id; }
+        public int getDayMask() { return dayMask; }
+        public long getStartDay() { return startDay; }
+        public long getEndDay() { return endDay; }
+        public Set<Long> getAddedDays() { return added; }
+        public Set<Long> getRemovedDays() { return removed; }
+
+        /**
+         * @return true se il servizio è attivo nel giorno indicato (giorni dall'epoca).
+         */
+        public boolean isActive(long epochDay) {
+            if (added.contains(epochDay)) return true;
+            if (removed.contains(epochDay)) return false;
+            if (epochDay < startDay || epochDay > endDay) return false;
+            int dayOfWeek = LocalDate.ofEpochDay(epochDay).getDayOfWeek().getValue() - 1;
+            return (dayMask & (1 << dayOfWeek)) != 0;
+        }
+    }
+
+    private final Map<String, Service> services = new HashMap<>();
+
+    private Service service(String serviceId) {
+        return services.computeIfAbsent(serviceId, Service::new);
+    }
+
+    /**
+     * Registra una riga di calendar.txt.
+     *
+     * @param dayMask I giorni della settimana (bit 0 = lunedì ... bit 6 = domenica)
+     */
+    public void addWeekly(String serviceId, int dayMask, long startDay, long endDay) {
+        Service s = service(serviceId);
+        s.dayMask = dayMask;
+        s.startDay = startDay;
+        s.endDay = endDay;
+    }
+
+    /**
+     * Registra una riga di calendar_dates.txt.
+     *
+     * @param added true per exception_type 1 (servizio aggiunto), false per 2 (soppresso)
+     */
+    public void addException(String serviceId, long epochDay, boolean added) {
+        Service s = service(serviceId);
+        if (added) {
+            s.added.add(epochDay);
+            s.removed.remove(epochDay);
+        } else {
+            s.removed.add(epochDay);
+            s.added.remove(epochDay);
+        }
+    }
+
+    /**
+     * @return true se il feed non ha calendari: in quel caso ogni trip è considerato sempre attivo.
+     */
+    public boolean isEmpty() {
+        return services.isEmpty();
+    }
+
+    public Collection<Service> getServices() {
+        return services.values();
+    }
+
+    /**
+     * @return true se il servizio è attivo nella data indicata. Un service_id
+     * assente (o un feed senza calendari) è considerato sempre attivo.
+     */
+    public boolean isActive(String serviceId, LocalDate date) {
+        if (serviceId == null || serviceId.isEmpty() || services.isEmpty()) {
+            return true;
+        }
+        Service s = services.get(serviceId);
+        return s == null || s.isActive(date.toEpochDay());
+    }
+}
@@ -0,0 +1,119 @@
+package it.damose.model;
+
+import it.damose.util.IntArrayList;
+
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * I trip in servizio in una data, ricavati dallo StopTimeStore senza ricaricare il feed.
+ *
+ * Contiene i trip il cui service_id è attivo nella data, più la "coda notturna" di
+ * ieri: i trip attivi il giorno prima che hanno orari oltre le 24:00:00 e quindi
+ * circolano ancora dopo la mezzanotte. Per ogni trip c'è lo scostamento da sommare
+ * agli orari GTFS per ottenere i secondi dalla mezzanotte della data: 0 per i trip
+ * di oggi, -86400 per quelli di ieri.
+ *
+ * Costruirne uno costa un passaggio sui trip (più l'ultima riga di quelli di ieri):
+ * a mezzanotte il controller ne crea uno nuovo al posto del vecchio.
+ */
+public class ServiceDay {
+
+    /** Con -Ddamose.gtfs.allServices=true ogni trip è considerato attivo ogni giorno. */
+    public static final String ALL_SERVICES_PROPERTY = "damose.gtfs.allServices";
+
+    public static final int SECONDS_PER_DAY = 24 * 3600;
+
+    private final LocalDate date;
+    private final int[] trips;   // Indici dei trip nello store
+    private final int[] offsets; // Secondi da sommare agli orari del trip corrispondente
+    private final BitSet today;         // Trip (per indice nello store) attivi nella data
+    private final BitSet fromYesterday; // Trip di ieri che circolano ancora dopo la mezzanotte
+
+    private ServiceDay(LocalDate date, int[] trips, int[] offsets) {
+        this.date = date;
+        this.trips = trips;
+        this.offsets = offsets;
+        this.today = new BitSet();
+        this.fromYesterday = new BitSet();
+        for (int i = 0; i < trips.length; i++) {
+            (offsets[i] == 0 ? today : fromYesterday).set(trips[i]);
+        }
+    }
+
+    /**
+     * Seleziona i trip in servizio nella data indicata.
+     */
+    public static ServiceDay build(StopTimeStore store, ServiceCalendar calendar, LocalDate date) {
+        IntArrayList trips = new IntArrayList(1 << 12);
+        IntArrayList offsets = new IntArrayList(1 << 12);
+        boolean allServices = calendar == null || calendar.isEmpty() || Boolean.getBoolean(ALL_SERVICES_PROPERTY);
+
+        Map<String, Boolean> today = new HashMap<>();
+        Map<String, Boolean> yesterday = new HashMap<>();
+        LocalDate previous = date.minusDays(1);
+
+        for (int t = 0; t < store.tripCount(); t++) {
+            String serviceId = store.trip(t).getServiceId();
+            if (allServices || today.computeIfAbsent(serviceId, id -> calendar.isActive(id, date))) {
+                trips.add(t);
+                offsets.add(0);
+            }
+            if (!allServices && yesterday.computeIfAbsent(serviceId, id -> calendar.isActive(id, previous))
+                    && lastArrival(store, t) >= SECONDS_PER_DAY) {
+                trips.add(t);
+                offsets.add(-SECONDS_PER_DAY);
+            }
+        }
+        return new ServiceDay(date, trips.toArray(), offsets.toArray());
+    }
+
+    private static int lastArrival(StopTimeStore store, int trip) {
+        for (int row = store.rowEnd(trip) - 1; row >= store.rowStart(trip); row--) {
+            int arrival = store.arrivalOf(trip, row);
+            if (arrival >= 0) return arrival;
+        }
+        return -1;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /**
+     * @return Il numero di trip in servizio (un trip attivo ieri e oggi conta due volte).
+     */
+    public int size() {
+        return trips.length;
+    }
+
+    /**
+     * @return L'indice nello store dell'i-esimo trip in servizio.
+     */
+    public int tripAt(int i) {
+        return trips[i];
+    }
+
+    /**
+     * @return true se il trip (indice nello store) è in servizio nella data.
+     */
+    public boolean runsToday(int trip) {
+        return today.get(trip);
+    }
+
+    /**
+     * @return true se il trip è del giorno prima e ha orari oltre le 24:00:00.
+     */
+    public boolean runsFromYesterday(int trip) {
+        return fromYesterday.get(trip);
+    }
+
+    /**
+     * @return I secondi da sommare agli orari dell'i-esimo trip (0 oppure -86400).
+     */
+    public int offsetAt(int i) {
+        return offsets[i];
+    }
+}
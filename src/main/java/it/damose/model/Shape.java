@@ -0,0 +1,148 @@
+package it.damose.model;
+
+import java.util.Arrays;
+
+/**
+ * Il percorso (shape) di un viaggio: i punti GPS in ordine di shape_pt_sequence.
+ *
+ * I punti sono memorizzati in forma compatta: le coordinate in virgola fissa
+ * (milionesimi di grado, circa 11 cm) e, per ogni punto, la differenza rispetto
+ * al precedente scritta come varint (zig-zag, 7 bit per byte). Punti vicini
+ * differiscono di poche centinaia di unità, quindi un punto occupa di solito
+ * 2-4 byte invece dei 16 di due double (o dei ~50 di un oggetto per punto).
+ *
+ * I punti si leggono in sequenza con {@link #points()}, senza creare oggetti.
+ */
+public class Shape {
+
+    /** Unità per grado della rappresentazione in virgola fissa. */
+    public static final double SCALE = 1e6;
+
+    public static final Shape EMPTY = new Shape("", new byte[0], 0);
+
+    private final String id;
+    private final byte[] data; // Coppie (Δlat, Δlon) in varint zig-zag
+    private final int size;
+
+    private Shape(String id, byte[] data, int size) {
+        this.id = id;
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Codifica un percorso dato in milionesimi di grado.
+     *
+     * @param n Quanti punti usare (i primi n degli array)
+     */
+    public static Shape encode(String id, int[] latE6, int[] lonE6, int n) {
+        byte[] out = new byte[Math.max(16, n * 4)];
+        int pos = 0;
+        int prevLat = 0, prevLon = 0;
+        for (int i = 0; i < n; i++) {
+            if (pos + 10 > out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            pos = writeVarint(out, pos, latE6[i] - prevLat);
+            pos = writeVarint(out, pos, lonE6[i] - prevLon);
+            prevLat = latE6[i];
+            prevLon = lonE6[i];
+        }
+        return new Shape(id, Arrays.copyOf(out, pos), n);
+    }
+
+    /**
+     * Ricostruisce un percorso dai punti già codificati (vedi {@link #encodedPoints()}),
+     * senza ricodificarli: serve allo snapshot.
+     */
+    public static Shape ofEncoded(String id, byte[] encodedPoints, int size) {
+        return new Shape(id, encodedPoints, size);
+    }
+
+    /**
+     * Converte una coordinata in gradi nella virgola fissa usata dagli shape.
+     */
+    public static int toFixed(double degrees) {
+        return (int) Math.round(degrees * SCALE);
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        int v = (value << 1) ^ (value >> 31); // zig-zag: piccoli valori negativi → piccoli positivi
+        while ((v & ~0x7F) != 0) {
+            out[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[pos++] = (byte) v;
+        return pos;
+    }
+
+    public String getId() { return id; }
+
+    /**
+     * @return Il numero di punti del percorso.
+     */
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * @return I byte occupati dai punti codificati.
+     */
+    public int memoryBytes() { return data.length; }
+
+    /**
+     * @return I punti in forma compatta. L'array è condiviso: va solo letto.
+     */
+    public byte[] encodedPoints() { return data; }
+
+    /**
+     * @return Un cursore che scorre i punti dal primo all'ultimo.
+     */
+    public PointIterator points() {
+        return new PointIterator();
+    }
+
+    /**
+     * Decodifica i punti uno alla volta:
+     * <pre>
+     *   Shape.PointIterator it = shape.points();
+     *   while (it.next()) { usa(it.lat(), it.lon()); }
+     * </pre>
+     */
+    public class PointIterator {
+        private int pos;
+        private int remaining = size;
+        private int latE6, lonE6;
+
+        /**
+         * Avanza al punto successivo.
+         * @return false quando i punti sono finiti.
+         */
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            latE6 += readVarint();
+            lonE6 += readVarint();
+            return true;
+        }
+
+        private int readVarint() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        public int latE6() { return latE6; }
+        public int lonE6() { return lonE6; }
+        public double lat() { return latE6 / SCALE; }
+        public double lon() { return lonE6 / SCALE; }
+    }
+}
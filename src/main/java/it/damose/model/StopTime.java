@@ -1,17 +1,30 @@
 package it.damose.model;
 
+/**
+ * Vista leggera su una riga di {@link StopTimeStore}: non contiene dati propri,
+ * le String vengono ricavate solo quando richieste.
+ */
 public class StopTime {
-    private final String tripId;
-    private final String stopId;
-    private final String arrivalTime;
+    private final StopTimeStore store;
+    private final int row;
 
-    public StopTime(String tripId, String stopId, String arrivalTime) {
-        this.tripId = tripId;
-        this.stopId = stopId;
-        this.arrivalTime = arrivalTime;
+    public StopTime(StopTimeStore store, int row) {
+        this.store = store;
+        this.row = row;
     }
 
-    public String getTripId() { return tripId; }
-    public String getStopId() { return stopId; }
-    public String getArrivalTime() { return arrivalTime; }
+    public Trip getTrip() { return store.trip(store.tripOf(row)); }
+    public String getTripId() { return getTrip().getId(); }
+    public String getStopId() { return store.stopId(store.stopOf(row)); }
+    public String getArrivalTime() { return StopTimeStore.formatTime(store.arrivalOf(row)); }
+
+    /**
+     * @return L'orario di arrivo in secondi dalla mezzanotte del giorno di servizio
+     * (può superare 86400 per le corse notturne), -1 se assente.
+     */
+    public int getArrivalSeconds() { return store.arrivalOf(row); }
+    public int getStopIndex() { return store.stopOf(row); }
+    public int getTripIndex() { return store.tripOf(row); }
+    public int getSequence() { return store.sequenceOf(row); }
+    public int getRow() { return row; }
 }
@@ -0,0 +1,438 @@
+package it.damose.model;
+
+import it.damose.util.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tutti gli stop_times del feed, memorizzati per colonne (struct-of-arrays).
+ *
+ * Ogni riga ha indice del trip, indice della fermata, orario di arrivo in
+ * secondi dalla mezzanotte (anche oltre le 24:00:00, -1 se assente) e
+ * stop_sequence. Le righe di uno stesso trip sono contigue, in ordine di
+ * stop_sequence, nell'intervallo [rowStart(trip), rowEnd(trip)).
+ *
+ * Fermate e orari non sono però copiati riga per riga: migliaia di trip ripetono
+ * le stesse poche sequenze di fermate ({@link TripPattern}) e gli stessi tempi di
+ * percorrenza, solo spostati in avanti. Lo store tiene quindi ogni sequenza e ogni
+ * profilo di orari (scarti dal primo orario del trip) una volta sola; per trip
+ * restano pattern, profilo e orario di partenza. Le colonne per riga diventano
+ * calcoli: fermata = stops del pattern, arrivo = partenza + scarto del profilo.
+ *
+ * Fermate e trip sono identificati da indici densi (vedi {@link IdDictionary});
+ * {@link StopTime} resta solo come vista leggera su una riga.
+ */
+public class StopTimeStore {
+
+    // Stima del costo di una riga con la vecchia rappresentazione a oggetti:
+    // StopTime (24 B) + String dell'orario non condivisa (~56 B) + String dello stop_id (~48 B)
+    // + riferimento nella List del Trip (4 B)
+    private static final int LEGACY_BYTES_PER_ROW = 132;
+
+    private final Trip[] trips;
+    private final IdDictionary stopIds;
+    // tripStart[t]..tripStart[t+1] = righe del trip t; il trip di una riga si ritrova con
+    // una ricerca binaria, senza una colonna per riga
+    private final int[] tripStart;
+
+    // Sequenze di fermate e profili di orari, ciascuno memorizzato una volta sola
+    private final int[][] patternStops;
+    private final int[][] patternSequences;
+    private final int[][] profiles;     // Scarto in secondi dal primo orario del trip, -1 se assente
+    private final TripPattern[] patterns;
+
+    // Per trip (-1 se non ha righe)
+    private final int[] tripPattern;
+    private final int[] tripProfile;
+    private final int[] tripBase;       // Primo orario presente del trip
+
+    /**
+     * @param patternStops     Le fermate di ogni pattern
+     * @param patternSequences Le stop_sequence di ogni pattern
+     * @param profiles         I profili di orari (scarti da tripBase, -1 se l'orario manca)
+     * @param tripPattern      Il pattern di ogni trip
+     * @param tripProfile      Il profilo di ogni trip
+     * @param tripBase         L'orario a cui si sommano gli scarti del profilo, per trip
+     */
+    public StopTimeStore(Trip[] trips, IdDictionary stopIds, int[] tripStart,
+                         int[][] patternStops, int[][] patternSequences, int[][] profiles,
+                         int[] tripPattern, int[] tripProfile, int[] tripBase) {
+        this.trips = trips;
+        this.stopIds = stopIds;
+        this.tripStart = tripStart;
+        this.patternStops = patternStops;
+        this.patternSequences = patternSequences;
+        this.profiles = profiles;
+        this.tripPattern = tripPattern;
+        this.tripProfile = tripProfile;
+        this.tripBase = tripBase;
+        for (int t = 0; t < trips.length; t++) {
+            trips[t].attach(this, t);
+        }
+        this.patterns = linkPatterns();
+    }
+
+    /**
+     * Crea i TripPattern con i loro trip; linea e shape sono quelli del primo trip,
+     * uguali per tutti per costruzione (vedi Builder).
+     */
+    private TripPattern[] linkPatterns() {
+        int[] count = new int[patternStops.length];
+        for (int p : tripPattern) {
+            if (p >= 0) count[p]++;
+        }
+        int[][] patternTrips = new int[patternStops.length][];
+        for (int p = 0; p < patternTrips.length; p++) {
+            patternTrips[p] = new int[count[p]];
+            count[p] = 0;
+        }
+        for (int t = 0; t < trips.length; t++) {
+            int p = tripPattern[t];
+            if (p >= 0) patternTrips[p][count[p]++] = t;
+        }
+        TripPattern[] result = new TripPattern[patternStops.length];
+        for (int p = 0; p < result.length; p++) {
+            Trip first = patternTrips[p].length > 0 ? trips[patternTrips[p][0]] : null;
+            result[p] = new TripPattern(p, patternStops[p], patternSequences[p],
+                    first != null ? first.getRouteId() : null,
+                    first != null ? first.getShapeId() : null,
+                    first != null ? first.getShapeIndex() : -1,
+                    patternTrips[p]);
+        }
+        return result;
+    }
+
+    // --- Dimensioni ---
+
+    public int rowCount() { return tripStart[trips.length]; }
+    public int tripCount() { return trips.length; }
+    public int stopCount() { return stopIds.size(); }
+
+    // --- Trip ---
+
+    public Trip trip(int trip) { return trips[trip]; }
+    public int rowStart(int trip) { return tripStart[trip]; }
+    public int rowEnd(int trip) { return tripStart[trip + 1]; }
+
+    // --- Colonne ---
+
+    /**
+     * @return Il trip a cui appartiene la riga (ricerca binaria sugli inizi dei trip).
+     */
+    public int tripOf(int row) {
+        int lo = 0;
+        int hi = trips.length;
+        while (lo < hi) { // Primo trip che inizia dopo la riga
+            int mid = (lo + hi) >>> 1;
+            if (tripStart[mid] <= row) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    public int stopOf(int row) { return stopOf(tripOf(row), row); }
+    public int arrivalOf(int row) { return arrivalOf(tripOf(row), row); }
+
+    /**
+     * Come {@link #stopOf(int)}, per chi scorre le righe di un trip già noto (senza ricerca).
+     */
+    public int stopOf(int trip, int row) {
+        return patternStops[tripPattern[trip]][row - tripStart[trip]];
+    }
+
+    /**
+     * Come {@link #arrivalOf(int)}, per chi scorre le righe di un trip già noto (senza ricerca).
+     */
+    public int arrivalOf(int trip, int row) {
+        int offset = profiles[tripProfile[trip]][row - tripStart[trip]];
+        return offset < 0 ? -1 : tripBase[trip] + offset;
+    }
+
+    public int sequenceOf(int row) {
+        int t = tripOf(row);
+        return patternSequences[tripPattern[t]][row - tripStart[t]];
+    }
+
+    // --- Pattern e profili ---
+
+    public int patternCount() { return patterns.length; }
+    public TripPattern pattern(int pattern) { return patterns[pattern]; }
+
+    /**
+     * @return Il pattern del trip, o -1 se il trip non ha righe.
+     */
+    public int patternOf(int trip) { return tripPattern[trip]; }
+
+    public int profileCount() { return profiles.length; }
+
+    /**
+     * @return Gli scarti dal primo orario del profilo. L'array è condiviso: va solo letto.
+     */
+    public int[] profile(int profile) { return profiles[profile]; }
+
+    /**
+     * @return Il profilo di orari del trip, o -1 se il trip non ha righe.
+     */
+    public int profileOf(int trip) { return tripProfile[trip]; }
+
+    /**
+     * @return Il primo orario presente del trip (a cui si sommano gli scarti del profilo).
+     */
+    public int baseOf(int trip) { return tripBase[trip]; }
+
+    // --- Fermate ---
+
+    public IdDictionary getStopIds() { return stopIds; }
+    public String stopId(int stop) { return stopIds.idOf(stop); }
+
+    /**
+     * @return L'indice denso della fermata, o -1 se non compare negli stop_times.
+     */
+    public int stopIndex(String stopId) { return stopIds.indexOf(stopId); }
+
+    /**
+     * @return Una vista sulla riga, compatibile con il vecchio modello a oggetti.
+     */
+    public StopTime view(int row) {
+        return new StopTime(this, row);
+    }
+
+    /**
+     * @return I byte occupati da colonne, pattern e profili.
+     */
+    public long memoryBytes() {
+        long ints = tripStart.length + 3L * trips.length;
+        for (int p = 0; p < patternStops.length; p++) {
+            ints += patternStops[p].length + patternSequences[p].length;
+        }
+        for (int[] profile : profiles) {
+            ints += profile.length;
+        }
+        return 4L * ints;
+    }
+
+    /**
+     * @return I byte che occuperebbero le stesse righe con una colonna per fermate, orari e sequenze.
+     */
+    public long columnMemoryBytes() {
+        return 4L * (tripStart.length + 4L * rowCount());
+    }
+
+    /**
+     * @return Una stima dei byte che le stesse righe occuperebbero come oggetti StopTime.
+     */
+    public long legacyMemoryBytes() {
+        return (long) LEGACY_BYTES_PER_ROW * rowCount();
+    }
+
+    /**
+     * Converte i secondi dalla mezzanotte nel formato GTFS "HH:MM:SS" (anche oltre le 24).
+     */
+    public static String formatTime(int seconds) {
+        if (seconds < 0) {
+            return "";
+        }
+        int h = seconds / 3600;
+        int m = (seconds / 60) % 60;
+        int s = seconds % 60;
+        char[] c = new char[h >= 100 ? 9 : 8];
+        int i = 0;
+        if (h >= 100) c[i++] = (char) ('0' + h / 100);
+        c[i++] = (char) ('0' + (h / 10) % 10);
+        c[i++] = (char) ('0' + h % 10);
+        c[i++] = ':';
+        c[i++] = (char) ('0' + m / 10);
+        c[i++] = (char) ('0' + m % 10);
+        c[i++] = ':';
+        c[i++] = (char) ('0' + s / 10);
+        c[i] = (char) ('0' + s % 10);
+        return new String(c);
+    }
+
+    /**
+     * Raccoglie le righe in qualsiasi ordine e costruisce lo store raggruppandole per trip
+     * (counting sort stabile, lineare nel numero di righe) e ordinandole per stop_sequence.
+     * Infine estrae pattern e profili, confrontando ogni trip con quelli già visti tramite hash.
+     */
+    public static class Builder {
+        private final IntArrayList tripCol = new IntArrayList(1 << 16);
+        private final IntArrayList stopCol = new IntArrayList(1 << 16);
+        private final IntArrayList arrivalCol = new IntArrayList(1 << 16);
+        private final IntArrayList sequenceCol = new IntArrayList(1 << 16);
+
+        public void add(int trip, int stop, int arrivalSeconds, int stopSequence) {
+            tripCol.add(trip);
+            stopCol.add(stop);
+            arrivalCol.add(arrivalSeconds);
+            sequenceCol.add(stopSequence);
+        }
+
+        public int size() {
+            return tripCol.size();
+        }
+
+        public StopTimeStore build(Trip[] trips, IdDictionary stopIds) {
+            int n = tripCol.size();
+            int[] tripStart = new int[trips.length + 1];
+            for (int r = 0; r < n; r++) {
+                tripStart[tripCol.get(r) + 1]++;
+            }
+            for (int t = 0; t < trips.length; t++) {
+                tripStart[t + 1] += tripStart[t];
+            }
+
+            int[] next = new int[trips.length];
+            System.arraycopy(tripStart, 0, next, 0, trips.length);
+            int[] stopIndex = new int[n];
+            int[] arrival = new int[n];
+            int[] sequence = new int[n];
+            for (int r = 0; r < n; r++) {
+                int t = tripCol.get(r);
+                int dst = next[t]++;
+                stopIndex[dst] = stopCol.get(r);
+                arrival[dst] = arrivalCol.get(r);
+                sequence[dst] = sequenceCol.get(r);
+            }
+
+            // Di solito il file è già in ordine di stop_sequence: l'insertion sort costa O(n)
+            for (int t = 0; t < trips.length; t++) {
+                sortBySequence(tripStart[t], tripStart[t + 1], stopIndex, arrival, sequence);
+            }
+            return compact(trips, stopIds, tripStart, stopIndex, arrival, sequence);
+        }
+
+        private static StopTimeStore compact(Trip[] trips, IdDictionary stopIds, int[] tripStart,
+                                             int[] stopIndex, int[] arrival, int[] sequence) {
+            Map<PatternKey, Integer> patternIds = new HashMap<>();
+            Map<ProfileKey, Integer> profileIds = new HashMap<>();
+            List<int[]> patternStops = new ArrayList<>();
+            List<int[]> patternSequences = new ArrayList<>();
+            List<int[]> profiles = new ArrayList<>();
+            int[] tripPattern = new int[trips.length];
+            int[] tripProfile = new int[trips.length];
+            int[] tripBase = new int[trips.length];
+
+            for (int t = 0; t < trips.length; t++) {
+                int from = tripStart[t];
+                int to = tripStart[t + 1];
+                if (from == to) {
+                    tripPattern[t] = -1;
+                    tripProfile[t] = -1;
+                    continue;
+                }
+                PatternKey key = new PatternKey(Arrays.copyOfRange(stopIndex, from, to),
+                        Arrays.copyOfRange(sequence, from, to), trips[t].getRouteId(), trips[t].getShapeId());
+                Integer pattern = patternIds.get(key);
+                if (pattern == null) {
+                    pattern = patternStops.size();
+                    patternIds.put(key, pattern);
+                    patternStops.add(key.stops);
+                    patternSequences.add(key.sequences);
+                }
+                tripPattern[t] = pattern;
+
+                int base = 0;
+                for (int r = from; r < to; r++) {
+                    if (arrival[r] >= 0) {
+                        base = arrival[r];
+                        break;
+                    }
+                }
+                int[] offsets = new int[to - from];
+                for (int r = from; r < to; r++) {
+                    offsets[r - from] = arrival[r] < 0 ? -1 : arrival[r] - base;
+                }
+                ProfileKey profileKey = new ProfileKey(offsets);
+                Integer profile = profileIds.get(profileKey);
+                if (profile == null) {
+                    profile = profiles.size();
+                    profileIds.put(profileKey, profile);
+                    profiles.add(offsets);
+                }
+                tripProfile[t] = profile;
+                tripBase[t] = base;
+            }
+
+            System.out.println("StopTimeStore: " + trips.length + " trip, " + patternStops.size()
+                    + " pattern, " + profiles.size() + " profili di orari");
+            return new StopTimeStore(trips, stopIds, tripStart,
+                    patternStops.toArray(new int[0][]), patternSequences.toArray(new int[0][]),
+                    profiles.toArray(new int[0][]), tripPattern, tripProfile, tripBase);
+        }
+
+        private static void sortBySequence(int from, int to, int[] stop, int[] arr, int[] seq) {
+            for (int i = from + 1; i < to; i++) {
+                int s = seq[i];
+                if (s >= seq[i - 1]) continue;
+                int st = stop[i];
+                int a = arr[i];
+                int j = i - 1;
+                while (j >= from && seq[j] > s) {
+                    seq[j + 1] = seq[j];
+                    stop[j + 1] = stop[j];
+                    arr[j + 1] = arr[j];
+                    j--;
+                }
+                seq[j + 1] = s;
+                stop[j + 1] = st;
+                arr[j + 1] = a;
+            }
+        }
+
+        private static final class PatternKey {
+            final int[] stops;
+            final int[] sequences;
+            final String routeId;
+            final String shapeId;
+            final int hash;
+
+            PatternKey(int[] stops, int[] sequences, String routeId, String shapeId) {
+                this.stops = stops;
+                this.sequences = sequences;
+                this.routeId = routeId;
+                this.shapeId = shapeId;
+                this.hash = 31 * (31 * Arrays.hashCode(stops) + Arrays.hashCode(sequences))
+                        + Objects.hashCode(routeId) * 17 + Objects.hashCode(shapeId);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof PatternKey)) return false;
+                PatternKey k = (PatternKey) o;
+                return hash == k.hash && Arrays.equals(stops, k.stops) && Arrays.equals(sequences, k.sequences)
+                        && Objects.equals(routeId, k.routeId) && Objects.equals(shapeId, k.shapeId);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+        }
+
+        private static final class ProfileKey {
+            final int[] offsets;
+            final int hash;
+
+            ProfileKey(int[] offsets) {
+                this.offsets = offsets;
+                this.hash = Arrays.hashCode(offsets);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof ProfileKey && hash == ((ProfileKey) o).hash
+                        && Arrays.equals(offsets, ((ProfileKey) o).offsets);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+        }
+    }
+}
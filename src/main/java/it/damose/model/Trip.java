@@ -1,23 +1,39 @@
 package it.damose.model;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 public class Trip {
     private final String id;
     private final String routeId;
     private final String shapeId; // Campo per il percorso
+    private final int shapeIndex; // Indice dello shape_id in FeedIds.shapes, -1 se assente
+    private int routeIndex = -1;  // Indice della linea, assegnato quando il trip viene collegato
+    private final String serviceId; // Il calendario di servizio (calendar.txt / calendar_dates.txt)
 
-    // Inizializza le liste finali qui, così il costruttore è pulito
-    private final List<String> stopIds = new ArrayList<>();
-    private final List<StopTime> stopTimes = new ArrayList<>();
+    // Gli orari non stanno più nel Trip: sono righe contigue dello StopTimeStore
+    private StopTimeStore store;
+    private int index = -1;
 
     // Costruttore che inizializza TUTTI i campi final richiesti
     public Trip(String id, String routeId, String shapeId) {
+        this(id, routeId, null, shapeId);
+    }
+
+    public Trip(String id, String routeId, String serviceId, String shapeId) {
+        this(id, routeId, serviceId, shapeId, -1);
+    }
+
+    public Trip(String id, String routeId, String serviceId, String shapeId, int shapeIndex) {
         this.id = id;
         this.routeId = routeId;
+        this.serviceId = serviceId;
         this.shapeId = shapeId; // Questo risolve l'errore
+        this.shapeIndex = shapeIndex;
     }
 
     public String getId() {
@@ -30,19 +46,92 @@ public class Trip {
         return shapeId;
     }
 
-    // Metodi esistenti (assicurati che siano così)
-    public void addStopTime(StopTime st) {
-        stopTimes.add(st);
-        if (!stopIds.contains(st.getStopId())) {
-            stopIds.add(st.getStopId());
-        }
+    /**
+     * @return L'indice della linea del viaggio (vedi {@link Route#getIndex()}), -1 se la linea non esiste.
+     */
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    void setRouteIndex(int routeIndex) {
+        this.routeIndex = routeIndex;
+    }
+
+    /**
+     * @return L'indice dello shape_id del viaggio, -1 se non ne ha uno.
+     */
+    public int getShapeIndex() {
+        return shapeIndex;
     }
 
+    /**
+     * @return Il service_id del viaggio, o null/"" se trips.txt non lo indica.
+     */
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    /**
+     * Collega il trip alle sue righe nello store (chiamato dallo store stesso).
+     */
+    void attach(StopTimeStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * @return L'indice denso del trip nello StopTimeStore (ce l'hanno tutti i trip di
+     * trips.txt, anche quelli senza orari), o -1 se il trip non appartiene a uno store.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public StopTimeStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return Il numero di fermate (righe di stop_times) del viaggio.
+     */
+    public int getStopTimeCount() {
+        return store == null ? 0 : store.rowEnd(index) - store.rowStart(index);
+    }
+
+    /**
+     * @return Gli orari del viaggio in ordine di stop_sequence, come vista di sola lettura sullo store.
+     */
     public List<StopTime> getStopTimes() {
-        return stopTimes;
+        if (store == null) {
+            return Collections.emptyList();
+        }
+        final int start = store.rowStart(index);
+        final int size = store.rowEnd(index) - start;
+        return new AbstractList<StopTime>() {
+            @Override
+            public StopTime get(int i) {
+                if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+                return store.view(start + i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
+    /**
+     * @return Gli stop_id del viaggio, senza ripetizioni e nell'ordine di percorrenza.
+     */
     public List<String> getStopIds() {
-        return stopIds;
+        if (store == null) {
+            return Collections.emptyList();
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (int r = store.rowStart(index); r < store.rowEnd(index); r++) {
+            ids.add(store.stopId(store.stopOf(index, r)));
+        }
+        return new ArrayList<>(ids);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+package it.damose.model;
+
+/**
+ * Una sequenza di fermate percorsa da uno o più trip della stessa linea (trip pattern).
+ *
+ * I trip di una linea ripetono quasi sempre le stesse poche sequenze (andata, ritorno,
+ * qualche variante): lo {@link StopTimeStore} le memorizza una volta sola e ogni trip
+ * tiene solo il riferimento al suo pattern. Trip con le stesse fermate ma linea o
+ * shape diversi finiscono in pattern distinti, così linea e percorso del pattern
+ * valgono per tutti i suoi trip.
+ */
+public class TripPattern {
+    private final int index;      // Posizione nello StopTimeStore
+    private final int[] stops;    // Indici densi delle fermate, in ordine di stop_sequence
+    private final int[] sequences;
+    private final String routeId;
+    private final String shapeId;
+    private final int shapeIndex;
+    private final int[] trips;    // Indici dei trip che lo percorrono, crescenti
+
+    TripPattern(int index, int[] stops, int[] sequences, String routeId, String shapeId, int shapeIndex, int[] trips) {
+        this.index = index;
+        this.stops = stops;
+        this.sequences = sequences;
+        this.routeId = routeId;
+        this.shapeId = shapeId;
+        this.shapeIndex = shapeIndex;
+        this.trips = trips;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Gli indici delle fermate, in ordine. L'array è condiviso: va solo letto.
+     */
+    public int[] getStops() {
+        return stops;
+    }
+
+    public int stopCount() {
+        return stops.length;
+    }
+
+    public int stopAt(int i) {
+        return stops[i];
+    }
+
+    public int sequenceAt(int i) {
+        return sequences[i];
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    /**
+     * @return Lo shape_id comune ai trip del pattern, o null/"" se non ne hanno uno.
+     */
+    public String getShapeId() {
+        return shapeId;
+    }
+
+    public int getShapeIndex() {
+        return shapeIndex;
+    }
+
+    /**
+     * @return Gli indici (nello store) dei trip del pattern. L'array è condiviso: va solo letto.
+     */
+    public int[] getTrips() {
+        return trips;
+    }
+
+    public int tripCount() {
+        return trips.length;
+    }
+
+    /**
+     * @return Le stop_sequence delle fermate. L'array è condiviso: va solo letto.
+     */
+    public int[] getSequences() {
+        return sequences;
+    }
+
+    @Override
+    public String toString() {
+        return "TripPattern " + index + " (" + routeId + ", " + stops.length + " fermate, " + trips.length + " trip)";
+    }
+}
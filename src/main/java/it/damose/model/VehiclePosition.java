@@ -3,13 +3,16 @@ package it.damose.model;
 public class VehiclePosition {
 
     private final String vehicleId;
+    private final int routeIndex; // Indice denso della linea (FeedIds.routes), -1 se non è nel feed statico
     private final String routeId;
     private final double latitude;
     private final double longitude;
     private final float bearing;
 
-    public VehiclePosition(String vehicleId, String routeId, double latitude, double longitude, float bearing) {
+    public VehiclePosition(String vehicleId, int routeIndex, String routeId, double latitude, double longitude,
+                           float bearing) {
         this.vehicleId = vehicleId;
+        this.routeIndex = routeIndex;
         this.routeId = routeId;
         this.latitude = latitude;
         this.longitude = longitude;
@@ -20,6 +23,13 @@ public class VehiclePosition {
         return vehicleId;
     }
 
+    /**
+     * @return L'indice della linea nel feed statico, -1 se sconosciuta.
+     */
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
     public String getRouteId() {
         return routeId;
     }
@@ -1,7 +1,9 @@
 package it.damose.realtime;
 
 import com.google.transit.realtime.GtfsRealtime;
+import it.damose.model.FeedIds;
 import it.damose.model.RealtimeArrival;
+import it.damose.model.Stop;
 import it.damose.model.VehiclePosition;
 
 import javax.swing.Timer;
@@ -35,17 +37,49 @@ public class RealtimeManager {
 
     // Mappe Thread-Safe per contenere i dati live
     private final Map<String, VehiclePosition> vehiclePositions;
-    private final ConcurrentHashMap<String, List<RealtimeArrival>> realtimeArrivals;
+
+    // Previsioni per indice denso di fermata, già ordinate, insieme ai dizionari con cui sono state
+    // indicizzate: sostituite per intero a ogni aggiornamento (e quando cambia il feed statico)
+    private volatile LiveArrivals liveArrivals = new LiveArrivals(null, newArrivalTable(0));
+
+    private static final class LiveArrivals {
+        final FeedIds ids;
+        final List<RealtimeArrival>[] byStop;
+
+        LiveArrivals(FeedIds ids, List<RealtimeArrival>[] byStop) {
+            this.ids = ids;
+            this.byStop = byStop;
+        }
+    }
+
+    // I dizionari del feed statico, per tradurre route_id e stop_id in indici (null finché non sono caricati)
+    private volatile FeedIds ids;
 
     public RealtimeManager() {
         this.vehiclePositions = new ConcurrentHashMap<>();
-        this.realtimeArrivals = new ConcurrentHashMap<>();
 
         // Imposta il Timer
         this.refreshTimer = new Timer(REFRESH_INTERVAL_MS, e -> updateRealtimeData());
         this.refreshTimer.setInitialDelay(0); // Esegui subito al primo avvio
     }
 
+    /**
+     * Collega i dati live al feed statico: da qui in poi route_id e stop_id
+     * vengono tradotti nei loro indici densi una volta sola, durante il parsing.
+     */
+    public void setFeedIds(FeedIds ids) {
+        if (ids == null || this.ids == ids) return;
+        this.ids = ids;
+        if (refreshTimer.isRunning()) {
+            updateRealtimeData(); // Le previsioni scartate in attesa dei dizionari arrivano subito
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<RealtimeArrival>[] newArrivalTable(int size) {
+        return new List[size];
+    }
+
     /**
      * Avvia il timer per gli aggiornamenti automatici.
      */
@@ -88,6 +122,7 @@ public class RealtimeManager {
             if (input == null) return;
 
             GtfsRealtime.FeedMessage feed = GtfsRealtime.FeedMessage.parseFrom(input);
+            FeedIds ids = this.ids;
             vehiclePositions.clear();
 
             int count = 0;
@@ -104,7 +139,8 @@ public class RealtimeManager {
                     float bearing = gtfsPos.getPosition().hasBearing() ? gtfsPos.getPosition().getBearing() : -1f;
 
                     if (vehicleId != null && !vehicleId.isEmpty() && routeId != null) {
-                        VehiclePosition vp = new VehiclePosition(vehicleId, routeId, lat, lon, bearing);
+                        int routeIndex = ids != null ? ids.routeIndex(routeId) : -1;
+                        VehiclePosition vp = new VehiclePosition(vehicleId, routeIndex, routeId, lat, lon, bearing);
                         vehiclePositions.put(vehicleId, vp);
                         count++;
                     }
@@ -124,36 +160,47 @@ public class RealtimeManager {
             if (input == null) return;
 
             GtfsRealtime.FeedMessage feed = GtfsRealtime.FeedMessage.parseFrom(input);
-            realtimeArrivals.clear();
+            FeedIds ids = this.ids;
+            if (ids == null) {
+                System.out.println("RealtimeManager: orari statici non ancora caricati, previsioni rimandate.");
+                return;
+            }
+            List<RealtimeArrival>[] byStop = newArrivalTable(ids.stops().size());
+            long nowSeconds = System.currentTimeMillis() / 1000;
 
             int count = 0;
             for (GtfsRealtime.FeedEntity entity : feed.getEntityList()) {
                 if (entity.hasTripUpdate()) {
                     GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
                     String routeId = tripUpdate.getTrip().getRouteId();
+                    int routeIndex = ids.routeIndex(routeId);
 
                     // Logica affollamento (OccupancyStatus) rimossa
 
                     // Itera sulle fermate di questo viaggio
                     for (GtfsRealtime.TripUpdate.StopTimeUpdate stopUpdate : tripUpdate.getStopTimeUpdateList()) {
-                        String stopId = stopUpdate.getStopId();
+                        int stopIndex = ids.stopIndex(stopUpdate.getStopId());
 
-                        if (stopUpdate.hasArrival()) {
+                        if (stopIndex >= 0 && stopUpdate.hasArrival()) {
                             long arrivalTime = stopUpdate.getArrival().getTime();
                             int delay = stopUpdate.getArrival().getDelay();
 
                             // Ignora previsioni passate
-                            if (arrivalTime * 1000 > System.currentTimeMillis()) {
-                                // Usiamo il costruttore a 3 argomenti (senza affollamento)
-                                RealtimeArrival arrival = new RealtimeArrival(routeId, arrivalTime, delay);
+                            if (arrivalTime > nowSeconds) {
+                                RealtimeArrival arrival = new RealtimeArrival(routeIndex, routeId, arrivalTime, delay);
 
-                                realtimeArrivals.computeIfAbsent(stopId, k -> new ArrayList<>()).add(arrival);
+                                if (byStop[stopIndex] == null) byStop[stopIndex] = new ArrayList<>();
+                                byStop[stopIndex].add(arrival);
                                 count++;
                             }
                         }
                     }
                 }
             }
+            for (List<RealtimeArrival> arrivals : byStop) {
+                if (arrivals != null) arrivals.sort(Comparator.comparingLong(RealtimeArrival::getArrivalTime));
+            }
+            liveArrivals = new LiveArrivals(ids, byStop);
             System.out.println("RealtimeManager: Aggiornamento completato. " + count + " previsioni live trovate.");
 
         } catch (Exception e) {
@@ -179,12 +226,38 @@ public class RealtimeManager {
 
     /**
      * Ottiene la lista di arrivi in tempo reale per una specifica fermata.
-     * @param stopId L'ID della fermata
-     * @return Una lista (ordinata) di arrivi, o una lista vuota.
+     * Di norma basta l'indice della fermata; solo se la fermata viene da un feed statico
+     * diverso da quello usato per le previsioni si ripiega sul suo stop_id.
+     *
+     * @return Una lista (ordinata per orario) di arrivi, o una lista vuota.
+     */
+    public List<RealtimeArrival> getArrivalsForStop(Stop stop) {
+        LiveArrivals live = liveArrivals;
+        if (stop == null || live.ids == null) {
+            return Collections.emptyList();
+        }
+        int stopIndex = stop.getIndex();
+        if (stopIndex < 0 || stopIndex >= live.ids.stops().size()
+                || !live.ids.stops().idOf(stopIndex).equals(stop.getId())) {
+            stopIndex = live.ids.stopIndex(stop.getId());
+        }
+        if (stopIndex < 0 || stopIndex >= live.byStop.length || live.byStop[stopIndex] == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(live.byStop[stopIndex]);
+    }
+
+    /**
+     * Come {@link #getArrivalsForStop(Stop)}, partendo dallo stop_id.
      */
     public List<RealtimeArrival> getArrivalsForStop(String stopId) {
-        List<RealtimeArrival> arrivals = realtimeArrivals.getOrDefault(stopId, Collections.emptyList());
-        arrivals.sort(Comparator.comparingLong(RealtimeArrival::getArrivalTime));
-        return arrivals;
+        LiveArrivals live = liveArrivals;
+        if (live.ids == null) {
+            return Collections.emptyList();
+        }
+        int stopIndex = live.ids.stopIndex(stopId);
+        return stopIndex >= 0 && live.byStop[stopIndex] != null
+                ? Collections.unmodifiableList(live.byStop[stopIndex])
+                : Collections.emptyList();
     }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package it.damose.routing;
+
+import it.damose.data.StaticFeed;
+import it.damose.model.Isochrone;
+import it.damose.model.ServiceDay;
+import it.damose.model.Stop;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tempi di viaggio da una fermata a tutte le altre (isocrone), calcolati con RAPTOR.
+ *
+ * Per ogni minuto di partenza della finestra si esegue una ricerca verso tutte le
+ * fermate, limitata al tempo massimo richiesto; i minuti sono divisi tra i worker del
+ * pool del router e ognuno scrive la propria riga di tempi, senza condividere nulla.
+ * Per ogni fermata si tiene poi la mediana sui minuti: non raggiunta se lo è in meno
+ * della metà delle partenze.
+ *
+ * Usa gli orari del giorno e il ForkJoinPool del {@link RaptorRouter} per gli itinerari.
+ */
+public class IsochroneCalculator {
+
+    // Minuti consecutivi calcolati da un solo worker, riusando lo stato della ricerca
+    private static final int MINUTES_PER_TASK = 4;
+
+    private final RaptorRouter router;
+
+    public IsochroneCalculator(RaptorRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * @param windowMinutes Minuti di partenza (da departure in poi) su cui fare la mediana
+     * @param maxMinutes Tempo di viaggio massimo considerato
+     * @return I tempi di viaggio mediani dalla fermata, o null se non c'è servizio in quella data.
+     */
+    public Isochrone compute(StaticFeed f, Stop from, LocalDateTime departure, int windowMinutes, int maxMinutes) {
+        ServiceDay day = f.serviceDay(departure.toLocalDate());
+        if (day == null || from == null || from.getIndex() < 0 || windowMinutes < 1 || maxMinutes < 1) {
+            return null;
+        }
+        RaptorTimetable tt = router.timetable(f, day);
+        int t0 = departure.toLocalTime().toSecondOfDay();
+        int maxSeconds = maxMinutes * 60;
+        int[][] travel = new int[windowMinutes][];
+        MinutesTask task = new MinutesTask(tt, f, from.getIndex(), t0, maxSeconds, travel, 0, windowMinutes);
+        if (windowMinutes <= MINUTES_PER_TASK) {
+            task.compute();
+        } else {
+            router.pool().invoke(task);
+        }
+
+        // Mediana per fermata (le partenze che non la raggiungono contano come tempo infinito)
+        int stops = tt.stopCount();
+        int[] column = new int[windowMinutes];
+        int[] median = new int[stops];
+        int reached = 0;
+        for (int s = 0; s < stops; s++) {
+            for (int m = 0; m < windowMinutes; m++) {
+                column[m] = travel[m][s];
+            }
+            Arrays.sort(column);
+            median[s] = column[(windowMinutes - 1) / 2];
+            if (median[s] != RaptorSearch.UNREACHED) reached++;
+        }
+        Stop[] reachedStops = new Stop[reached];
+        int[] seconds = new int[reached];
+        int i = 0;
+        for (int s = 0; s < stops; s++) {
+            if (median[s] == RaptorSearch.UNREACHED) continue;
+            Stop stop = f.stopAt(s);
+            if (stop == null) continue;
+            reachedStops[i] = stop;
+            seconds[i++] = median[s];
+        }
+
+        return new Isochrone(from, departure, windowMinutes, maxSeconds,
+                Arrays.copyOf(reachedStops, i), Arrays.copyOf(seconds, i));
+    }
+
+    /**
+     * Le partenze t0 + 60 * [from, to) secondi: divise a metà fino a MINUTES_PER_TASK minuti;
+     * ogni minuto riempie travel[minuto] con il tempo di viaggio per fermata.
+     */
+    private static final class MinutesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RaptorTimetable tt;
+        private final StaticFeed feed;
+        private final int source, t0, maxSeconds, from, to;
+        private final int[][] travel;
+
+        MinutesTask(RaptorTimetable tt, StaticFeed feed, int source, int t0, int maxSeconds,
+                    int[][] travel, int from, int to) {
+            this.tt = tt;
+            this.feed = feed;
+            this.source = source;
+            this.t0 = t0;
+            this.maxSeconds = maxSeconds;
+            this.travel = travel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MINUTES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new MinutesTask(tt, feed, source, t0, maxSeconds, travel, from, mid),
+                        new MinutesTask(tt, feed, source, t0, maxSeconds, travel, mid, to));
+                return;
+            }
+            RaptorSearch search = new RaptorSearch(tt, feed.getTransfers(), RaptorRouter.MAX_TRANSFERS + 1);
+            int stops = tt.stopCount();
+            for (int minute = from; minute < to; minute++) {
+                int departure = t0 + 60 * minute;
+                search.run(source, departure, -1, departure + maxSeconds + 1);
+                int[] row = new int[stops];
+                for (int s = 0; s < stops; s++) {
+                    int arrival = search.bestArrival(s);
+                    row[s] = arrival <= departure + maxSeconds ? arrival - departure : RaptorSearch.UNREACHED;
+                }
+                travel[minute] = row;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package it.damose.routing;
+
+import it.damose.data.ParallelStopTimesLoader;
+import it.damose.data.StaticFeed;
+import it.damose.model.Journey;
+import it.damose.model.ServiceDay;
+import it.damose.model.Stop;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Itinerari tra due fermate con il compromesso tra orario di arrivo e numero di cambi (RAPTOR).
+ *
+ * Invece del solo arrivo più presto restituisce l'insieme Pareto: per ogni numero
+ * di cambi l'itinerario che arriva prima, se arriva prima di tutti quelli con meno
+ * cambi (il primo è quindi l'arrivo più presto in assoluto). La ricerca lavora per round sulle route
+ * della {@link RaptorTimetable}, costruita alla prima richiesta per ogni data.
+ *
+ * Le ricerche su un intervallo di partenze ({@link #planRange}) eseguono una ricerca
+ * indipendente per minuto, divise tra i worker del ForkJoinPool del router (creato una
+ * volta sola, condiviso con le isocrone e chiuso con {@link #shutdown()}); gli itinerari
+ * risultanti si filtrano su (partenza più tardi, arrivo più presto, meno cambi).
+ */
+public class RaptorRouter {
+
+    /**
+     * Cambi massimi considerati (quindi al più MAX_TRANSFERS + 1 mezzi): abbastanza da
+     * trovare anche l'arrivo più presto in assoluto, senza limiti pratici. I round
+     * si fermano comunque appena nessuna fermata migliora.
+     */
+    public static final int MAX_TRANSFERS = 20;
+
+    // Minuti consecutivi calcolati da un solo worker, riusando lo stato della ricerca
+    private static final int MINUTES_PER_TASK = 4;
+
+    private final ForkJoinPool pool = new ForkJoinPool(ParallelStopTimesLoader.defaultParallelism());
+    private RaptorTimetable timetable;
+
+    /**
+     * @return Gli itinerari Pareto-ottimi partendo all'orario indicato, dal più veloce al
+     * più semplice; lista vuota se la destinazione non si raggiunge in giornata.
+     */
+    public List<Journey> plan(StaticFeed f, Stop from, Stop to, LocalDateTime departure) {
+        List<Journey> journeys = planRange(f, from, to, departure, 1);
+        journeys.sort(Comparator.comparingInt(Journey::getArrival));
+        return journeys;
+    }
+
+    /**
+     * @param minutes Ampiezza dell'intervallo di partenze, da departure in poi
+     * @return Gli itinerari non dominati di tutte le partenze nell'intervallo, in ordine di partenza.
+     */
+    public List<Journey> planRange(StaticFeed f, Stop from, Stop to, LocalDateTime departure, int minutes) {
+        ServiceDay day = f.serviceDay(departure.toLocalDate());
+        if (day == null || from == null || to == null || from.getIndex() < 0 || to.getIndex() < 0 || minutes < 1) {
+            return new ArrayList<>();
+        }
+        RaptorTimetable tt = timetable(f, day);
+        int t0 = departure.toLocalTime().toSecondOfDay();
+        RangeTask task = new RangeTask(f, tt, from.getIndex(), to.getIndex(), t0, 0, minutes);
+
+        List<Journey> all;
+        if (minutes <= MINUTES_PER_TASK) {
+            all = task.compute();
+        } else {
+            all = pool.invoke(task);
+        }
+        return paretoFilter(all);
+    }
+
+    /**
+     * @return Il pool dei worker per le ricerche su più partenze.
+     */
+    ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * Ferma i worker del pool; le ricerche già avviate terminano.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Dimentica gli orari del giorno, dopo che un feed nuovo ha sostituito quello da cui vengono.
+     */
+    public synchronized void clear() {
+        timetable = null;
+    }
+
+    /**
+     * @return Gli orari del giorno per RAPTOR, ricostruiti solo se cambiano feed o data.
+     */
+    synchronized RaptorTimetable timetable(StaticFeed f, ServiceDay day) {
+        if (timetable == null || timetable.getDay() != day) {
+            timetable = RaptorTimetable.build(f.getStopTimes(), day);
+        }
+        return timetable;
+    }
+
+    /**
+     * Tiene gli itinerari che nessun altro batte su partenza, arrivo e cambi insieme
+     * (a parità di tutti e tre ne resta uno).
+     */
+    private static List<Journey> paretoFilter(List<Journey> all) {
+        List<Journey> result = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            Journey j = all.get(i);
+            boolean dominated = false;
+            for (int k = 0; k < all.size() && !dominated; k++) {
+                Journey o = all.get(k);
+                if (k == i || o.getDeparture() < j.getDeparture() || o.getArrival() > j.getArrival()
+                        || o.getTransfers() > j.getTransfers()) continue;
+                boolean same = o.getDeparture() == j.getDeparture() && o.getArrival() == j.getArrival()
+                        && o.getTransfers() == j.getTransfers();
+                dominated = !same || k < i;
+            }
+            if (!dominated) result.add(j);
+        }
+        result.sort(Comparator.comparingInt(Journey::getDeparture).thenComparingInt(Journey::getArrival));
+        return result;
+    }
+
+    /**
+     * Le partenze t0 + 60 * [from, to) secondi: divise a metà fino a MINUTES_PER_TASK minuti,
+     * calcolati in sequenza con una sola RaptorSearch.
+     */
+    private static final class RangeTask extends RecursiveTask<List<Journey>> {
+        private static final long serialVersionUID = 1L;
+
+        private final StaticFeed feed;
+        private final RaptorTimetable tt;
+        private final int source, target, t0, from, to;
+
+        RangeTask(StaticFeed feed, RaptorTimetable tt, int source, int target, int t0, int from, int to) {
+            this.feed = feed;
+            this.tt = tt;
+            this.source = source;
+            this.target = target;
+            this.t0 = t0;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Journey> compute() {
+            if (to - from > MINUTES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                RangeTask left = new RangeTask(feed, tt, source, target, t0, from, mid);
+                left.fork();
+                List<Journey> result = new RangeTask(feed, tt, source, target, t0, mid, to).compute();
+                result.addAll(left.join());
+                return result;
+            }
+            RaptorSearch search = new RaptorSearch(tt, feed.getTransfers(), MAX_TRANSFERS + 1);
+            List<Journey> result = new ArrayList<>();
+            for (int minute = from; minute < to; minute++) {
+                search.run(source, t0 + 60 * minute, target);
+                result.addAll(search.journeys(feed));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package it.damose.routing;
+
+import it.damose.data.StaticFeed;
+import it.damose.index.TransferIndex;
+import it.damose.model.Journey;
+import it.damose.model.StopTimeStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lo stato di una ricerca RAPTOR: una per thread, riusabile per più orari di partenza.
+ *
+ * Il round k trova gli arrivi con al massimo k mezzi: scorre solo le route che passano
+ * da una fermata migliorata nel round precedente, dalla prima di queste fermate in poi,
+ * e poi estende a piedi i nuovi arrivi. Tutte le etichette sono array piatti indicizzati
+ * per round * fermate + fermata (arrivo, trip e posizioni di salita e discesa,
+ * provenienza a piedi): niente oggetti per etichetta, e ricerche indipendenti non
+ * condividono nulla, quindi si possono eseguire in parallelo su orari diversi.
+ *
+ * Un arrivo viene registrato solo se migliora il migliore di tutti i round (e quello
+ * alla destinazione, se c'è): i valori di arrivo alla destinazione che migliorano da un
+ * round al successivo sono l'insieme Pareto di (orario di arrivo, numero di cambi).
+ */
+final class RaptorSearch {
+
+    static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final RaptorTimetable tt;
+    private final TransferIndex walks;
+    private final int maxRounds;
+    private final int stops;
+
+    private final int[] arrival;     // [round * stops + fermata]
+    private final int[] boardSlot;   // Trip (slot) con cui si arriva, -1 se a piedi o dal round precedente
+    private final int[] boardRoute;
+    private final int[] boardPos;    // Posizione di salita nella route
+    private final int[] walkFrom;    // Fermata da cui si arriva a piedi, -1 altrimenti
+    private final int[] best;        // Miglior arrivo di tutti i round, per fermata
+
+    private final boolean[] isMarked;
+    private final int[] marked;
+    private int markedCount;
+    private final int[] routeFrom;   // Per route: prima posizione da scorrere, -1 se non in coda
+    private final int[] routeQueue;
+    private int routeCount;
+
+    private int source;
+    private int target;
+    private int limit;               // Arrivi da qui in poi scartati
+    private int rounds;              // Round effettivamente eseguiti
+
+    RaptorSearch(RaptorTimetable tt, TransferIndex walks, int maxRides) {
+        this.tt = tt;
+        this.walks = walks;
+        this.maxRounds = maxRides;
+        this.stops = tt.stopCount();
+        int labels = (maxRides + 1) * stops;
+        this.arrival = new int[labels];
+        this.boardSlot = new int[labels];
+        this.boardRoute = new int[labels];
+        this.boardPos = new int[labels];
+        this.walkFrom = new int[labels];
+        this.best = new int[stops];
+        this.isMarked = new boolean[stops];
+        this.marked = new int[stops];
+        this.routeFrom = new int[tt.routeCount()];
+        this.routeQueue = new int[tt.routeCount()];
+        Arrays.fill(routeFrom, -1);
+    }
+
+    /**
+     * Esegue la ricerca dalla fermata source all'orario t0 (secondi dalla mezzanotte).
+     *
+     * @param target La fermata di destinazione (per potare le etichette inutili), o -1 per
+     *               calcolare gli arrivi a tutte le fermate
+     */
+    void run(int source, int t0, int target) {
+        run(source, t0, target, UNREACHED);
+    }
+
+    /**
+     * Come {@link #run(int, int, int)}, ignorando gli arrivi da limit in poi: con
+     * target -1 limita la ricerca alle fermate raggiungibili entro un tempo massimo.
+     */
+    void run(int source, int t0, int target, int limit) {
+        this.source = source;
+        this.target = target;
+        this.limit = limit;
+        Arrays.fill(arrival, 0, stops, UNREACHED);
+        Arrays.fill(boardSlot, 0, stops, -1);
+        Arrays.fill(walkFrom, 0, stops, -1);
+        Arrays.fill(best, UNREACHED);
+        markedCount = 0;
+
+        // Round 0: la partenza e le fermate raggiungibili a piedi
+        arrival[source] = t0;
+        best[source] = t0;
+        mark(source);
+        for (int i = walks.start(source); i < walks.end(source); i++) {
+            int n = walks.target(i);
+            int walked = t0 + walks.seconds(i);
+            if (walked < best[n]) {
+                arrival[n] = walked;
+                best[n] = walked;
+                walkFrom[n] = source;
+                mark(n);
+            }
+        }
+
+        rounds = 0;
+        for (int k = 1; k <= maxRounds && markedCount > 0; k++) {
+            int row = k * stops;
+            System.arraycopy(arrival, row - stops, arrival, row, stops);
+            Arrays.fill(boardSlot, row, row + stops, -1);
+            Arrays.fill(walkFrom, row, row + stops, -1);
+
+            // Route da scorrere: quelle delle fermate marcate, dalla prima marcata
+            for (int m = 0; m < markedCount; m++) {
+                int s = marked[m];
+                isMarked[s] = false;
+                for (int i = tt.routesStart(s); i < tt.routesEnd(s); i++) {
+                    int r = tt.routeAt(i);
+                    int pos = tt.positionAt(i);
+                    if (routeFrom[r] < 0) {
+                        routeQueue[routeCount++] = r;
+                        routeFrom[r] = pos;
+                    } else if (pos < routeFrom[r]) {
+                        routeFrom[r] = pos;
+                    }
+                }
+            }
+            markedCount = 0;
+
+            for (int q = 0; q < routeCount; q++) {
+                int r = routeQueue[q];
+                scanRoute(k, r, routeFrom[r]);
+                routeFrom[r] = -1;
+            }
+            routeCount = 0;
+
+            // A piedi dalle fermate raggiunte con un mezzo in questo round
+            int reached = markedCount;
+            for (int m = 0; m < reached; m++) {
+                int s = marked[m];
+                if (boardSlot[row + s] < 0) continue;
+                int arr = arrival[row + s];
+                for (int i = walks.start(s); i < walks.end(s); i++) {
+                    int n = walks.target(i);
+                    int walked = arr + walks.seconds(i);
+                    if (walked < best[n] && walked < targetBound()) {
+                        arrival[row + n] = walked;
+                        best[n] = walked;
+                        boardSlot[row + n] = -1;
+                        walkFrom[row + n] = s;
+                        mark(n);
+                    }
+                }
+            }
+            rounds = k;
+        }
+        for (int m = 0; m < markedCount; m++) {
+            isMarked[marked[m]] = false;
+        }
+        markedCount = 0;
+    }
+
+    private void scanRoute(int k, int r, int from) {
+        int row = k * stops;
+        int previousRow = row - stops;
+        int m = tt.stopCountOf(r);
+        int count = tt.tripCountOf(r);
+        int trip = -1;
+        int boardedAt = -1;
+        for (int i = from; i < m; i++) {
+            int s = tt.stopAt(r, i);
+            if (trip >= 0) {
+                int arr = tt.time(r, trip, i);
+                if (arr < best[s] && arr < targetBound()) {
+                    arrival[row + s] = arr;
+                    best[s] = arr;
+                    boardSlot[row + s] = tt.slot(r, trip);
+                    boardRoute[row + s] = r;
+                    boardPos[row + s] = boardedAt;
+                    walkFrom[row + s] = -1;
+                    mark(s);
+                }
+            }
+            // Si sale qui se si arriva in tempo per un trip precedente a quello attuale
+            int ready = arrival[previousRow + s];
+            if (ready != UNREACHED && (trip < 0 || ready <= tt.time(r, trip, i))) {
+                int t = tt.earliestTrip(r, i, ready, trip < 0 ? count : trip + 1);
+                if (t >= 0 && t != trip) {
+                    trip = t;
+                    boardedAt = i;
+                }
+            }
+        }
+    }
+
+    private int targetBound() {
+        return target >= 0 ? Math.min(best[target], limit) : limit;
+    }
+
+    private void mark(int s) {
+        if (!isMarked[s]) {
+            isMarked[s] = true;
+            marked[markedCount++] = s;
+        }
+    }
+
+    /** @return Il miglior arrivo alla fermata, con qualsiasi numero di mezzi. */
+    int bestArrival(int stop) {
+        return best[stop];
+    }
+
+    /**
+     * @return Gli itinerari Pareto-ottimi verso la destinazione: uno per ogni numero di
+     * mezzi che anticipa l'arrivo, dal più veloce con più cambi al più lento con meno.
+     */
+    List<Journey> journeys(StaticFeed f) {
+        if (target < 0 || target == source) {
+            return Collections.emptyList();
+        }
+        List<Journey> result = new ArrayList<>();
+        int previous = UNREACHED;
+        for (int k = 0; k <= rounds; k++) {
+            int arr = arrival[k * stops + target];
+            if (arr < previous) {
+                result.add(rebuild(f, k));
+                previous = arr;
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Risale le etichette dal round k alla partenza.
+     */
+    private Journey rebuild(StaticFeed f, int k) {
+        StopTimeStore store = f.getStopTimes();
+        List<Journey.Leg> legs = new ArrayList<>();
+        int s = target;
+        int guard = (maxRounds + 1) * 2 + stops;
+        while (!(k == 0 && s == source) && guard-- > 0) {
+            int label = k * stops + s;
+            if (walkFrom[label] >= 0) {
+                int w = walkFrom[label];
+                legs.add(new Journey.Leg(f.stopAt(w), f.stopAt(s), arrival[k * stops + w], arrival[label], null));
+                s = w;
+            } else if (boardSlot[label] < 0) {
+                if (k == 0) break;
+                k--; // Arrivo ereditato dal round precedente
+            } else {
+                int r = boardRoute[label];
+                int slot = boardSlot[label];
+                int b = tt.stopAt(r, boardPos[label]);
+                int trip = tt.getDay().tripAt(tt.entryOf(slot));
+                legs.add(new Journey.Leg(f.stopAt(b), f.stopAt(s),
+                        tt.time(r, slot - tt.slot(r, 0), boardPos[label]), arrival[label], store.trip(trip)));
+                s = b;
+                k--;
+            }
+        }
+        Collections.reverse(legs);
+
+        // Il primo tratto a piedi si fa subito prima del mezzo, non all'orario della richiesta
+        if (legs.size() > 1 && legs.get(0).isWalk()) {
+            Journey.Leg walk = legs.get(0);
+            int board = legs.get(1).getDeparture();
+            legs.set(0, new Journey.Leg(walk.getFrom(), walk.getTo(),
+                    board - (walk.getArrival() - walk.getDeparture()), board, null));
+        }
+        return new Journey(tt.getDay().getDate(), legs);
+    }
+}
@@ -0,0 +1,240 @@
+package it.damose.routing;
+
+import it.damose.model.ServiceDay;
+import it.damose.model.StopTimeStore;
+import it.damose.model.TripPattern;
+import it.damose.util.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gli orari di una {@link ServiceDay} organizzati per RAPTOR: linee come sequenze di
+ * fermate (i {@link TripPattern} dello store) con i trip del giorno in ordine di partenza.
+ *
+ * Tutto sta in array piatti indicizzati per "route" RAPTOR r:
+ * <ul>
+ *   <li>fermate: routeStops[routeStopStart[r] + i];</li>
+ *   <li>trip: slot routeTripStart[r] + k, con la posizione nella ServiceDay in slotEntry;</li>
+ *   <li>orari: times[routeTimeStart[r] + k * fermate + i], in secondi dalla mezzanotte della data;</li>
+ *   <li>per fermata, le coppie (route, posizione) che la servono, in forma compressa.</li>
+ * </ul>
+ * RAPTOR cerca il primo trip utile con una ricerca binaria sugli orari a una fermata,
+ * quindi i trip di una route non devono sorpassarsi: un pattern con trip che si
+ * sorpassano (es. corse veloci e lente con le stesse fermate) viene diviso in più route.
+ * Gli orari mancanti sono interpolati tra le fermate vicine che ce l'hanno.
+ */
+public final class RaptorTimetable {
+
+    private final ServiceDay day;
+    private final int stopCount;
+    private final int[] routeStopStart;
+    private final int[] routeStops;
+    private final int[] routeTripStart;
+    private final int[] routeTimeStart;
+    private final int[] times;
+    private final int[] slotEntry;
+    private final int[] stopRouteStart;
+    private final int[] stopRoutes;     // Route che servono la fermata...
+    private final int[] stopPositions;  // ...e in che posizione della route
+
+    private RaptorTimetable(ServiceDay day, int stopCount, int[] routeStopStart, int[] routeStops,
+                            int[] routeTripStart, int[] routeTimeStart, int[] times, int[] slotEntry,
+                            int[] stopRouteStart, int[] stopRoutes, int[] stopPositions) {
+        this.day = day;
+        this.stopCount = stopCount;
+        this.routeStopStart = routeStopStart;
+        this.routeStops = routeStops;
+        this.routeTripStart = routeTripStart;
+        this.routeTimeStart = routeTimeStart;
+        this.times = times;
+        this.slotEntry = slotEntry;
+        this.stopRouteStart = stopRouteStart;
+        this.stopRoutes = stopRoutes;
+        this.stopPositions = stopPositions;
+    }
+
+    public static RaptorTimetable build(StopTimeStore store, ServiceDay day) {
+        long start = System.currentTimeMillis();
+
+        // Trip del giorno raggruppati per pattern (counting sort)
+        int[] patternStart = new int[store.patternCount() + 1];
+        for (int d = 0; d < day.size(); d++) {
+            int p = store.patternOf(day.tripAt(d));
+            if (p >= 0) patternStart[p + 1]++;
+        }
+        for (int p = 0; p < store.patternCount(); p++) {
+            patternStart[p + 1] += patternStart[p];
+        }
+        int[] byPattern = new int[patternStart[store.patternCount()]];
+        int[] next = Arrays.copyOf(patternStart, store.patternCount());
+        for (int d = 0; d < day.size(); d++) {
+            int p = store.patternOf(day.tripAt(d));
+            if (p >= 0) byPattern[next[p]++] = d;
+        }
+
+        IntArrayList routeStopStart = new IntArrayList(1 << 10);
+        IntArrayList routeStops = new IntArrayList(1 << 14);
+        IntArrayList routeTripStart = new IntArrayList(1 << 10);
+        IntArrayList routeTimeStart = new IntArrayList(1 << 10);
+        IntArrayList times = new IntArrayList(1 << 20);
+        IntArrayList slotEntry = new IntArrayList(1 << 16);
+
+        for (int p = 0; p < store.patternCount(); p++) {
+            int[] stops = store.pattern(p).getStops();
+            int m = stops.length;
+            if (m < 2) continue;
+
+            // Orari completi di ogni trip del pattern, ordinati per partenza dal capolinea
+            List<int[]> trips = new ArrayList<>(patternStart[p + 1] - patternStart[p]);
+            for (int i = patternStart[p]; i < patternStart[p + 1]; i++) {
+                int[] row = tripTimes(store, day, byPattern[i], m);
+                if (row != null) trips.add(row);
+            }
+            trips.sort((a, b) -> {
+                for (int i = 0; i < m; i++) {
+                    if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+                }
+                return 0;
+            });
+
+            // Divisione in gruppi senza sorpassi: ogni trip va nel primo gruppo che può seguire
+            List<List<int[]>> groups = new ArrayList<>(1);
+            for (int[] trip : trips) {
+                List<int[]> target = null;
+                for (List<int[]> group : groups) {
+                    if (follows(group.get(group.size() - 1), trip, m)) {
+                        target = group;
+                        break;
+                    }
+                }
+                if (target == null) {
+                    target = new ArrayList<>();
+                    groups.add(target);
+                }
+                target.add(trip);
+            }
+
+            for (List<int[]> group : groups) {
+                routeStopStart.add(routeStops.size());
+                for (int s : stops) routeStops.add(s);
+                routeTripStart.add(slotEntry.size());
+                routeTimeStart.add(times.size());
+                for (int[] trip : group) {
+                    for (int i = 0; i < m; i++) times.add(trip[i]);
+                    slotEntry.add(trip[m]);
+                }
+            }
+        }
+        int routes = routeStopStart.size();
+        routeStopStart.add(routeStops.size());
+        routeTripStart.add(slotEntry.size());
+
+        // Fermata → (route, posizione)
+        int stopCount = store.stopCount();
+        int[] stopRouteStart = new int[stopCount + 1];
+        int[] rs = routeStopStart.toArray();
+        int[] allStops = routeStops.toArray();
+        for (int s : allStops) stopRouteStart[s + 1]++;
+        for (int s = 0; s < stopCount; s++) stopRouteStart[s + 1] += stopRouteStart[s];
+        int[] stopRoutes = new int[allStops.length];
+        int[] stopPositions = new int[allStops.length];
+        int[] fill = Arrays.copyOf(stopRouteStart, stopCount);
+        for (int r = 0; r < routes; r++) {
+            for (int i = rs[r]; i < rs[r + 1]; i++) {
+                int k = fill[allStops[i]]++;
+                stopRoutes[k] = r;
+                stopPositions[k] = i - rs[r];
+            }
+        }
+
+        System.out.println("RaptorTimetable: " + routes + " route da " + store.patternCount() + " pattern, "
+                + slotEntry.size() + " trip il " + day.getDate() + " (" + (System.currentTimeMillis() - start) + " ms)");
+        return new RaptorTimetable(day, stopCount, rs, allStops, routeTripStart.toArray(), routeTimeStart.toArray(),
+                times.toArray(), slotEntry.toArray(), stopRouteStart, stopRoutes, stopPositions);
+    }
+
+    /**
+     * @return Gli m orari del trip (interpolati dove mancano) seguiti dalla sua posizione
+     * nella ServiceDay, o null se il trip ha meno di due orari.
+     */
+    private static int[] tripTimes(StopTimeStore store, ServiceDay day, int entry, int m) {
+        int trip = day.tripAt(entry);
+        int offset = day.offsetAt(entry);
+        int first = store.rowStart(trip);
+        int[] row = new int[m + 1];
+        int previous = -1; // Ultima posizione con orario
+        int timed = 0;
+        for (int i = 0; i < m; i++) {
+            int arrival = store.arrivalOf(trip, first + i);
+            if (arrival < 0) continue;
+            timed++;
+            row[i] = arrival + offset;
+            if (previous < 0) {
+                Arrays.fill(row, 0, i, row[i]); // Prima del primo orario: come il primo
+            } else {
+                for (int j = previous + 1; j < i; j++) {
+                    row[j] = row[previous] + (row[i] - row[previous]) * (j - previous) / (i - previous);
+                }
+            }
+            previous = i;
+        }
+        if (timed < 2) {
+            return null;
+        }
+        Arrays.fill(row, previous + 1, m, row[previous]); // Dopo l'ultimo: come l'ultimo
+        row[m] = entry;
+        return row;
+    }
+
+    /** @return true se b non sorpassa a in nessuna fermata. */
+    private static boolean follows(int[] a, int[] b, int m) {
+        for (int i = 0; i < m; i++) {
+            if (b[i] < a[i]) return false;
+        }
+        return true;
+    }
+
+    public ServiceDay getDay() { return day; }
+    public int stopCount() { return stopCount; }
+    public int routeCount() { return routeStopStart.length - 1; }
+
+    public int stopCountOf(int route) { return routeStopStart[route + 1] - routeStopStart[route]; }
+    public int stopAt(int route, int position) { return routeStops[routeStopStart[route] + position]; }
+
+    public int tripCountOf(int route) { return routeTripStart[route + 1] - routeTripStart[route]; }
+
+    /** @return Lo slot (indice globale) del trip k della route. */
+    public int slot(int route, int k) { return routeTripStart[route] + k; }
+
+    /** @return La posizione nella ServiceDay del trip nello slot. */
+    public int entryOf(int slot) { return slotEntry[slot]; }
+
+    /** @return L'orario del trip k della route alla fermata in posizione i. */
+    public int time(int route, int k, int position) {
+        return times[routeTimeStart[route] + k * stopCountOf(route) + position];
+    }
+
+    /**
+     * @return Il primo trip della route (tra i primi limit) che passa dalla posizione indicata
+     * all'orario dato o dopo, o -1.
+     */
+    public int earliestTrip(int route, int position, int after, int limit) {
+        int m = stopCountOf(route);
+        int base = routeTimeStart[route] + position;
+        int lo = 0;
+        int hi = limit;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[base + mid * m] < after) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo < limit ? lo : -1;
+    }
+
+    public int routesStart(int stop) { return stopRouteStart[stop]; }
+    public int routesEnd(int stop) { return stopRouteStart[stop + 1]; }
+    public int routeAt(int i) { return stopRoutes[i]; }
+    public int positionAt(int i) { return stopPositions[i]; }
+}
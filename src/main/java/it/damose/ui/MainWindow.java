@@ -11,9 +11,12 @@ import javax.swing.event.DocumentListener; // Per la ricerca live
 import java.awt.*;
 import java.awt.event.*;
 import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Finestra principale (JFrame) dell'applicazione Rome Transit Tracker.
@@ -27,6 +30,10 @@ public class MainWindow extends JFrame implements ConnectionListener {
     private final StopController controller;
     private final FavoritesManager favoritesManager;
     private final RealtimeManager realtimeManager;
+    private final DepartureBoard departureBoard;
+
+    // Raggio del tabellone "partenze nei dintorni" di una fermata (es. i marciapiedi di un nodo)
+    private static final double NEARBY_RADIUS_METERS = 300;
 
     // --- Componenti UI (Frontend) ---
     // Componenti principali del layout
@@ -40,14 +47,29 @@ public class MainWindow extends JFrame implements ConnectionListener {
 
     // Altri componenti UI
     private JButton btnToggleFavorite;
+    private JButton btnJourneyFrom; // Sceglie la fermata selezionata come partenza dell'itinerario
+    private JButton btnJourneyTo;   // Calcola l'itinerario fino alla fermata selezionata
+    private JButton btnIsochrone;   // Mostra (o nasconde) sulla mappa le isocrone dalla fermata
     private JButton btnShowFavorites;
     private JLabel lblConnectionStatus;
+    private JLabel lblLoadStatus; // Stato del caricamento progressivo del feed GTFS
+    private JButton btnReloadFeed; // Ricarica il feed (es. dopo aver sostituito lo .zip) senza riavviare
+    private String feedPath;
     private Timer statusClearTimer; // Timer per nascondere il label di stato
 
     // --- Gestione Stato Interno ---
     private Object currentSelectedObject; // L'oggetto (Stop o Route) selezionato nella lista
+    private Stop journeyFrom = null; // La partenza scelta per l'itinerario
     private Route currentlySelectedRoute = null; // La linea selezionata, per filtrare la mappa
     private Timer searchDebounceTimer; // Timer per la ricerca live
+    private int journeyRequest = 0; // Ultimo calcolo di itinerario chiesto (solo EDT), per scartare quelli superati
+
+    // Gli itinerari si calcolano fuori dall'EDT: la prima ricerca del giorno prepara anche gli orari
+    private final ExecutorService journeyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "itinerari");
+        t.setDaemon(true);
+        return t;
+    });
 
     // --- Utilità ---
     private final SimpleDateFormat timeFormatter = new SimpleDateFormat("HH:mm");
@@ -71,9 +93,12 @@ public class MainWindow extends JFrame implements ConnectionListener {
         }
 
         // --- 2. Inizializzazione dei Controller ---
-        controller = new StopController("src/main/resources/data/rome_static_gtfs");
+        // Il feed può essere anche lo .zip pubblicato dall'agenzia: -Ddamose.gtfs.feed=rome_static_gtfs.zip
+        feedPath = System.getProperty("damose.gtfs.feed", "src/main/resources/data/rome_static_gtfs");
+        controller = new StopController(feedPath);
         favoritesManager = new FavoritesManager(loggedInUsername);
         realtimeManager = new RealtimeManager();
+        departureBoard = new DepartureBoard(controller, realtimeManager);
 
         // Aggiorna il titolo della finestra in base all'utente
         if (loggedInUsername != null) {
@@ -92,6 +117,10 @@ public class MainWindow extends JFrame implements ConnectionListener {
         initLayout();
         loadAllData(); // Carica i dati iniziali nella lista
 
+        // Le fermate sono già pronte; linee, orari e percorsi arrivano in background
+        controller.addLoadListener(() -> SwingUtilities.invokeLater(this::onGtfsDataLoaded));
+        onGtfsDataLoaded();
+
         // --- 5. Attivazione Gestori ---
         // Timer per la ricerca live "autocomplete"
         searchDebounceTimer = new Timer(300, e -> search());
@@ -117,6 +146,8 @@ public class MainWindow extends JFrame implements ConnectionListener {
                 if (mappa != null) {
                     mappa.cleanup();
                 }
+                journeyExecutor.shutdownNow();
+                controller.shutdown();
             }
         });
     }
@@ -183,6 +214,15 @@ public class MainWindow extends JFrame implements ConnectionListener {
         btnToggleFavorite.setFont(new Font("Arial", Font.BOLD, 12));
         btnToggleFavorite.setVisible(false);
         detailControlsPanel.add(btnToggleFavorite);
+        btnJourneyFrom = new JButton("Parti da qui");
+        btnJourneyFrom.setVisible(false);
+        detailControlsPanel.add(btnJourneyFrom);
+        btnJourneyTo = new JButton("Arriva qui");
+        btnJourneyTo.setVisible(false);
+        detailControlsPanel.add(btnJourneyTo);
+        btnIsochrone = new JButton("Isocrone");
+        btnIsochrone.setVisible(false);
+        detailControlsPanel.add(btnIsochrone);
         detailWrapperPanel.add(detailControlsPanel, BorderLayout.NORTH);
         detailWrapperPanel.add(detailPane, BorderLayout.CENTER);
 
@@ -197,6 +237,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
         mappa = new Mappa();
         mappa.setRealtimeManager(realtimeManager);
         mappa.setStopController(controller);
+        mappa.setStopClickListener(this::showDetails);
 
         // === SPLITTER PRINCIPALE (Main) ===
 
@@ -212,6 +253,13 @@ public class MainWindow extends JFrame implements ConnectionListener {
         lblConnectionStatus.setFont(new Font("Arial", Font.ITALIC, 12));
         lblConnectionStatus.setVisible(false);
         statusPanel.add(lblConnectionStatus);
+        lblLoadStatus = new JLabel();
+        lblLoadStatus.setFont(new Font("Arial", Font.ITALIC, 12));
+        statusPanel.add(lblLoadStatus);
+        btnReloadFeed = new JButton("Ricarica orari");
+        btnReloadFeed.setToolTipText("Rilegge il feed GTFS statico e lo sostituisce a quello in uso");
+        btnReloadFeed.addActionListener(e -> reloadFeed());
+        statusPanel.add(btnReloadFeed);
         add(statusPanel, BorderLayout.SOUTH);
 
         // Timer per nascondere il messaggio di stato
@@ -249,6 +297,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
                 } else {
                     btnToggleFavorite.setVisible(false);
                     currentSelectedObject = null;
+                    updateJourneyButtons();
                     detailArea.setText("");
                 }
             }
@@ -269,6 +318,19 @@ public class MainWindow extends JFrame implements ConnectionListener {
 
         // Click sul bottone preferiti
         btnToggleFavorite.addActionListener(e -> toggleFavorite());
+        btnJourneyFrom.addActionListener(e -> {
+            journeyFrom = (Stop) currentSelectedObject;
+            updateJourneyButtons();
+        });
+        btnJourneyTo.addActionListener(e -> showJourney());
+        btnIsochrone.addActionListener(e -> {
+            if (isIsochroneShownFor(currentSelectedObject)) {
+                mappa.clearIsochrone();
+            } else {
+                mappa.showIsochrone((Stop) currentSelectedObject);
+            }
+            updateJourneyButtons();
+        });
     }
 
     /**
@@ -277,6 +339,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
     private void loadAllData() {
         btnToggleFavorite.setVisible(false);
         currentSelectedObject = null;
+        updateJourneyButtons();
         this.currentlySelectedRoute = null;
         if (mappa != null) {
             mappa.setFilteredRoute(null);
@@ -314,6 +377,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
     private void search() {
         btnToggleFavorite.setVisible(false);
         currentSelectedObject = null;
+        updateJourneyButtons();
         this.currentlySelectedRoute = null;
         if (mappa != null) {
             mappa.setFilteredRoute(null);
@@ -353,8 +417,10 @@ public class MainWindow extends JFrame implements ConnectionListener {
      */
     private void showDetails(Object obj) {
         currentSelectedObject = obj;
+        journeyRequest++; // Un itinerario ancora in calcolo non sovrascrive i nuovi dettagli
         updateFavoriteButtonState();
         btnToggleFavorite.setVisible(true);
+        updateJourneyButtons();
 
         if (mappa != null) {
             if (obj instanceof Stop s) {
@@ -383,7 +449,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
             boolean isAppOnline = ConnectionManager.getInstance().isOnline();
             List<RealtimeArrival> liveArrivals = null;
             if (isAppOnline) {
-                liveArrivals = realtimeManager.getArrivalsForStop(s.getId());
+                liveArrivals = realtimeManager.getArrivalsForStop(s);
             }
 
             if (liveArrivals != null && !liveArrivals.isEmpty()) {
@@ -395,7 +461,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
 
                 int count = 0;
                 for (RealtimeArrival ra : liveArrivals) {
-                    Route route = controller.getRouteById(ra.getRouteId());
+                    Route route = controller.getRouteByIndex(ra.getRouteIndex());
                     String routeName = (route != null) ? route.getName() : ra.getRouteId();
                     String time = timeFormatter.format(new Date(ra.getArrivalTime() * 1000));
 
@@ -417,10 +483,24 @@ public class MainWindow extends JFrame implements ConnectionListener {
                 sb.append("PROSSIMI ARRIVI PROGRAMMATI (OFFLINE)\n");
                 sb.append("───────────────────────────────────────\n");
                 List<StopTime> nextArrivals = controller.getNextArrivals(s, 15);
-                if (nextArrivals.isEmpty()) sb.append("Nessun orario disponibile\n");
+                if (!controller.isTimetableLoaded()) sb.append("Orari in caricamento...\n");
+                else if (nextArrivals.isEmpty()) sb.append("Nessun orario disponibile\n");
                 else for (StopTime st : nextArrivals) sb.append(controller.getArrivalInfo(st)).append("\n");
             }
 
+            // --- Tabellone unico delle fermate vicine (solo se ce n'è più d'una) ---
+            if (controller.getStopsWithinRadius(s.getLat(), s.getLon(), NEARBY_RADIUS_METERS).size() > 1) {
+                sb.append("\nPARTENZE NEI DINTORNI (").append((int) NEARBY_RADIUS_METERS).append(" m)\n");
+                sb.append("───────────────────────────────────────\n");
+                for (Departure d : departureBoard.nearby(s.getLat(), s.getLon(), NEARBY_RADIUS_METERS, 15)) {
+                    Route route = controller.getRouteByIndex(d.getRouteIndex());
+                    String routeName = (route != null) ? route.getName() : d.getRouteId();
+                    String time = timeFormatter.format(new Date(d.getTime() * 1000)) + (d.isRealtime() ? "*" : " ");
+                    sb.append(String.format("%-10s %-7s %s\n", routeName, time, d.getStop().getName()));
+                }
+                sb.append("(* = tempo reale)\n");
+            }
+
             // --- Logica Linee della Fermata ---
             sb.append("\nLINEE CHE SERVONO QUESTA FERMATA\n");
             sb.append("───────────────────────────────────────\n");
@@ -475,6 +555,74 @@ public class MainWindow extends JFrame implements ConnectionListener {
         }
     }
 
+    /**
+     * Chiamato (sul thread di Swing) ogni volta che una parte del feed GTFS è pronta:
+     * aggiorna lo stato in basso, la mappa e i dettagli dell'elemento selezionato.
+     */
+    /**
+     * Carica di nuovo il feed in background: l'app continua a usare quello corrente finché
+     * il nuovo non è pronto, poi onGtfsDataLoaded ritrova la selezione tra i nuovi oggetti.
+     */
+    private void reloadFeed() {
+        btnReloadFeed.setEnabled(false);
+        lblLoadStatus.setText("Caricamento del nuovo feed in corso...");
+        lblLoadStatus.setVisible(true);
+        controller.reload(feedPath).whenComplete((v, e) -> SwingUtilities.invokeLater(() -> {
+            btnReloadFeed.setEnabled(true);
+            if (e != null) {
+                e.printStackTrace();
+                lblLoadStatus.setText("Impossibile caricare il nuovo feed");
+            }
+        }));
+    }
+
+    private void onGtfsDataLoaded() {
+        if (controller.isTimetableLoaded()) {
+            realtimeManager.setFeedIds(controller.getFeedIds());
+            lblLoadStatus.setText("Orari e linee caricati");
+            Timer hide = new Timer(5000, e -> lblLoadStatus.setVisible(false));
+            hide.setRepeats(false);
+            hide.start();
+        } else {
+            lblLoadStatus.setText("Caricamento di linee e orari in corso...");
+            lblLoadStatus.setVisible(true);
+        }
+        if (mappa != null) {
+            mappa.onDataLoaded();
+        }
+        // Dopo un cambio di feed la selezione va ritrovata per ID tra i nuovi oggetti
+        if (currentSelectedObject instanceof Stop s && controller.getStopById(s.getId()) != null) {
+            currentSelectedObject = controller.getStopById(s.getId());
+        } else if (currentSelectedObject instanceof Route r && controller.getRouteById(r.getId()) != null) {
+            currentSelectedObject = controller.getRouteById(r.getId());
+        }
+        if (journeyFrom != null) {
+            journeyFrom = controller.getStopById(journeyFrom.getId());
+        }
+        if (currentlySelectedRoute != null) {
+            currentlySelectedRoute = controller.getRouteById(currentlySelectedRoute.getId());
+        }
+        // Anche gli elementi della lista: una linea del feed vecchio ne terrebbe in memoria tutti
+        // gli orari. Quelli spariti dal feed nuovo si tolgono.
+        for (int i = listModel.size() - 1; i >= 0; i--) {
+            Object old = listModel.get(i);
+            Object current = old;
+            if (old instanceof Stop s) {
+                current = controller.getStopById(s.getId());
+            } else if (old instanceof Route r) {
+                current = controller.getRouteById(r.getId());
+            }
+            if (current == null) {
+                if (controller.isTimetableLoaded()) listModel.remove(i);
+            } else if (current != old) {
+                listModel.set(i, current);
+            }
+        }
+        if (currentSelectedObject != null) {
+            showDetails(currentSelectedObject);
+        }
+    }
+
     // --- Metodi per i Preferiti ---
 
     /**
@@ -485,6 +633,7 @@ public class MainWindow extends JFrame implements ConnectionListener {
         detailArea.setText("Caricamento preferiti...");
         btnToggleFavorite.setVisible(false);
         currentSelectedObject = null;
+        updateJourneyButtons();
         if (mappa != null) {
             mappa.setFilteredRoute(null);
             mappa.setSelectedStop(null);
@@ -543,6 +692,110 @@ public class MainWindow extends JFrame implements ConnectionListener {
         btnToggleFavorite.setVisible(true);
     }
 
+    // --- Itinerari ---
+
+    /**
+     * Mostra i bottoni dell'itinerario e delle isocrone solo per le fermate ("Arriva qui"
+     * dopo aver scelto la partenza).
+     */
+    private void updateJourneyButtons() {
+        boolean isStop = currentSelectedObject instanceof Stop;
+        btnJourneyFrom.setVisible(isStop);
+        btnJourneyTo.setVisible(isStop && journeyFrom != null && journeyFrom != currentSelectedObject);
+        if (journeyFrom != null) btnJourneyTo.setToolTipText("Da " + journeyFrom.getName());
+        btnIsochrone.setVisible(isStop);
+        btnIsochrone.setText(isIsochroneShownFor(currentSelectedObject) ? "Nascondi isocrone" : "Isocrone");
+    }
+
+    /**
+     * @return true se la mappa mostra (o sta calcolando) le isocrone da questa fermata,
+     * confrontando per ID perché dopo un cambio di feed gli oggetti sono nuovi.
+     */
+    private boolean isIsochroneShownFor(Object selected) {
+        Stop origin = mappa != null ? mappa.getIsochroneOrigin() : null;
+        return selected instanceof Stop s && origin != null && origin.getId().equals(s.getId());
+    }
+
+    /**
+     * Calcola in background gli itinerari alternativi (più veloce / meno cambi) dalla
+     * partenza scelta alla fermata selezionata, partendo adesso, e poi li mostra.
+     */
+    private void showJourney() {
+        if (!(currentSelectedObject instanceof Stop to) || journeyFrom == null) return;
+        Stop from = journeyFrom;
+        int request = ++journeyRequest;
+        if (!controller.isTimetableLoaded()) {
+            showJourneys(from, to, null);
+            return;
+        }
+        detailArea.setText(journeyHeader(from, to) + "Calcolo in corso...\n");
+        journeyExecutor.execute(() -> {
+            List<Journey> journeys = List.of();
+            try {
+                journeys = controller.planJourneys(from, to, LocalDateTime.now());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            List<Journey> result = journeys;
+            SwingUtilities.invokeLater(() -> {
+                if (request == journeyRequest) showJourneys(from, to, result);
+            });
+        });
+    }
+
+    private static String journeyHeader(Stop from, Stop to) {
+        return "═══════════════════════════════════════\n"
+                + "ITINERARIO\n"
+                + "═══════════════════════════════════════\n"
+                + "Da: " + from.getName() + "\n"
+                + "A:  " + to.getName() + "\n\n";
+    }
+
+    /**
+     * Scrive gli itinerari nel pannello dei dettagli (journeys null: orari non ancora caricati).
+     */
+    private void showJourneys(Stop from, Stop to, List<Journey> journeys) {
+        StringBuilder sb = new StringBuilder(journeyHeader(from, to));
+        if (journeys == null) {
+            sb.append("Orari in caricamento...\n");
+            journeys = List.of();
+        } else if (journeys.isEmpty()) {
+            sb.append("Nessun itinerario trovato per oggi\n");
+        }
+        for (int i = 0; i < journeys.size(); i++) {
+            Journey journey = journeys.get(i);
+            if (journeys.size() > 1) {
+                sb.append("OPZIONE ").append(i + 1).append(": arrivo ").append(clock(journey.getArrival()))
+                        .append(", cambi: ").append(journey.getTransfers()).append("\n");
+            }
+            for (Journey.Leg leg : journey.getLegs()) {
+                String mode;
+                if (leg.isWalk()) {
+                    mode = "A piedi";
+                } else {
+                    Route route = controller.getRouteByIndex(leg.getTrip().getRouteIndex());
+                    mode = "Linea " + (route != null ? route.getName() : leg.getTrip().getRouteId());
+                }
+                sb.append(clock(leg.getDeparture())).append(" - ").append(clock(leg.getArrival()))
+                        .append("  ").append(mode).append("\n");
+                sb.append("   ").append(leg.getFrom().getName()).append(" → ").append(leg.getTo().getName()).append("\n");
+            }
+            sb.append("───────────────────────────────────────\n");
+            sb.append("Arrivo alle ").append(clock(journey.getArrival()))
+                    .append(", cambi: ").append(journey.getTransfers()).append("\n\n");
+        }
+        detailArea.setText(sb.toString());
+        detailArea.setCaretPosition(0);
+    }
+
+    /**
+     * @return I secondi dalla mezzanotte come "HH:MM".
+     */
+    private static String clock(int seconds) {
+        String time = StopTimeStore.formatTime(seconds);
+        return time.substring(0, time.length() - 3);
+    }
+
     // --- Metodo per il ConnectionListener ---
 
     /**